@@ -3,7 +3,20 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This is an air company device application.
@@ -13,9 +26,17 @@ import java.util.LinkedList;
  * At the launch, air company discovers if there are any other air companies.
  * If they present - it requests all data from them and starts listening for incoming connections.
  * 
- * Air company receives requests from town device, they are being
- * pushed to processing queue and not being processed until some helicopter 
- * landed.
+ * Air company receives requests from town device, helicopter and other
+ * companies. Once they are merged into the database, they are decided
+ * by DecisionEngine (see it), helicopter landing is not waited for.
+ * 
+ * After processing, air company pushes to every other air company only
+ * changes made since the last successful push (see ChangeSet).
+ * 
+ * Air company lends seats of its flights to other companies and borrows
+ * seats of theirs, so that bookings are confirmed without asking operating
+ * company and flights are not overbooked (see SeatLedger). Borrowed seats
+ * are reported and given back every REBALANCE_PERIOD.
  */
 
 /**
@@ -28,6 +49,24 @@ public class AirCompanyDevice extends Thread {
 	private ActiveDeviceFinder 			_finder = null;
 	private AirCompanyNetworkOperator 	_operator = null;
 	private DatabaseConnector			_sqlite = null;
+	private DecisionEngine				_engine = null;
+	private SeatLedger					_ledger = null;
+	
+	/* seats asked from operating company at once */
+	public static final int 			LENT_SEATS = 2;
+	
+	/* borrowed seats are reported and given back with this period */
+	public static final int 			REBALANCE_PERIOD = 60 * 1000;
+	private Timer						_rebalanceTimer = new Timer("Seats rebalance", true);
+	
+	/* seats of these flights and days are being asked now */
+	private Set<Long>					_seatRequests = Collections.synchronizedSet(new HashSet<Long>());
+	
+	/* one push to other companies at a time, one more waits for it at most */
+	private ThreadPoolExecutor			_pusher = createPusher();
+	
+	/* locks by company name, changes are pushed to company by one thread at a time */
+	private ConcurrentHashMap<String, Object> _pushLocks = new ConcurrentHashMap<String, Object>();
 	
 	public void run()
 	{
@@ -56,8 +95,19 @@ public class AirCompanyDevice extends Thread {
 	private void initialize()
 	{			
 		_sqlite = new DatabaseConnector("aircompany.sqlite");
+		// requests received before engine is started wait in its queue
+		_ledger = new SeatLedger(_sqlite);
+		_engine = new DecisionEngine(_sqlite, this, _ledger);
 		
 		System.out.println("Air company server application initialization...");
+		
+		do {
+		System.out.println("Input the name of air company:");
+		_companyName = readLine();
+		} while (_companyName.equals(""));
+		
+		/* seats are lent by operator, so quotas are loaded before it is started */
+		_ledger.load(_companyName);
 			
 		_operator = new AirCompanyNetworkOperator();
 		_operator.setListener(this);
@@ -65,11 +115,6 @@ public class AirCompanyDevice extends Thread {
 		
 		_port = _operator.getPort();
 		
-		do {
-		System.out.println("Input the name of air company:");
-		_companyName = readLine();
-		} while (_companyName.equals(""));
-		
 		/* find all air companies */		
 		_finder = new ActiveDeviceFinder("_aircompany._tcp.local.", _companyName, _port);	
 		LinkedList<HostInfo> list = _finder.getSimilarDeviceList();
@@ -77,17 +122,36 @@ public class AirCompanyDevice extends Thread {
 			System.out.println("Found air company: " + list.get(i).toString());
 		}		
 		
-		/* ask request records and timetable from first device,
+		/* ask request records and timetable from the healthiest device,
 		   considering they all synchronized */
 		if (!list.isEmpty()) {
-			HostInfo info = list.getFirst();
+			HostInfo info = PeerRegistry.best(list);
 			System.out.println("Requesting data from " + info.getName() + " about requests and timetable");
-			ArrayList<RequestRecord> requests = NetworkOperator.requestRecords(info);
-			_sqlite.mergeRequests(requests);
+			if (NetworkOperator.supportsChanges(info)) {
+				ChangeSet changes = NetworkOperator.requestChanges(info, _sqlite.getReceivedSequence(info.getName()));
+				if (changes != null) {
+					_sqlite.mergeChanges(changes);
+				}
+			} else {
+				// records are merged by chunks while they are received
+				RequestMerger merger = new RequestMerger(_sqlite);
+				NetworkOperator.requestRecords(info, merger);
+				merger.finish();
+			}
 			ArrayList<TimeTableEntry> timetable = NetworkOperator.requestTimetable(info);
 			_sqlite.mergeTimetable(timetable);
 			System.out.println("Requesting finished");
 		}	
+		
+		/* requests left undecided by previous run are decided first */
+		_engine.submit(_sqlite.getNotCheckedRequests());
+		_engine.start();
+		
+		_rebalanceTimer.schedule(new TimerTask() {
+			public void run() {
+				rebalanceSeats();
+			}
+		}, REBALANCE_PERIOD, REBALANCE_PERIOD);
 				
 		System.out.println("Initialization finished.");
 	}
@@ -102,8 +166,15 @@ public class AirCompanyDevice extends Thread {
 		/* stop acceptor thread */
 		_operator.stopAccepting();
 		
+		/* close connections kept to other devices */
+		NetworkOperator.closeConnections();
+		
+		_rebalanceTimer.cancel();
+		_engine.stopEngine();
+		_pusher.shutdown();
 		try {		
 			_operator.join();
+			_engine.join();
 		} catch (InterruptedException e) {
 			System.out.println("join() interrupted");
 		}
@@ -186,8 +257,15 @@ public class AirCompanyDevice extends Thread {
 			}
 		}
 		if (airCompanyExists || airCompany.equals(_companyName)) {
-			TimeTableEntry entry = new TimeTableEntry(flightNumber, flightTime, direction, airCompany);
+			int seats = 0;
+			if (airCompany.equals(_companyName)) {
+				System.out.println("Input number of seats (default " + DatabaseConnector.DEFAULT_CAPACITY + "):");
+				seats = Math.max(readInt(), 0);
+			}
+			// other devices take number of seats with the entry
+			TimeTableEntry entry = new TimeTableEntry(flightNumber, flightTime, direction, airCompany, seats);
 			_sqlite.addTimeTableEntry(entry);
+			_engine.timetableChanged();
 			ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();
 			timetable.add(entry);
 			System.out.println("Entry " + entry.toString() + " successfully added to the system.");
@@ -263,7 +341,7 @@ public class AirCompanyDevice extends Thread {
 	
 	private void sendTakeOff()
 	{
-		LinkedList<HostInfo> list = _finder.jmdnsRequestDevices("_helicopter._tcp.local.");
+		LinkedList<HostInfo> list = _finder.findDevices("_helicopter._tcp.local.");
 		if (list.isEmpty()) {
 			System.out.println("No helicopters in the system.");
 		} else {
@@ -285,23 +363,181 @@ public class AirCompanyDevice extends Thread {
 		}		
 	}
 
-	public void helicopterLanded()
-	{	
-		System.out.println("Helicopter landed and passed new requests to us.");
-		ArrayList<RequestRecord> notCheckedRequests = getNotCheckedRequests();		
-		
-		LinkedList<HostInfo> airCompanies = getAirCompanies();
-		ArrayList<String> otherAirCompanies = getAirCompaniesNames(airCompanies);
-		ArrayList<RequestRecord> processedRequests = processRequests(otherAirCompanies, notCheckedRequests);	
+	/**
+	 * Called by network operator when records were merged into the database,
+	 * decision engine takes unchecked ones at once
+	 */
+	public void requestsReceived(ArrayList<RequestRecord> requests)
+	{
+		_engine.submit(requests);
+	}
+	
+	/**
+	 * Called when timetable was changed, so that flights are looked up again
+	 */
+	public void timetableChanged()
+	{
+		_engine.timetableChanged();
+	}
+	
+	/**
+	 * Schedules pushing of changes to other air companies. Push which is
+	 * scheduled, but not started yet, will send later changes as well,
+	 * so that more requests are ignored till it starts.
+	 */
+	public void schedulePush()
+	{
+		_pusher.execute(new Runnable() {
+			public void run() {
+				pushChanges(_finder.getSimilarDeviceList());
+			}
+		});
+	}
+	
+	/**
+	 * Lends seats of own flight to other air company.
+	 * Called by network operator for "giveMeSeats" command.
+	 * @return number of seats lent
+	 */
+	public int lendSeats(String holder, int flightNumber, int day, int used, int returned, int wanted)
+	{
+		TimeTableEntry flight = _sqlite.getTimeTableEntry(flightNumber);
+		if (flight == null || !flight.getAirCompany().equals(_companyName)) {
+			return 0;
+		}
+		int free = _sqlite.getFreeSeats(flightNumber, FlightCalendar.fromEpochDay(day));
+		int lent = _ledger.lendSeats(holder, flightNumber, day, used, returned, wanted, free);
+		_ledger.save();
+		return lent;
+	}
+	
+	/**
+	 * Asks seats of other company's flight in the background,
+	 * decision engine is notified when they are lent or refused
+	 */
+	public void requestSeats(final String owner, final int flightNumber, final int day)
+	{
+		final long seat = SeatLedger.seatKey(flightNumber, day);
+		if (!_seatRequests.add(seat)) {
+			return;
+		}
+		NetworkOperator.submit(new Callable<Boolean>() {
+			public Boolean call() {
+				try {
+					if (rebalanceSeats(owner, flightNumber, day, LENT_SEATS, false)) {
+						_engine.seatsChanged(flightNumber, day);
+					}
+				} finally {
+					_seatRequests.remove(seat);
+				}
+				return true;
+			}
+		});
+	}
+	
+	/**
+	 * Reports used seats to operating company, gives back seats which are not used
+	 * and asks for more. Bookings of used seats are delivered to it before, report
+	 * is started first, so that bookings committed while changes are pushed
+	 * are not reported until the next time.
+	 * @return whether operating company answered
+	 */
+	private boolean rebalanceSeats(String owner, int flightNumber, int day, int wanted, boolean giveBack)
+	{
+		HostInfo company = null;
+		for (HostInfo info : _finder.getSimilarDeviceList()) {
+			if (info.getName().equals(owner)) {
+				company = info;
+			}
+		}
+		if (company == null) {
+			return false;
+		}
 		
-		_sqlite.mergeRequests(processedRequests);
-				
-		//NetworkOperator.sendBroadcast(airCompanies, processedRequests, null);
-		NetworkOperator.sendBroadcast(airCompanies, _sqlite.getAllRequests(), null);
+		int[] report = _ledger.startReport(flightNumber, day, giveBack);
+		int lent = -1;
+		if (pushChanges(company)) {
+			lent = NetworkOperator.requestSeats(company, _companyName, flightNumber, day, report[0], report[1], wanted);
+		}
+		_ledger.finishReport(flightNumber, day, report, lent, wanted);
+		_ledger.save();
+		return lent >= 0;
+	}
+	
+	/**
+	 * Gives back all borrowed seats, bookings waiting for seats ask them again
+	 */
+	private void rebalanceSeats()
+	{
+		for (SeatQuota quota : _ledger.getHeldQuotas()) {
+			TimeTableEntry flight = _sqlite.getTimeTableEntry(quota.getFlightNumber());
+			if (flight != null) {
+				rebalanceSeats(flight.getAirCompany(), quota.getFlightNumber(), quota.getDay(), 0, true);
+			}
+		}
+		_ledger.forgetRefusals();
+		_engine.retryWaiting();
 	}
 
-	private ArrayList<RequestRecord> getNotCheckedRequests() {		
-		return _sqlite.getNotCheckedRequests();
+	/**
+	 * Sends to air companies changes they haven't received from us yet.
+	 * Companies without change log support receive all requests as before.
+	 */
+	private void pushChanges(LinkedList<HostInfo> airCompanies)
+	{
+		// companies are contacted concurrently, so unreachable one doesn't delay the others
+		LinkedHashMap<HostInfo, Future<Boolean>> results = new LinkedHashMap<HostInfo, Future<Boolean>>();
+		for (final HostInfo company : airCompanies) {
+			results.put(company, NetworkOperator.submit(new Callable<Boolean>() {
+				public Boolean call() {
+					return pushChanges(company);
+				}
+			}));
+		}
+		NetworkOperator.awaitDelivered(results);
+	}
+	
+	/**
+	 * Pusher and seats rebalance push to the same company one after another,
+	 * so that older changes never reach it after newer ones
+	 */
+	private boolean pushChanges(HostInfo company)
+	{
+		synchronized (pushLockOf(company.getName())) {
+			if (!NetworkOperator.supportsChanges(company)) {
+				return NetworkOperator.sendBroadcast(company, _sqlite.getAllRequests(), null);
+			}
+			
+			// changes received from this company are not sent back
+			ChangeSet changes = _sqlite.getChangesSince(_sqlite.getSentSequence(company.getName()), company.getName());
+			if (changes.isEmpty()) {
+				return true;
+			}
+			changes.setOrigin(_companyName);
+			if (NetworkOperator.sendChanges(company, changes)) {
+				_sqlite.setSentSequence(company.getName(), changes.getSequence());
+				return true;
+			}
+			return false;
+		}
+	}
+	
+	private Object pushLockOf(String company)
+	{
+		Object lock = _pushLocks.get(company);
+		if (lock == null) {
+			_pushLocks.putIfAbsent(company, new Object());
+			lock = _pushLocks.get(company);
+		}
+		return lock;
+	}
+	
+	public String getCompanyName() {
+		return _companyName;
+	}
+	
+	public DatabaseConnector getDatabase() {
+		return _sqlite;
 	}
 
 	private LinkedList<HostInfo> getAirCompanies() {		
@@ -317,40 +553,17 @@ public class AirCompanyDevice extends Thread {
 		return names;
 	}
 	
-	private ArrayList<RequestRecord> processRequests(ArrayList<String> otherCompanies, ArrayList<RequestRecord> requests)
+	private static ThreadPoolExecutor createPusher()
 	{
-		System.out.println("Started making decisions routine.");
-		ArrayList<RequestRecord> processedRequests = new ArrayList<RequestRecord>();
-
-		// process cancel requests first 
-		for (int i = 0; i < requests.size(); ++i) {
-			RequestRecord record = requests.get(i);			
-			if (record.getRequestType() == 1) {
-				// cancelling request - remove from database
-				_sqlite.removeRequest(Integer.valueOf(record.getPassengerName()));
-				_sqlite.removeRequest(record.getTicket());
-			}
-		}
-		
-		// process bookings - now we are aware of free seats
-		for (int i = 0; i < requests.size(); ++i) {
-			RequestRecord record = requests.get(i);
-			if (record.getRequestType() == 0) {
-				record.markAsChecked();
-				int flight_number = record.getFlightNumber();
-				TimeTableEntry flight = _sqlite.getTimeTableEntry(flight_number);
-				if (flight != null && !otherCompanies.contains(flight.getAirCompany())) {
-					if (_sqlite.flightHasFreeSeats(flight_number, record.getFlightDate())) {
-						record.confirm();
-						processedRequests.add(record);						
+		return new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(1), 
+				new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "Air company pusher");
+						thread.setDaemon(true);
+						return thread;
 					}
-				}
-			}
-		}
-		
-		System.out.println("Finished making decisions routine.");
-		return processedRequests;
-	}	
+				}, new ThreadPoolExecutor.DiscardPolicy());
+	}
 	
 	/** Function for reading input line 
 	 * @return string containing user input
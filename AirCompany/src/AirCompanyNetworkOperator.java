@@ -1,9 +1,8 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
 import java.util.ArrayList;
 
 /**
@@ -16,120 +15,102 @@ import java.util.ArrayList;
  */
 public class AirCompanyNetworkOperator extends Thread {
 	private int 				_port;
-	private ServerSocket 		_acceptSocket;
 	private AirCompanyDevice 	_airCompany = null;
 	private DatabaseConnector 	_sqlite = null;
 	
+	/* accepts connections and processes commands coming over them */
+	private DeviceServer		_server = null;
+	
+	/* commands of framed sessions */
+	private FrameProtocol.Handler _frames = new FrameProtocol.Handler() {
+		public boolean reply(int opcode, DataInputStream payload, DataOutputStream reply, int codec) throws IOException {
+			switch (opcode) {
+			case FrameProtocol.GIVE_ME_TIMETABLE:
+				WireCodec.writeEntries(reply, _sqlite.getTimeTable());
+				return true;
+			case FrameProtocol.GIVE_ME_TIMETABLE_IF_NEWER:
+				long known = payload.readLong();
+				long version = _sqlite.getTimetableVersion();
+				reply.writeLong(version);
+				if (version != known) {
+					WireCodec.writeEntries(reply, _sqlite.getTimeTable());
+				}
+				return true;
+			}
+			return false;
+		}
+		public boolean receive(int opcode, ArrayList<RequestRecord> records) {
+			if (opcode != FrameProtocol.TAKE_MY_REQUEST) {
+				return false;
+			}
+			// bookings pipelined by town are merged in one transaction
+			_sqlite.mergeRequests(records);
+			_airCompany.requestsReceived(records);
+			return true;
+		}
+	};
+	
 	public AirCompanyNetworkOperator()
 	{		
 		_port = NetworkOperator.getAvailablePort();
+		_server = new DeviceServer("Air company", _port);
 		
-		try {
-			// create server socket with queue of 10 possible incoming connections 
-			_acceptSocket = new ServerSocket(_port, 10);
-			// set up blocking mode for accepting socket (wait INFINITE)
-			_acceptSocket.setSoTimeout(0);
-		} 
-		catch(SocketException e){
-			System.err.println("Socket exception occured: " + e.toString());			
-		}
-		catch (IOException e) {
-			System.err.println("Unable to bind server to port " + _port);
-		}
+		_server.register("giveMeRequests", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushRequests(in, out, codec);
+			}
+		});
+		_server.register("giveMeTimetable", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushTimetable(in, out, codec);
+			}
+		});
+		_server.register("giveMeTimetableIfNewer", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushTimetableIfNewer(in, out, codec);
+			}
+		});
+		DeviceServer.Command receiveRequests = new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				receiveRequests(in, out, codec);
+			}
+		};
+		_server.register("takeMyRequests", receiveRequests);
+		_server.register("takeMyRequest", receiveRequests);
+		_server.register("broadcast", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				receiveBroadcast(in, out, codec);
+			}
+		});
+		_server.register("giveMeChanges", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushChanges(in, out, codec);
+			}
+		});
+		_server.register("takeMyChanges", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				receiveChanges(in, out, codec);
+			}
+		});
+		_server.register("giveMeSeats", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				lendSeats(in, out, codec);
+			}
+		});
+		_server.register(_frames);
 	}	
 	
 	public void run()
 	{
-		_sqlite = new DatabaseConnector("aircompany.sqlite");
+		// the same connector as device has, so that seats counters are shared
+		_sqlite = _airCompany.getDatabase();
 		
-		while ( !_acceptSocket.isClosed() )
-		{
-			accept();
-		}	
-		
-		_sqlite.closeConnection();
-	}
-			
-	private void accept()
-	{
-		try
-		{				
-			// acknowledge incoming connection
-			Socket connection = null;
-			try {
-				connection = _acceptSocket.accept();
-			} catch (IOException ex) {
-				// maybe stopAccepting() was called
-				return;
-			}
-			
-			System.out.println("Air company got connection from: " + connection.getInetAddress().getHostAddress());
-			
-			ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-			
-			try
-			{
-				String command = (String)in.readObject();		
-				System.out.println("Incoming command: " + command);
-				switch (command) {
-				case "giveMeRequests":
-					flushRequests(in, out);
-					break;
-				case "giveMeTimetable":
-					flushTimetable(in, out);
-					break;
-				case "takeMyRequests":
-					receiveRequests(in, out);
-					_airCompany.helicopterLanded();
-					break;
-				case "broadcast":
-					receiveBroadcast(in, out);					
-					break;
-				case "takeMyRequest":					
-					receiveRequests(in, out);
-					break;
-				default:
-					System.err.println("Unknown socket command.");												
-				}
-				
-				String goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye"))
-				{
-					out.writeObject("goodbye");
-					out.flush();
-					System.out.println("Communication finished successfully");
-				}		
-				
-				connection.close();
-				in.close();
-				out.close();
-			}
-			catch(ClassNotFoundException e)
-			{
-				e.printStackTrace();
-				System.err.println("Data received in unknown format");
-			}			
-		}
-		catch(IOException e)
-		{
-			e.printStackTrace();
-			System.err.println("Some IO error in accept()");
-		}				
+		_server.run();
 	}
 	
-	public synchronized void stopAccepting()
+	public void stopAccepting()
 	{
-		if (_acceptSocket != null && !_acceptSocket.isClosed())
-		{
-			try {
-				_acceptSocket.close();
-			} catch (IOException e) {
-				System.out.println("Problems with accept socket");
-				e.printStackTrace();
-			}
-		}
+		_server.stop();
 	}
 	
 	public void setListener(AirCompanyDevice airCompany)
@@ -142,74 +123,92 @@ public class AirCompanyNetworkOperator extends Thread {
 		return _port;
 	}
 	
-	private void flushRequests(ObjectInputStream in, ObjectOutputStream out) throws IOException 
+	private void flushRequests(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
 	{				
-		ArrayList<RequestRecord> requests = _sqlite.getAllRequests();
-		// send number of requests
-		int number = requests.size();
-		out.writeObject(number);
-		out.flush();		
-		// send requests list
-		for (int i = 0; i < number; ++i)
-		{
-			RequestRecord record = requests.get(i);
-			out.writeObject(record);
-		}
+		// records are sent while they are read from the database
+		RequestStreamWriter writer = new RequestStreamWriter(out, codec);
+		_sqlite.forEachRequest(writer);
+		writer.finish();
 		out.flush();
 	}
 	
-	private void flushTimetable(ObjectInputStream in, ObjectOutputStream out) throws IOException 
+	private void flushTimetable(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
 	{			
 		ArrayList<TimeTableEntry> timetable = _sqlite.getTimeTable();
-		// send number of entries
-		int number = timetable.size();
-		out.writeObject(number);
+		// send number of entries and timetable entries
+		WireCodec.writeTimetable(out, timetable, codec);
 		out.flush();
-		// send timetable entries
-		for (int i = 0; i < number; ++i)
-		{
-			TimeTableEntry entry = timetable.get(i);
-			out.writeObject(entry);
+	}
+	
+	private void flushTimetableIfNewer(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
+	{
+		// version is read first, so that timetable sent is not older than it
+		long known = in.readLong();
+		long version = _sqlite.getTimetableVersion();
+		out.writeLong(version);
+		if (version != known) {
+			WireCodec.writeTimetable(out, _sqlite.getTimeTable(), codec);
 		}
 		out.flush();
 	}
 	
-	private void receiveRequests(ObjectInputStream in, ObjectOutputStream out) throws IOException,
+	private void receiveRequests(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException,
 		ClassNotFoundException 
 	{			
-		// receive number of entries
-		int number = (int)in.readObject();					
-		ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();				
-		// receive requests
-		for (int i = 0; i < number; ++i)
-		{
-			RequestRecord record = (RequestRecord)in.readObject();
-			requests.add(record);
-			//_sqlite.addRequestRecord(record);			
-		}		
+		// receive number of entries and requests
+		ArrayList<RequestRecord> requests = WireCodec.readRequests(in, codec);
 		_sqlite.mergeRequests(requests);
+		// decisions are made by engine, helicopter and town don't wait for them
+		_airCompany.requestsReceived(requests);
 	}
 		
-	private void receiveTimetable(ObjectInputStream in, ObjectOutputStream out) throws IOException,
+	private void receiveTimetable(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException,
 		ClassNotFoundException 
 	{		
-		// receive number of entries
-		int number = (int)in.readObject();					
-		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();				
-		// receive timetable
-		for (int i = 0; i < number; ++i)
-		{
-			TimeTableEntry entry = (TimeTableEntry)in.readObject();
-			timetable.add(entry);
-			//_sqlite.addTimeTableEntry(entry);			
-		}	
+		// receive number of entries and timetable
+		ArrayList<TimeTableEntry> timetable = WireCodec.readTimetable(in, codec);
 		_sqlite.mergeTimetable(timetable);
+		_airCompany.timetableChanged();
 	}	
 	
-	private void receiveBroadcast(ObjectInputStream in, ObjectOutputStream out) throws ClassNotFoundException, IOException
+	private void flushChanges(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
 	{
-		receiveRequests(in, out);
-		receiveTimetable(in, out);
+		// changes made after this sequence number are requested
+		int sequence = in.readInt();
+		ChangeSet changes = _sqlite.getChangesSince(sequence, null);
+		changes.setOrigin(_airCompany.getCompanyName());
+		WireCodec.writeChanges(out, changes, codec);
+		out.flush();
+	}
+	
+	private void receiveChanges(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException,
+		ClassNotFoundException 
+	{
+		ChangeSet changes = WireCodec.readChanges(in, codec);
+		// records are decided by company which received them from town or helicopter
+		MergeResult result = _sqlite.mergeChanges(changes);
+		System.out.println("Received " + changes.toString() + ": " + result.toString());
+	}
+	
+	private void lendSeats(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException,
+		ClassNotFoundException
+	{
+		String holder = (String)in.readObject();
+		int flight = in.readInt();
+		int day = in.readInt();
+		int used = in.readInt();
+		int returned = in.readInt();
+		int wanted = in.readInt();
+		out.writeInt(_airCompany.lendSeats(holder, flight, day, used, returned, wanted));
+		out.flush();
+	}
+	
+	private void receiveBroadcast(ObjectInputStream in, ObjectOutputStream out, int codec) throws ClassNotFoundException, IOException
+	{
+		// broadcasting company decides its requests itself
+		ArrayList<RequestRecord> requests = WireCodec.readRequests(in, codec);
+		_sqlite.mergeRequests(requests);
+		receiveTimetable(in, out, codec);
 		System.out.println("Broadcast received.");
 	}
 }
@@ -0,0 +1,392 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * This class makes decisions about requests as soon as they are merged
+ * into the database, instead of waiting for helicopter landing.
+ *
+ * Records received from town and helicopter are put to the queue, engine
+ * thread takes all queued records at once and decides them in single pass:
+ * 		canceling record	- booking and canceling record are removed
+ * 		booking				- confirmed if its flight has free seat, otherwise
+ * 							  rejected (checked, but not confirmed)
+ * Company which received the request decides it, records received from other
+ * companies are decided by them. Seats of other companies' flights are taken
+ * from seats lent by them (see SeatLedger). If there are no lent seats, booking
+ * waits until operating company lends more or refuses. Booking is rejected
+ * if seats are not lent within SEATS_WAIT, e.g. operating company is not
+ * reachable; waiting bookings are decided again every rebalance of seats.
+ * Bookings for flights which are not in the timetable yet wait until
+ * timetableChanged() is called.
+ * ON_DEMAND bookings are decided after the rest of the batch: they are placed
+ * on the earliest flight with free seat departing not before the requested one
+ * (see FlightAllocator), or decided as usual if there is no such flight.
+ *
+ * Free seats are counted in memory by DatabaseConnector, seats freed by the
+ * current batch are counted by engine. Decisions of the batch are written
+ * to the database in one transaction. If it fails, seats taken by the batch
+ * are given back and its records are decided again after RETRY_DELAY.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class DecisionEngine extends Thread {
+	/* records decided in one transaction at most */
+	private static final int 					MAX_BATCH = 1024;
+
+	/* milliseconds before batch which is not written is decided again */
+	private static final long 					RETRY_DELAY = 1000;
+
+	/* milliseconds booking waits for seats lent by operating company */
+	public static final int 					SEATS_WAIT = Integer.getInteger("seats.wait", 5 * 60 * 1000);
+
+	private DatabaseConnector 					_sqlite = null;
+	private AirCompanyDevice 					_airCompany = null;
+	private SeatLedger 							_ledger = null;
+	private LinkedBlockingQueue<RequestRecord> 	_queue = new LinkedBlockingQueue<RequestRecord>();
+
+	/* bookings for flights missing in the timetable */
+	private ArrayList<RequestRecord> 			_waiting = new ArrayList<RequestRecord>();
+
+	/* bookings waiting for seats lent by operating company, by seat key */
+	private HashMap<Long, ArrayList<RequestRecord>> _waitingSeats = new HashMap<Long, ArrayList<RequestRecord>>();
+
+	/* when booking started to wait for lent seats by ticket, used by engine thread only */
+	private HashMap<Long, Long> 				_waitingSince = new HashMap<Long, Long>();
+	private long 								_seatsWait = SEATS_WAIT;
+
+	/* timetable entries by flight number, used by engine thread only */
+	private HashMap<Integer, TimeTableEntry> 	_flights = new HashMap<Integer, TimeTableEntry>();
+	private volatile boolean 					_flightsChanged = false;
+
+	/* created by engine thread, when company name is known */
+	private FlightAllocator 					_allocator = null;
+
+	/* own seats freed by the current batch */
+	private LongIntMap 							_freed = new LongIntMap(64);
+
+	public DecisionEngine(DatabaseConnector sqlite, AirCompanyDevice airCompany, SeatLedger ledger)
+	{
+		super("Decision engine");
+		setDaemon(true);
+		_sqlite = sqlite;
+		_airCompany = airCompany;
+		_ledger = ledger;
+	}
+
+	/**
+	 * @param seatsWait milliseconds booking waits for lent seats before it is rejected
+	 */
+	public DecisionEngine(DatabaseConnector sqlite, AirCompanyDevice airCompany, SeatLedger ledger, long seatsWait)
+	{
+		this(sqlite, airCompany, ledger);
+		_seatsWait = seatsWait;
+	}
+
+	/**
+	 * Queues records merged into the database, they are decided by engine thread.
+	 * Records which are already checked are skipped.
+	 */
+	public void submit(Collection<RequestRecord> records)
+	{
+		if (records == null) {
+			return;
+		}
+		for (RequestRecord record : records) {
+			if (!record.isChecked()) {
+				_queue.add(record);
+			}
+		}
+	}
+
+	/**
+	 * Flights could be added or given to other company - waiting bookings are decided again
+	 */
+	public void timetableChanged()
+	{
+		_flightsChanged = true;
+		synchronized (_waiting) {
+			_queue.addAll(_waiting);
+			_waiting.clear();
+		}
+	}
+
+	/**
+	 * Operating company lent seats or refused - bookings waiting for them are decided again
+	 */
+	public void seatsChanged(int flightNumber, int day)
+	{
+		synchronized (_waitingSeats) {
+			ArrayList<RequestRecord> waiting = _waitingSeats.remove(SeatLedger.seatKey(flightNumber, day));
+			if (waiting != null) {
+				_queue.addAll(waiting);
+			}
+		}
+	}
+
+	/**
+	 * All bookings waiting for lent seats are decided again, seats are asked once more
+	 */
+	public void retryWaiting()
+	{
+		synchronized (_waitingSeats) {
+			for (ArrayList<RequestRecord> waiting : _waitingSeats.values()) {
+				_queue.addAll(waiting);
+			}
+			_waitingSeats.clear();
+		}
+	}
+
+	public void stopEngine()
+	{
+		interrupt();
+	}
+
+	public void run()
+	{
+		ArrayList<RequestRecord> batch = new ArrayList<RequestRecord>();
+		_allocator = new FlightAllocator(_sqlite, _ledger, _airCompany.getCompanyName());
+		try {
+			while (!isInterrupted()) {
+				batch.add(_queue.take());
+				_queue.drainTo(batch, MAX_BATCH - 1);
+
+				MergeResult result = decide(batch);
+				batch.clear();
+				if (result == null) {
+					Thread.sleep(RETRY_DELAY);
+					continue;
+				}
+				if (result.hasChanges()) {
+					System.out.println("Decisions made: " + result.toString());
+				}
+				// records merged by others should reach the rest of companies as well
+				if (_queue.isEmpty()) {
+					_airCompany.schedulePush();
+				}
+			}
+		} catch (InterruptedException e) {
+			// engine is stopped
+		}
+	}
+
+	/**
+	 * @return result of written decisions or null if they are not written
+	 * and records are queued again
+	 */
+	private MergeResult decide(ArrayList<RequestRecord> batch)
+	{
+		if (_flightsChanged) {
+			_flightsChanged = false;
+			_flights.clear();
+			_allocator.reset();
+		}
+		LinkedHashMap<Long, RequestRecord> decided = new LinkedHashMap<Long, RequestRecord>();
+		LinkedHashSet<Long> removed = new LinkedHashSet<Long>();
+		ArrayList<RequestRecord> flexible = new ArrayList<RequestRecord>();
+		_freed.clear();
+		_allocator.startBatch();
+
+		for (RequestRecord received : batch) {
+			long ticket = received.getTicket();
+			if (decided.containsKey(ticket) || removed.contains(ticket)) {
+				continue;
+			}
+			// the store has the latest state of the record
+			RequestRecord record = _sqlite.getRequest(ticket);
+			if (record == null || record.isChecked()) {
+				continue;
+			}
+
+			if (record.getRequestType() == 1) {
+				Long booked = bookedTicketOf(record);
+				if (booked != null) {
+					_waitingSince.remove(booked);
+				}
+				if (booked != null && removed.add(booked)) {
+					RequestRecord booking = decided.remove(booked);
+					if (booking == null) {
+						booking = _sqlite.getRequest(booked);
+					}
+					if (booking != null && booking.isConfirmed()) {
+						// seat is free for the next bookings of the batch
+						_freed.add(seatKey(booking), 1);
+					}
+				}
+				removed.add(ticket);
+				continue;
+			}
+
+			TimeTableEntry flight = getFlight(record.getFlightNumber());
+			if (flight == null) {
+				synchronized (_waiting) {
+					_waiting.add(record);
+				}
+				continue;
+			}
+			if (record.getTicketType() == 1) {
+				// seats left by the rest of the batch are shared between flexible bookings
+				flexible.add(record);
+				continue;
+			}
+			if (decideBooking(record, flight.getAirCompany())) {
+				decided.put(ticket, record);
+			}
+		}
+
+		// earlier flights are filled first, so bookings go in order of requested departure
+		Collections.sort(flexible, new Comparator<RequestRecord>() {
+			public int compare(RequestRecord first, RequestRecord second) {
+				if (first.getDirection() != second.getDirection()) {
+					return first.getDirection() - second.getDirection();
+				}
+				int order = first.getFlightDate().compareTo(second.getFlightDate());
+				return (order != 0) ? order : departureOf(first) - departureOf(second);
+			}
+		});
+		for (RequestRecord record : flexible) {
+			if (removed.contains(record.getTicket())) {
+				continue;
+			}
+			if (_allocator.allocate(record, departureOf(record), _freed)) {
+				record.confirm();
+				record.markAsChecked();
+				decided.put(record.getTicket(), record);
+			} else if (decideBooking(record, getFlight(record.getFlightNumber()).getAirCompany())) {
+				decided.put(record.getTicket(), record);
+			}
+		}
+
+		if (decided.isEmpty() && removed.isEmpty()) {
+			return new MergeResult();
+		}
+		// taken lent seats are saved before bookings are confirmed, then they are saved as used
+		_ledger.save();
+		MergeResult result = _sqlite.applyDecisions(new ArrayList<RequestRecord>(decided.values()), new ArrayList<Long>(removed));
+		if (result == null) {
+			_ledger.seatsRolledBack();
+			_ledger.save();
+			// records which wait for flights or seats are queued by their own events
+			for (RequestRecord record : batch) {
+				if (decided.containsKey(record.getTicket()) || removed.contains(record.getTicket())) {
+					_queue.add(record);
+				}
+			}
+			return null;
+		}
+		_ledger.seatsCommitted();
+		_ledger.save();
+		return result;
+	}
+
+	/**
+	 * Confirms booking if its flight has free seat, otherwise rejects it
+	 * @param owner air company operating the flight
+	 * @return whether booking is decided, it waits for lent seats otherwise
+	 */
+	private boolean decideBooking(RequestRecord record, String owner)
+	{
+		int day = FlightCalendar.toEpochDay(record.getFlightDate());
+		if (owner.equals(_airCompany.getCompanyName())) {
+			int free = _sqlite.getFreeSeats(record.getFlightNumber(), record.getFlightDate()) + _freed.get(seatKey(record), 0);
+			if (_ledger.takeOwnSeat(record.getFlightNumber(), day, free)) {
+				record.confirm();
+			}
+		} else {
+			int seat = _ledger.takeLentSeat(record.getFlightNumber(), day);
+			if (seat == SeatLedger.NO_SEATS) {
+				if (!waitedTooLong(record)) {
+					waitForSeats(record, owner, day);
+					return false;
+				}
+				System.out.println("Seats of " + owner + " are not lent in time, booking " + record.getTicket() + " is rejected");
+			}
+			if (seat == SeatLedger.TAKEN) {
+				record.confirm();
+			}
+		}
+		_waitingSince.remove(record.getTicket());
+		record.markAsChecked();
+		return true;
+	}
+
+	/**
+	 * @return whether booking waits for lent seats longer than allowed,
+	 * waiting time starts with the first call
+	 */
+	private boolean waitedTooLong(RequestRecord booking)
+	{
+		long now = System.currentTimeMillis();
+		Long since = _waitingSince.get(booking.getTicket());
+		if (since == null) {
+			_waitingSince.put(booking.getTicket(), now);
+			return false;
+		}
+		return now - since >= _seatsWait;
+	}
+
+	/**
+	 * Booking waits while seats are asked from operating company
+	 */
+	private void waitForSeats(RequestRecord booking, String owner, int day)
+	{
+		long seat = seatKey(booking);
+		synchronized (_waitingSeats) {
+			ArrayList<RequestRecord> waiting = _waitingSeats.get(seat);
+			if (waiting == null) {
+				waiting = new ArrayList<RequestRecord>();
+				_waitingSeats.put(seat, waiting);
+			}
+			waiting.add(booking);
+		}
+		_airCompany.requestSeats(owner, booking.getFlightNumber(), day);
+	}
+
+	/**
+	 * @return timetable entry of the flight or null if flight is unknown
+	 */
+	private TimeTableEntry getFlight(int flight_number)
+	{
+		TimeTableEntry flight = _flights.get(flight_number);
+		if (flight == null) {
+			flight = _sqlite.getTimeTableEntry(flight_number);
+			if (flight != null) {
+				_flights.put(flight_number, flight);
+			}
+		}
+		return flight;
+	}
+
+	/**
+	 * @return departure of the requested flight in minutes since midnight
+	 */
+	private int departureOf(RequestRecord booking)
+	{
+		return FlightCalendar.toMinuteOfDay(getFlight(booking.getFlightNumber()).getTime());
+	}
+
+	private static long seatKey(RequestRecord booking)
+	{
+		return SeatLedger.seatKey(booking.getFlightNumber(), FlightCalendar.toEpochDay(booking.getFlightDate()));
+	}
+
+	/**
+	 * Canceling record keeps ticket of canceled booking as passenger name
+	 */
+	private static Long bookedTicketOf(RequestRecord canceling)
+	{
+		try {
+			return Long.valueOf(canceling.getPassengerName());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,163 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+
+/**
+ * This class places ON_DEMAND bookings on the earliest flight in their
+ * direction which departs not before the requested flight and has free seat.
+ * Flights of all air companies are considered: own flights by own seat
+ * counter, flights of other companies by seats they lent (see SeatLedger).
+ *
+ * For every direction and flight date there is a priority queue of flights
+ * ordered by departure and then by remaining seats, so that fuller flights
+ * are left for later bookings. Bookings of the batch should be allocated in
+ * order of requested departure (see DecisionEngine), then flights which depart
+ * earlier than requested are never needed again and are dropped from the queue.
+ *
+ * Used by decision engine thread only.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class FlightAllocator {
+	private DatabaseConnector 						_sqlite = null;
+	private SeatLedger 								_ledger = null;
+	private String 									_companyName = null;
+
+	/* timetable by direction (index in list), read again after reset() */
+	private ArrayList<ArrayList<TimeTableEntry>> 	_flights = null;
+
+	/* flights with free seats by {direction, day} for the current batch */
+	private HashMap<Long, PriorityQueue<Slot>> 		_queues = new HashMap<Long, PriorityQueue<Slot>>();
+
+	/**
+	 * Flight on one date with seats this company could give
+	 */
+	private static class Slot {
+		TimeTableEntry 	_flight;
+		int 			_minute;
+		int 			_seats;
+		boolean 		_own;
+	}
+
+	private static final Comparator<Slot> DEPARTURE_ORDER = new Comparator<Slot>() {
+		public int compare(Slot first, Slot second) {
+			if (first._minute != second._minute) {
+				return (first._minute < second._minute) ? -1 : 1;
+			}
+			return second._seats - first._seats;
+		}
+	};
+
+	public FlightAllocator(DatabaseConnector sqlite, SeatLedger ledger, String companyName)
+	{
+		_sqlite = sqlite;
+		_ledger = ledger;
+		_companyName = companyName;
+	}
+
+	/**
+	 * Timetable is changed, it is read again
+	 */
+	public void reset()
+	{
+		_flights = null;
+	}
+
+	/**
+	 * Seats are counted again for the next batch
+	 */
+	public void startBatch()
+	{
+		_queues.clear();
+	}
+
+	/**
+	 * Takes seat on the earliest suitable flight and sets its number to booking
+	 * @param fromMinute departure of the requested flight (minutes since midnight)
+	 * @param freed own seats freed by the batch by seat key
+	 * @return whether seat is taken, booking is not changed otherwise
+	 */
+	public boolean allocate(RequestRecord booking, int fromMinute, LongIntMap freed)
+	{
+		int day = FlightCalendar.toEpochDay(booking.getFlightDate());
+		PriorityQueue<Slot> queue = getQueue(booking.getDirection(), day, freed);
+		while (!queue.isEmpty()) {
+			Slot slot = queue.poll();
+			if (slot._minute < fromMinute || !takeSeat(slot, day, freed)) {
+				continue;
+			}
+			if (--slot._seats > 0) {
+				queue.add(slot);
+			}
+			booking.setFlightNumber(slot._flight.getFlightNumber());
+			return true;
+		}
+		return false;
+	}
+
+	private boolean takeSeat(Slot slot, int day, LongIntMap freed)
+	{
+		int flightNumber = slot._flight.getFlightNumber();
+		if (!slot._own) {
+			return _ledger.takeLentSeat(flightNumber, day) == SeatLedger.TAKEN;
+		}
+		return _ledger.takeOwnSeat(flightNumber, day, getFreeSeats(flightNumber, day, freed));
+	}
+
+	private int getFreeSeats(int flightNumber, int day, LongIntMap freed)
+	{
+		return _sqlite.getFreeSeats(flightNumber, FlightCalendar.fromEpochDay(day))
+				+ freed.get(SeatLedger.seatKey(flightNumber, day), 0);
+	}
+
+	private PriorityQueue<Slot> getQueue(int direction, int day, LongIntMap freed)
+	{
+		long key = ((long)direction << 32) | (day & 0xffffffffL);
+		PriorityQueue<Slot> queue = _queues.get(key);
+		if (queue != null) {
+			return queue;
+		}
+
+		queue = new PriorityQueue<Slot>(16, DEPARTURE_ORDER);
+		for (TimeTableEntry flight : getFlights(direction)) {
+			Slot slot = new Slot();
+			slot._flight = flight;
+			slot._minute = FlightCalendar.toMinuteOfDay(flight.getTime());
+			slot._own = flight.getAirCompany().equals(_companyName);
+			if (slot._own) {
+				slot._seats = _ledger.getOwnFreeSeats(flight.getFlightNumber(), day,
+						getFreeSeats(flight.getFlightNumber(), day, freed));
+			} else {
+				slot._seats = _ledger.getHeldSeats(flight.getFlightNumber(), day);
+			}
+			if (slot._seats > 0) {
+				queue.add(slot);
+			}
+		}
+		_queues.put(key, queue);
+		return queue;
+	}
+
+	/**
+	 * @return flights of the direction with known departure time
+	 */
+	private ArrayList<TimeTableEntry> getFlights(int direction)
+	{
+		if (_flights == null) {
+			_flights = new ArrayList<ArrayList<TimeTableEntry>>(2);
+			_flights.add(new ArrayList<TimeTableEntry>());
+			_flights.add(new ArrayList<TimeTableEntry>());
+			for (TimeTableEntry flight : _sqlite.getTimeTable()) {
+				int index = flight.getDirection();
+				if ((index == 0 || index == 1) && FlightCalendar.toMinuteOfDay(flight.getTime()) != FlightCalendar.NO_TIME) {
+					_flights.get(index).add(flight);
+				}
+			}
+		}
+		return (direction == 0 || direction == 1) ? _flights.get(direction) : new ArrayList<TimeTableEntry>();
+	}
+}
@@ -0,0 +1,313 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+
+/**
+ * This class accounts seats which air companies lend to each other, so that
+ * company receiving booking for flight of other company confirms it at once
+ * and the flight is never overbooked.
+ *
+ * Company operating the flight owns its seat counter: free seats are capacity
+ * minus confirmed bookings, minus seats lent to other companies and minus seats
+ * confirmed by decision engine, but not committed yet.
+ *
+ * Other company (holder) confirms bookings while it has lent seats. Periodically
+ * and when it runs out of seats, holder pushes its changes to the operating
+ * company, reports used seats and asks for more (see NetworkOperator.requestSeats).
+ * Used seats are confirmed bookings already, so they are not lent anymore.
+ * Seat taken by decision engine is counted as used only after its booking
+ * is committed, and holder reports used seats before it pushes changes, so
+ * that every reported seat has its booking delivered to operating company.
+ *
+ * Quotas are kept in the database, so that seats are not lost on restart.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class SeatLedger {
+	/* booking is confirmed against lent seats */
+	public static final int 					TAKEN = 0;
+	/* there are no lent seats, they should be asked from operating company */
+	public static final int 					NO_SEATS = 1;
+	/* operating company has no free seats */
+	public static final int 					REFUSED = 2;
+
+	private DatabaseConnector 					_sqlite = null;
+	private String 								_companyName = null;
+
+	/* seats lent to this company by seat key */
+	private HashMap<Long, SeatQuota> 			_held = new HashMap<Long, SeatQuota>();
+
+	/* seats lent to other companies by seat key */
+	private HashMap<Long, ArrayList<SeatQuota>> _lent = new HashMap<Long, ArrayList<SeatQuota>>();
+
+	/* own seats confirmed by decision engine, but not committed yet */
+	private LongIntMap 							_pending = new LongIntMap(64);
+
+	/* lent seats confirmed by decision engine, but not committed yet */
+	private LongIntMap 							_pendingUsed = new LongIntMap(64);
+
+	/* seats operating company refused to lend, until rebalance */
+	private HashSet<Long> 						_refused = new HashSet<Long>();
+
+	/* quotas changed since the last save() */
+	private LinkedHashSet<SeatQuota> 			_changed = new LinkedHashSet<SeatQuota>();
+
+	public SeatLedger(DatabaseConnector sqlite)
+	{
+		_sqlite = sqlite;
+	}
+
+	/**
+	 * Loads quotas from the database
+	 * @param companyName name of this air company
+	 */
+	public synchronized void load(String companyName)
+	{
+		_companyName = companyName;
+		_held.clear();
+		_lent.clear();
+		for (SeatQuota quota : _sqlite.getSeatQuotas()) {
+			long seat = seatKey(quota.getFlightNumber(), quota.getDay());
+			if (quota.getHolder().equals(companyName)) {
+				_held.put(seat, quota);
+			} else {
+				lentQuotas(seat).add(quota);
+			}
+		}
+	}
+
+	/**
+	 * Writes changed quotas to the database
+	 */
+	public void save()
+	{
+		ArrayList<SeatQuota> changed = new ArrayList<SeatQuota>();
+		synchronized (this) {
+			for (SeatQuota quota : _changed) {
+				changed.add(new SeatQuota(quota));
+			}
+			_changed.clear();
+		}
+		_sqlite.saveSeatQuotas(changed);
+	}
+
+//-----------------------------   OPERATING COMPANY ----------------------------------
+
+	/**
+	 * Takes seat of own flight for booking
+	 * @param free free seats of the flight as DatabaseConnector counts them
+	 * @return whether seat is taken
+	 */
+	public synchronized boolean takeOwnSeat(int flightNumber, int day, int free)
+	{
+		long seat = seatKey(flightNumber, day);
+		if (free - getLentSeats(seat) - _pending.get(seat, 0) <= 0) {
+			return false;
+		}
+		_pending.add(seat, 1);
+		return true;
+	}
+
+	/**
+	 * @param free free seats of the flight as DatabaseConnector counts them
+	 * @return seats of own flight which could be taken for bookings
+	 */
+	public synchronized int getOwnFreeSeats(int flightNumber, int day, int free)
+	{
+		long seat = seatKey(flightNumber, day);
+		return Math.max(0, free - getLentSeats(seat) - _pending.get(seat, 0));
+	}
+
+	/**
+	 * Decisions are committed: DatabaseConnector counts taken own seats now
+	 * and taken lent seats could be reported as used
+	 */
+	public synchronized void seatsCommitted()
+	{
+		_pending.clear();
+		for (long seat : _pendingUsed.keys()) {
+			SeatQuota quota = _held.get(seat);
+			if (quota != null) {
+				quota.setUsed(quota.getUsed() + _pendingUsed.get(seat, 0));
+				_changed.add(quota);
+			}
+		}
+		_pendingUsed.clear();
+	}
+
+	/**
+	 * Decisions are not written: taken own seats are free again and taken
+	 * lent seats are given back to their quotas
+	 */
+	public synchronized void seatsRolledBack()
+	{
+		_pending.clear();
+		for (long seat : _pendingUsed.keys()) {
+			SeatQuota quota = _held.get(seat);
+			if (quota != null) {
+				quota.setSeats(quota.getSeats() + _pendingUsed.get(seat, 0));
+				_changed.add(quota);
+			}
+		}
+		_pendingUsed.clear();
+	}
+
+	/**
+	 * Accounts seats reported by holder and lends it free seats
+	 * @param free free seats of the flight as DatabaseConnector counts them
+	 * @return number of seats lent
+	 */
+	public synchronized int lendSeats(String holder, int flightNumber, int day, int used, int returned, int wanted, int free)
+	{
+		long seat = seatKey(flightNumber, day);
+		SeatQuota quota = null;
+		for (SeatQuota lent : lentQuotas(seat)) {
+			if (lent.getHolder().equals(holder)) {
+				quota = lent;
+			}
+		}
+		if (quota == null) {
+			quota = new SeatQuota(flightNumber, day, holder, 0, 0);
+			lentQuotas(seat).add(quota);
+		}
+
+		// used seats are confirmed bookings already delivered to us
+		quota.setSeats(Math.max(0, quota.getSeats() - used - returned));
+		int lent = Math.max(0, Math.min(wanted, free - getLentSeats(seat) - _pending.get(seat, 0)));
+		quota.setSeats(quota.getSeats() + lent);
+		_changed.add(quota);
+		return lent;
+	}
+
+	private int getLentSeats(long seat)
+	{
+		ArrayList<SeatQuota> quotas = _lent.get(seat);
+		int seats = 0;
+		if (quotas != null) {
+			for (SeatQuota quota : quotas) {
+				seats += quota.getSeats();
+			}
+		}
+		return seats;
+	}
+
+	private ArrayList<SeatQuota> lentQuotas(long seat)
+	{
+		ArrayList<SeatQuota> quotas = _lent.get(seat);
+		if (quotas == null) {
+			quotas = new ArrayList<SeatQuota>(1);
+			_lent.put(seat, quotas);
+		}
+		return quotas;
+	}
+
+//-----------------------------   HOLDER ----------------------------------
+
+	/**
+	 * Takes lent seat for booking of other company's flight, it is counted
+	 * as used after seatsCommitted()
+	 * @return TAKEN, NO_SEATS or REFUSED
+	 */
+	public synchronized int takeLentSeat(int flightNumber, int day)
+	{
+		long seat = seatKey(flightNumber, day);
+		SeatQuota quota = _held.get(seat);
+		if (quota != null && quota.getSeats() > 0) {
+			quota.setSeats(quota.getSeats() - 1);
+			_pendingUsed.add(seat, 1);
+			_changed.add(quota);
+			return TAKEN;
+		}
+		return _refused.contains(seat) ? REFUSED : NO_SEATS;
+	}
+
+	/**
+	 * @return seats of other company's flight lent to this company and not used yet
+	 */
+	public synchronized int getHeldSeats(int flightNumber, int day)
+	{
+		SeatQuota quota = _held.get(seatKey(flightNumber, day));
+		return (quota == null) ? 0 : quota.getSeats();
+	}
+
+	/**
+	 * Starts report to operating company: used seats are reset. It must be
+	 * called before changes are pushed to operating company, so that bookings
+	 * of reported seats are delivered to it.
+	 * @param giveBack whether not used seats are given back too
+	 * @return report {used, returned} - seats counted in it are restored
+	 * by finishReport() if report is not delivered
+	 */
+	public synchronized int[] startReport(int flightNumber, int day, boolean giveBack)
+	{
+		SeatQuota quota = _held.get(seatKey(flightNumber, day));
+		if (quota == null) {
+			return new int[] {0, 0};
+		}
+		int[] report = {quota.getUsed(), giveBack ? quota.getSeats() : 0};
+		quota.setUsed(0);
+		quota.setSeats(quota.getSeats() - report[1]);
+		_changed.add(quota);
+		return report;
+	}
+
+	/**
+	 * Finishes report to operating company
+	 * @param report result of startReport()
+	 * @param lent seats lent by operating company or -1 if report is not delivered
+	 * @param wanted seats asked for
+	 */
+	public synchronized void finishReport(int flightNumber, int day, int[] report, int lent, int wanted)
+	{
+		long seat = seatKey(flightNumber, day);
+		SeatQuota quota = _held.get(seat);
+		if (quota == null) {
+			quota = new SeatQuota(flightNumber, day, _companyName, 0, 0);
+			_held.put(seat, quota);
+		}
+		if (lent < 0) {
+			quota.setUsed(quota.getUsed() + report[0]);
+			quota.setSeats(quota.getSeats() + report[1]);
+		} else {
+			quota.setSeats(quota.getSeats() + lent);
+			if (wanted > 0 && lent == 0) {
+				_refused.add(seat);
+			} else {
+				_refused.remove(seat);
+			}
+		}
+		_changed.add(quota);
+		if (quota.getSeats() == 0 && quota.getUsed() == 0 && _pendingUsed.get(seat, 0) == 0) {
+			_held.remove(seat);
+		}
+	}
+
+	/**
+	 * @return copies of quotas lent to this company
+	 */
+	public synchronized ArrayList<SeatQuota> getHeldQuotas()
+	{
+		ArrayList<SeatQuota> quotas = new ArrayList<SeatQuota>();
+		for (SeatQuota quota : _held.values()) {
+			quotas.add(new SeatQuota(quota));
+		}
+		return quotas;
+	}
+
+	/**
+	 * Operating companies are asked again on the next rebalance
+	 */
+	public synchronized void forgetRefusals()
+	{
+		_refused.clear();
+	}
+
+	public static long seatKey(int flightNumber, int day)
+	{
+		return ((long)flightNumber << 32) | (day & 0xffffffffL);
+	}
+}
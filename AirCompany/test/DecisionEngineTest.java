@@ -0,0 +1,102 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Tests of bookings decided by DecisionEngine for flights of other company
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class DecisionEngineTest {
+	private static final int 	DAY = FlightCalendar.toEpochDay(new Date()) + 10;
+	private static final int 	SEATS_WAIT = 300;
+
+	private File 				_file;
+	private DatabaseConnector 	_sqlite;
+	private DecisionEngine 		_engine;
+	private CompanyStub 		_company = new CompanyStub();
+
+	/**
+	 * Company which can't reach operating company of the flight
+	 */
+	private static class CompanyStub extends AirCompanyDevice {
+		volatile int 	_seatRequests = 0;
+
+		public String getCompanyName() {
+			return "Us";
+		}
+
+		public void requestSeats(String owner, int flightNumber, int day) {
+			++_seatRequests;
+		}
+
+		public void schedulePush() {
+		}
+	}
+
+	@Before
+	public void setup() throws IOException {
+		_file = File.createTempFile("engine", ".sqlite");
+		_sqlite = new DatabaseConnector(_file.getPath());
+
+		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();
+		timetable.add(new TimeTableEntry(3, "10:00", 0, "Other"));
+		_sqlite.mergeTimetable(timetable);
+
+		SeatLedger ledger = new SeatLedger(_sqlite);
+		ledger.load("Us");
+		_engine = new DecisionEngine(_sqlite, _company, ledger, SEATS_WAIT);
+		_engine.start();
+	}
+
+	@After
+	public void cleanup() throws InterruptedException {
+		_engine.stopEngine();
+		_engine.join(5000);
+		_sqlite.closeConnection();
+		_file.delete();
+	}
+
+	/**
+	 * @return whether booking is checked within timeout
+	 */
+	private boolean awaitChecked(long ticket, long timeout) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeout;
+		while (System.currentTimeMillis() < deadline) {
+			if (_sqlite.getRequest(ticket).isChecked()) {
+				return true;
+			}
+			Thread.sleep(20);
+		}
+		return _sqlite.getRequest(ticket).isChecked();
+	}
+
+	@Test
+	public void testBookingIsRejectedIfSeatsAreNotLent() throws Exception {
+		ArrayList<RequestRecord> records = new ArrayList<RequestRecord>();
+		records.add(new RequestRecord(1, "Passenger", 3, FlightCalendar.fromEpochDay(DAY), 0, 0, 0, false, false));
+		_sqlite.mergeRequests(records);
+		_engine.submit(records);
+
+		assertFalse("Booking is decided without lent seats.", awaitChecked(1, SEATS_WAIT / 2));
+		assertTrue("Seats are not asked.", _company._seatRequests > 0);
+
+		// rebalance decides waiting bookings again
+		Thread.sleep(SEATS_WAIT);
+		_engine.retryWaiting();
+		assertTrue("Booking waits for seats after deadline.", awaitChecked(1, 5000));
+		assertFalse("Booking is confirmed without lent seats.", _sqlite.getRequest(1).isConfirmed());
+	}
+}
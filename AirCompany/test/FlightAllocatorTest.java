@@ -0,0 +1,97 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Tests of ON_DEMAND bookings placement by FlightAllocator
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class FlightAllocatorTest {
+	private static final int 	DAY = FlightCalendar.toEpochDay(new Date()) + 10;
+
+	private File 				_file;
+	private DatabaseConnector 	_sqlite;
+	private SeatLedger 			_ledger;
+	private FlightAllocator 	_allocator;
+
+	@Before
+	public void setup() throws IOException {
+		TicketGenerator.setNode(1);
+		_file = File.createTempFile("allocator", ".sqlite");
+		_sqlite = new DatabaseConnector(_file.getPath());
+
+		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();
+		timetable.add(new TimeTableEntry(1, "09:00", 0, "Us"));
+		timetable.add(new TimeTableEntry(2, "11:00", 0, "Us"));
+		timetable.add(new TimeTableEntry(3, "10:00", 0, "Other"));
+		timetable.add(new TimeTableEntry(4, "10:30", 1, "Us"));
+		_sqlite.mergeTimetable(timetable);
+
+		_ledger = new SeatLedger(_sqlite);
+		_ledger.load("Us");
+		_allocator = new FlightAllocator(_sqlite, _ledger, "Us");
+		_allocator.startBatch();
+	}
+
+	@After
+	public void cleanup() {
+		_sqlite.closeConnection();
+		_file.delete();
+	}
+
+	private static RequestRecord booking(int direction) {
+		return new RequestRecord("Passenger", 1, FlightCalendar.fromEpochDay(DAY), direction, 0, 1);
+	}
+
+	private int allocate(int direction, String from) {
+		RequestRecord booking = booking(direction);
+		if (!_allocator.allocate(booking, FlightCalendar.toMinuteOfDay(from), new LongIntMap(4))) {
+			return -1;
+		}
+		return booking.getFlightNumber();
+	}
+
+	@Test
+	public void testEarliestFlightAfterRequested() {
+		assertEquals("Booking is not placed on the earliest flight.", 1, allocate(0, "08:00"));
+		// flight of other company has no lent seats, earlier flight departs before requested time
+		assertEquals("Booking is not placed on the earliest flight with seats.", 2, allocate(0, "09:30"));
+		assertEquals("Booking is placed in wrong direction.", 4, allocate(1, "00:00"));
+		assertEquals("There are no flights after requested time.", -1, allocate(1, "11:00"));
+	}
+
+	@Test
+	public void testLentSeatsAreUsed() {
+		ArrayList<SeatQuota> quotas = new ArrayList<SeatQuota>();
+		quotas.add(new SeatQuota(3, DAY, "Us", 1, 0));
+		_sqlite.saveSeatQuotas(quotas);
+		_ledger.load("Us");
+		_allocator.startBatch();
+
+		assertEquals("Lent seat of earlier flight is not used.", 3, allocate(0, "09:30"));
+		assertEquals("Lent seat is used twice.", 2, allocate(0, "09:30"));
+		assertEquals("Lent seat is not taken from ledger.", 0, _ledger.getHeldSeats(3, DAY));
+	}
+
+	@Test
+	public void testFullFlightIsSkipped() {
+		for (int i = 0; i < DatabaseConnector.DEFAULT_CAPACITY; ++i) {
+			assertEquals("Booking is not placed on the only flight.", 2, allocate(0, "10:30"));
+		}
+		RequestRecord booking = booking(0);
+		assertFalse("Flight is overbooked.", _allocator.allocate(booking, FlightCalendar.toMinuteOfDay("10:30"), new LongIntMap(4)));
+		assertEquals("Booking is changed.", 1, booking.getFlightNumber());
+	}
+}
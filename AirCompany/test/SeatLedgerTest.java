@@ -0,0 +1,130 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Tests of seats accounting by SeatLedger, for operating company and holder
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class SeatLedgerTest {
+	private static final int 	FLIGHT = 7;
+	private static final int 	DAY = 20000;
+
+	private File 				_file;
+	private DatabaseConnector 	_sqlite;
+
+	@Before
+	public void setup() throws IOException {
+		_file = File.createTempFile("ledger", ".sqlite");
+		_sqlite = new DatabaseConnector(_file.getPath());
+	}
+
+	@After
+	public void cleanup() {
+		_sqlite.closeConnection();
+		_file.delete();
+	}
+
+	private SeatLedger holderOf(int seats) {
+		ArrayList<SeatQuota> quotas = new ArrayList<SeatQuota>();
+		quotas.add(new SeatQuota(FLIGHT, DAY, "Holder", seats, 0));
+		_sqlite.saveSeatQuotas(quotas);
+		SeatLedger ledger = new SeatLedger(_sqlite);
+		ledger.load("Holder");
+		return ledger;
+	}
+
+	@Test
+	public void testOwnSeatsAreNotLentTwice() {
+		SeatLedger ledger = new SeatLedger(_sqlite);
+		ledger.load("Operator");
+		assertEquals("Wrong number of lent seats.", 3, ledger.lendSeats("Holder", FLIGHT, DAY, 0, 0, 3, 5));
+		assertEquals("Lent seats are free for operator.", 2, ledger.getOwnFreeSeats(FLIGHT, DAY, 5));
+		assertTrue("Could not take own seat.", ledger.takeOwnSeat(FLIGHT, DAY, 5));
+		assertTrue("Could not take own seat.", ledger.takeOwnSeat(FLIGHT, DAY, 5));
+		assertFalse("Flight is overbooked.", ledger.takeOwnSeat(FLIGHT, DAY, 5));
+		assertEquals("Nothing is left to lend.", 0, ledger.lendSeats("Other", FLIGHT, DAY, 0, 0, 1, 5));
+
+		// two own bookings are committed, holder confirmed one booking and gives back two seats
+		ledger.seatsCommitted();
+		assertEquals("Wrong number of lent seats.", 0, ledger.lendSeats("Holder", FLIGHT, DAY, 1, 2, 0, 2));
+		assertEquals("Returned seats are not free.", 2, ledger.getOwnFreeSeats(FLIGHT, DAY, 2));
+	}
+
+	@Test
+	public void testLentSeatIsReportedAfterCommit() {
+		SeatLedger ledger = holderOf(2);
+		assertEquals("Could not take lent seat.", SeatLedger.TAKEN, ledger.takeLentSeat(FLIGHT, DAY));
+		assertEquals("Wrong number of held seats.", 1, ledger.getHeldSeats(FLIGHT, DAY));
+
+		// report running while booking is decided doesn't count it
+		int[] report = ledger.startReport(FLIGHT, DAY, false);
+		assertEquals("Uncommitted booking is reported as used.", 0, report[0]);
+		ledger.finishReport(FLIGHT, DAY, report, 0, 0);
+
+		ledger.seatsCommitted();
+		report = ledger.startReport(FLIGHT, DAY, false);
+		assertEquals("Committed booking is not reported.", 1, report[0]);
+		assertEquals("Seats are given back.", 0, report[1]);
+	}
+
+	@Test
+	public void testFailedReportIsRestored() {
+		SeatLedger ledger = holderOf(2);
+		ledger.takeLentSeat(FLIGHT, DAY);
+		ledger.seatsCommitted();
+
+		int[] report = ledger.startReport(FLIGHT, DAY, true);
+		assertEquals("Wrong used seats.", 1, report[0]);
+		assertEquals("Wrong returned seats.", 1, report[1]);
+		assertEquals("Returned seat is still held.", 0, ledger.getHeldSeats(FLIGHT, DAY));
+		ledger.finishReport(FLIGHT, DAY, report, -1, 0);
+		assertEquals("Seat is not restored.", 1, ledger.getHeldSeats(FLIGHT, DAY));
+
+		// the next report counts used seat again, restored quota is kept in the database
+		ledger.save();
+		SeatLedger loaded = new SeatLedger(_sqlite);
+		loaded.load("Holder");
+		assertEquals("Quota is not saved.", 1, loaded.getHeldSeats(FLIGHT, DAY));
+		assertEquals("Used seat is lost.", 1, loaded.startReport(FLIGHT, DAY, false)[0]);
+	}
+
+	@Test
+	public void testRolledBackSeatsAreFree() {
+		SeatLedger ledger = holderOf(2);
+		assertEquals("Could not take lent seat.", SeatLedger.TAKEN, ledger.takeLentSeat(FLIGHT, DAY));
+		assertTrue("Could not take own seat.", ledger.takeOwnSeat(FLIGHT + 1, DAY, 1));
+
+		// decisions are not written
+		ledger.seatsRolledBack();
+		assertEquals("Lent seat is not given back.", 2, ledger.getHeldSeats(FLIGHT, DAY));
+		assertEquals("Own seat is not free.", 1, ledger.getOwnFreeSeats(FLIGHT + 1, DAY, 1));
+		ledger.seatsCommitted();
+		assertEquals("Rolled back seat is reported as used.", 0, ledger.startReport(FLIGHT, DAY, false)[0]);
+	}
+
+	@Test
+	public void testNoSeatsAndRefusal() {
+		SeatLedger ledger = holderOf(1);
+		assertEquals(SeatLedger.TAKEN, ledger.takeLentSeat(FLIGHT, DAY));
+		assertEquals("Seats should be asked.", SeatLedger.NO_SEATS, ledger.takeLentSeat(FLIGHT, DAY));
+
+		int[] report = ledger.startReport(FLIGHT, DAY, false);
+		ledger.finishReport(FLIGHT, DAY, report, 0, 2);
+		assertEquals("Operator refused to lend.", SeatLedger.REFUSED, ledger.takeLentSeat(FLIGHT, DAY));
+		ledger.forgetRefusals();
+		assertEquals("Seats should be asked again.", SeatLedger.NO_SEATS, ledger.takeLentSeat(FLIGHT, DAY));
+	}
+}
@@ -1,14 +1,13 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
 import java.util.ArrayList;
 
 /**
  * 	This class contains acceptor thread for processing incoming connections
- * 	and uses ServerSocket class to communicate.
+ * 	and uses DeviceServer class to communicate.
  * 
  * 	The main aim of this class is to send data on request from clients 
  * 	about booking and timetable.
@@ -19,6 +18,9 @@ import java.util.ArrayList;
  *  after:		 objects (type depends on command)
  *  last: 		 initiator says "goodbye"
  *  			 camp replies "goodbye"
+ *  
+ *  Connection is kept open after "goodbye" and the next command could follow.
+ *  Command "framed" starts framed session (see FrameProtocol).
  */
 
 /**
@@ -27,36 +29,85 @@ import java.util.ArrayList;
  */
 public class AcceptThread extends Thread{
 	private int 				_port = 0;
-	private ServerSocket 		_acceptSocket = null;
 	private DatabaseConnector 	_sqlite = null;	
 	
+	/* accepts connections and processes commands coming over them */
+	private DeviceServer		_server = null;
+	
+	/* commands of framed sessions */
+	private FrameProtocol.Handler _frames = new FrameProtocol.Handler() {
+		public boolean reply(int opcode, DataInputStream payload, DataOutputStream reply, int codec) throws IOException {
+			switch (opcode) {
+			case FrameProtocol.GIVE_ME_TIMETABLE:
+				WireCodec.writeEntries(reply, _sqlite.getTimeTable());
+				return true;
+			case FrameProtocol.GIVE_ME_TIMETABLE_IF_NEWER:
+				long known = payload.readLong();
+				long version = _sqlite.getTimetableVersion();
+				reply.writeLong(version);
+				if (version != known) {
+					WireCodec.writeEntries(reply, _sqlite.getTimeTable());
+				}
+				return true;
+			}
+			return false;
+		}
+		public boolean receive(int opcode, ArrayList<RequestRecord> records) {
+			if (opcode != FrameProtocol.TAKE_MY_REQUEST) {
+				return false;
+			}
+			_sqlite.mergeRequests(records);
+			return true;
+		}
+	};
+	
 	public AcceptThread()
 	{	
 		//creating single file database connection		
 		_sqlite = new DatabaseConnector("camp.sqlite");
 		
 		_port = NetworkOperator.getAvailablePort();		
+		_server = new DeviceServer("Camp", _port);
 		
-		try {
-			// create server socket with queue of 10 possible incoming connections 
-			_acceptSocket = new ServerSocket(_port, 10);
-			// set up blocking mode for accepting socket (wait INFINITE)
-			_acceptSocket.setSoTimeout(0);
-		} 
-		catch(SocketException e){
-			System.err.println("Socket exception occured: " + e.toString());			
-		}
-		catch (IOException e) {
-			System.err.println("Unable to bind server to port " + _port);
-		}
+		_server.register("giveMeRequests", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushRequests(in, out, codec);
+			}
+		});
+		_server.register("giveMeTimetable", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushTimetable(in, out, codec);
+			}
+		});
+		_server.register("giveMeTimetableIfNewer", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushTimetableIfNewer(in, out, codec);
+			}
+		});
+		_server.register("takeMyRequests", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				receiveRequests(in, out, codec);
+			}
+		});
+		_server.register("takeMyTimetable", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				receiveTimetable(in, out, codec);
+			}
+		});
+		_server.register("broadcast", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				receiveBroadcast(in, out, codec);
+			}
+		});
+		_server.register(_frames);
 	}
 	
 	public void run()
 	{
-		while ( !_acceptSocket.isClosed() )
-		{
-			accept();
-		}
+		_server.run();
+		
+		// wait for commands being processed, stopAccepting() has closed their connections
+		_server.awaitStopped(HandlerExecutor.READ_TIMEOUT);
 		
 		// important - close database connection at the end
 		_sqlite.closeConnection();	
@@ -67,97 +118,18 @@ public class AcceptThread extends Thread{
 		return _port;
 	}
 	
-	public synchronized void stopAccepting()
+	public void stopAccepting()
 	{
-		if (_acceptSocket != null && !_acceptSocket.isClosed())
-		{
-			try {
-				_acceptSocket.close();
-			} catch (IOException e) {
-				System.out.println("Problems with accept socket");
-				e.printStackTrace();
-			}
-		}
-	}
-	
-	private void accept() 
-	{	
-		try
-		{				
-			// acknowledge incoming connection
-			Socket connection = null;
-			try {
-				connection = _acceptSocket.accept();
-			} catch (IOException ex) {				
-				return; // maybe stopAccepting() was called
-			}
-			System.out.println("Connection from: " + connection.getInetAddress().getHostAddress());
-			
-			ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-			
-			try
-			{
-				String command = (String)in.readObject();				
-				switch (command) {
-				case "giveMeRequests":
-					flushRequests(in, out);	
-					break;
-				case "giveMeTimetable":
-					flushTimetable(in, out);
-					break;
-				case "takeMyRequests":
-					receiveRequests(in, out);
-					break;
-				case "takeMyTimetable":
-					receiveTimetable(in, out);	
-					break;
-				case "broadcast":
-					receiveBroadcast(in, out);
-					break;
-				default:
-					System.err.println("Unknown socket command.");												
-				}				
-				
-				String goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye"))
-				{
-					out.writeObject("goodbye");
-					out.flush();
-					System.out.println("Communication finished successfully");
-				}	
-				
-				connection.close();
-				in.close();
-				out.close();				
-			}
-			catch(ClassNotFoundException e)
-			{
-				System.err.println("Data received in unknown format");
-			}			
-		}
-		catch(IOException e)
-		{
-			System.err.println("Some IO error in accept()");
-		}		
+		_server.stop();
 	}
 
 	/**
 	 * This function receives requests from input stream
 	 */
-	private void receiveRequests(ObjectInputStream in, ObjectOutputStream out) throws IOException,
+	private void receiveRequests(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException,
 		ClassNotFoundException 
 	{	
-		ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();				
-
-		int number = (int)in.readObject();					
-			
-		for (int i = 0; i < number; ++i)
-		{
-			RequestRecord record = (RequestRecord)in.readObject();
-			requests.add(record);
-		}
+		ArrayList<RequestRecord> requests = WireCodec.readRequests(in, codec);
 		
 		_sqlite.mergeRequests(requests);
 	}
@@ -165,18 +137,10 @@ public class AcceptThread extends Thread{
 	/**
 	 * This function receives timetable entries from input stream
 	 */
-	private void receiveTimetable(ObjectInputStream in, ObjectOutputStream out) throws IOException,
+	private void receiveTimetable(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException,
 		ClassNotFoundException 
 	{
-		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();				
-
-		int number = (int)in.readObject();					
-		
-		for (int i = 0; i < number; ++i)
-		{
-			TimeTableEntry entry = (TimeTableEntry)in.readObject();
-			timetable.add(entry);
-		}
+		ArrayList<TimeTableEntry> timetable = WireCodec.readTimetable(in, codec);
 		
 		_sqlite.mergeTimetable(timetable);
 	}
@@ -184,45 +148,46 @@ public class AcceptThread extends Thread{
 	/**
 	 * This function flushes all requests to the output stream
 	 */
-	private void flushRequests(ObjectInputStream in, ObjectOutputStream out) throws IOException 
+	private void flushRequests(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
 	{		
-		ArrayList<RequestRecord> requests = _sqlite.getAllRequests();
-		
-		int number = requests.size();
-		out.writeObject(number);
-		out.flush();		
-		
-		for (int i = 0; i < number; ++i)
-		{
-			RequestRecord record = requests.get(i);
-			out.writeObject(record);
-		}
+		// records are sent while they are read from the database
+		RequestStreamWriter writer = new RequestStreamWriter(out, codec);
+		_sqlite.forEachRequest(writer);
+		writer.finish();
 		out.flush();
 	}
 	
 	/** 
 	 * This function flushes all timetable entries to the output stream
 	 */
-	private void flushTimetable(ObjectInputStream in, ObjectOutputStream out) throws IOException 
+	private void flushTimetable(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
 	{
 		ArrayList<TimeTableEntry> timetable = _sqlite.getTimeTable();
 	
-		int number = timetable.size();
-		out.writeObject(number);
+		WireCodec.writeTimetable(out, timetable, codec);
 		out.flush();
-	
-		for (int i = 0; i < number; ++i)
-		{
-			TimeTableEntry entry = timetable.get(i);
-			out.writeObject(entry);
+	}
+
+	/** 
+	 * This function flushes timetable entries to the output stream
+	 * only if timetable is changed since version known by other side
+	 */
+	private void flushTimetableIfNewer(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
+	{
+		// version is read first, so that timetable sent is not older than it
+		long known = in.readLong();
+		long version = _sqlite.getTimetableVersion();
+		out.writeLong(version);
+		if (version != known) {
+			WireCodec.writeTimetable(out, _sqlite.getTimeTable(), codec);
 		}
 		out.flush();
 	}
 
-	private void receiveBroadcast(ObjectInputStream in, ObjectOutputStream out) throws ClassNotFoundException, IOException
+	private void receiveBroadcast(ObjectInputStream in, ObjectOutputStream out, int codec) throws ClassNotFoundException, IOException
 	{
-		receiveRequests(in, out);
-		receiveTimetable(in, out);
+		receiveRequests(in, out, codec);
+		receiveTimetable(in, out, codec);
 		System.out.println("Broadcast received.");
 	}
 }
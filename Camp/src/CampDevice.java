@@ -11,6 +11,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.concurrent.Future;
 
 /** 
  *  This class contains main code for camp computer behavior
@@ -26,6 +27,8 @@ public class CampDevice extends Thread {
 	private ActiveDeviceFinder 	_finder = null;
 	private AcceptThread 		_accept = null;
 	private DatabaseConnector 	_sqlite = null;	
+	/* bookings and cancelings are sent to other camps in batches */
+	private SubmissionQueue 	_submissions = null;
 			
 	public void run()
 	{		
@@ -57,6 +60,9 @@ public class CampDevice extends Thread {
 	{
 		System.out.println("Camp device application initialization...");
 		
+		/* tickets of new records must differ from tickets of other devices */
+		TicketGenerator.configure();
+		
 		//creating single file database connection
 		_sqlite = new DatabaseConnector("camp.sqlite");		
 		
@@ -72,12 +78,23 @@ public class CampDevice extends Thread {
 			System.out.println("Found CAMP device: " + list.get(i).toString());
 		}
 		
-		/* ask request records and timetable from first device,
+		_submissions = new SubmissionQueue("Camp", new SubmissionQueue.Sender() {
+			public boolean send(ArrayList<RequestRecord> records) {
+				// devices kept by jmdns listener, sender must not wait for network lookup
+				LinkedList<HostInfo> devices = _finder.getSimilarDeviceList();
+				return NetworkOperator.sendBroadcast(devices, records, null);
+			}
+		});
+		
+		/* ask request records and timetable from the healthiest device,
 		   considering they all synchronized */
 		if (!list.isEmpty()) {
-			HostInfo info = list.getFirst();
+			HostInfo info = PeerRegistry.best(list);
 			System.out.println("Requesting data from " + info.getName() + " about booking and timetable");			
-			_sqlite.mergeRequests( NetworkOperator.requestRecords(info) );			
+			// records are merged by chunks while they are received
+			RequestMerger merger = new RequestMerger(_sqlite);
+			NetworkOperator.requestRecords(info, merger);
+			merger.finish();
 			_sqlite.mergeTimetable( NetworkOperator.requestTimetable(info) );
 			System.out.println("Requesting finished");
 		}	
@@ -88,11 +105,17 @@ public class CampDevice extends Thread {
 	private void deinitiate_helper_threads() {
 		System.out.println("");
 		System.out.println("Closing application...");
+		/* send records waiting in submission queue */
+		_submissions.close();
+		
 		/* stop jmdns service in the _finderThread */ 
 		_finder.closeJmDNS();
 				
 		/* stop acceptor thread */
 		_accept.stopAccepting();
+		
+		/* close connections kept to other devices */
+		NetworkOperator.closeConnections();
 				
 		try {		
 			_accept.join();
@@ -252,7 +275,7 @@ public class CampDevice extends Thread {
 	
 	private void sendTakeOff()
 	{
-		LinkedList<HostInfo> list = _finder.jmdnsRequestDevices("_helicopter._tcp.local.");
+		LinkedList<HostInfo> list = _finder.findDevices("_helicopter._tcp.local.");
 		if (list.isEmpty()) {
 			System.out.println("No helicopters in the system.");
 		} else {
@@ -345,11 +368,12 @@ public class CampDevice extends Thread {
 		notifyAllDevices(cancel);
 	}
 	
-	private void notifyAllDevices(RequestRecord record) {
-		LinkedList<HostInfo> devices = _finder.requestSimilarDeviceList();
-		ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();
-		requests.add(record);
-		NetworkOperator.sendBroadcast(devices, requests, null);
+	/**
+	 * Records created close in time are sent together (see SubmissionQueue)
+	 * @return true when record is delivered to all other camps
+	 */
+	private Future<Boolean> notifyAllDevices(RequestRecord record) {
+		return _submissions.submit(record);
 	}
 
 	private int readInt() {
@@ -3,7 +3,6 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import java.util.LinkedList;
-import java.util.ListIterator;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceEvent;
@@ -31,15 +30,17 @@ public class ActiveDeviceFinder {
 	/* own service name */
 	private String _deviceName = null;
 	
-	/* list of all devices */
-	private LinkedList<HostInfo> _devices = null;	
+	/* devices of the same type, not including _myself */
+	private PeerRegistry _peers = new PeerRegistry();
+	
+	/* devices of other types, kept up-to-date by jmdns listeners */
+	private DiscoveryRegistry _registry = null;
 
 	/* Creating JmDNS instance and registering the local service */
 	public ActiveDeviceFinder(String serviceType, String deviceName, int port)
 	{		
 		_serviceType = serviceType;
 		_deviceName = deviceName;		
-		_devices = new LinkedList<HostInfo>();
 		
 		try {
 			_myself = new HostInfo(_deviceName, InetAddress.getLocalHost().getHostAddress(), port);
@@ -51,6 +52,7 @@ public class ActiveDeviceFinder {
 			InetAddress Address = InetAddress.getLocalHost();
 			System.out.println("Current device: " + _myself.getIp() + ":" + _myself.getPort());			
 			_jmdns = JmDNS.create(Address);
+			_registry = new DiscoveryRegistry(_jmdns);
 			System.out.println("JmDNS instance created.");
 
 			_jmdns.addServiceListener(_serviceType, new SampleListener(this));			
@@ -71,25 +73,35 @@ public class ActiveDeviceFinder {
 	 */
 	public LinkedList<HostInfo> requestSimilarDeviceList()
 	{
-		_devices.clear();
-		
-		LinkedList<HostInfo> devices = jmdnsRequestDevices(_serviceType);
-		ListIterator<HostInfo> li = devices.listIterator();
-        while (li.hasNext()) {
-        	HostInfo info = li.next();
-        	saveHostInfo(info.getName(), info.getIp(), info.getPort());
-        }
-        
-        return _devices;
+		LinkedList<HostInfo> devices = new LinkedList<HostInfo>();
+		for (HostInfo info : jmdnsRequestDevices(_serviceType)) {
+			// do not save myself
+			if (!info.getIp().equals(_myself.getIp()) || info.getPort() != _myself.getPort()) {
+				devices.add(info);
+			}
+		}
+		// saved devices are replaced, not cleared - readers don't see empty list
+		_peers.retainOnly(devices);
+		return new LinkedList<HostInfo>(_peers.getPeers());
 	}		
 	
 	/**
-	 * Just returns current list of saved devices, not including _myself.
-	 * Might be not up-to-date.
+	 * Just returns copy of current list of saved devices, not including _myself.
+	 * Might be not up-to-date, but it could be used while devices are added
+	 * or removed by jmdns listener. Doesn't take time.
 	 */
 	public LinkedList<HostInfo> getSimilarDeviceList()
 	{
-		return _devices;
+		return new LinkedList<HostInfo>(_peers.getPeers());
+	}
+	
+	/**
+	 * @return registry of devices with the same type, for reading them
+	 * without copying and for listening to their changes
+	 */
+	public PeerRegistry getPeerRegistry()
+	{
+		return _peers;
 	}
 	
 	/**
@@ -102,16 +114,38 @@ public class ActiveDeviceFinder {
 	}
 	
 	/**
-	 *  Requesting the list of services with specific type. Might take some time. 
+	 *  Gives the list of devices with specific type known by registry.
+	 *  Doesn't take time, unless no such devices are known yet.
 	 */
-	public synchronized LinkedList<HostInfo> jmdnsRequestDevices(String type)
+	public LinkedList<HostInfo> findDevices(String type)
+	{
+		return _registry.getDevices(type);
+	}
+	
+	/**
+	 *  Gives the healthiest device with specific type (see PeerRegistry.best()).
+	 *  Doesn't take time, unless no such devices are known yet.
+	 *  @return device or null if there are no devices of the type
+	 */
+	public HostInfo findBestDevice(String type)
+	{
+		return _registry.getBestDevice(type);
+	}
+	
+	/**
+	 *  Requesting the list of services with specific type. Might take some time.
+	 *  Services without known address are skipped.
+	 */
+	public LinkedList<HostInfo> jmdnsRequestDevices(String type)
 	{
 		LinkedList<HostInfo> devices = new LinkedList<HostInfo>();
 		ServiceInfo[] serviceInfos = _jmdns.list(type);			
 		for (ServiceInfo info : serviceInfos) 
 		{
-			HostInfo device = new HostInfo(info.getName(), info.getInet4Addresses()[0].getHostAddress(), info.getPort());	
-			devices.add(device);
+			HostInfo device = DiscoveryRegistry.hostInfoOf(info);
+			if (device != null) {
+				devices.add(device);
+			}
 		}
 		return devices;		
 	}
@@ -120,6 +154,7 @@ public class ActiveDeviceFinder {
 	 *  Closes down jmdns instance and unregisters all services
 	 */
 	public synchronized void closeJmDNS() {
+		_registry.close();
 		_jmdns.unregisterAllServices();
 		System.out.print("Wait for JmDNS instance to be released... ");
 		try {
@@ -134,41 +169,21 @@ public class ActiveDeviceFinder {
 	 * Here we save CAMP device if it has not been saved yet 
 	 * and if it is not _myself
 	 */
-	private synchronized void saveHostInfo(String name, String ip, int port)
+	private void saveHostInfo(String name, String ip, int port)
 	{
 		// do not save myself into CAMP devices
 		if (ip.equals(_myself.getIp()) && port == _myself.getPort()) {
 			return;
 		}
-		
-		// check if such info has been saved before
-		ListIterator<HostInfo> li = _devices.listIterator();
-        while (li.hasNext()) {
-        	HostInfo info = li.next();
-        	
-        	// if this host has been saved - do not save it
-        	if (ip.equals(info.getIp()) && info.getPort() == port) {        		
-        		return;
-        	}
-        }
-        
-        // finally, save host info
-        _devices.add(new HostInfo(name, ip, port));
+		_peers.add(new HostInfo(name, ip, port));
 	}
 	
 	/**
 	 *  Here we remove info about CAMP device from our list
 	 */
-	private synchronized void forgetHostInfo(String ip, int port)
+	private void forgetHostInfo(String ip, int port)
 	{		
-		ListIterator<HostInfo> li = _devices.listIterator();
-        while (li.hasNext()) {
-        	HostInfo info = li.next();        	
-        	if (ip.equals(info.getIp()) && info.getPort() == port) { 
-        		_devices.remove(li.nextIndex() - 1);
-        		return;
-        	}        	
-        }
+		_peers.remove(ip, port);
 	}
 
 	/*
@@ -176,30 +191,39 @@ public class ActiveDeviceFinder {
 	 * 	to notify about new devices appeared in the network 
 	 */
 	static class SampleListener implements ServiceListener {		
+		// services which are not resolved yet have no address, they are saved when resolved
 		public void serviceAdded(ServiceEvent event) {
-			String name = event.getInfo().getName();
-			String ip = event.getInfo().getInet4Addresses()[0].getHostAddress();
-			int port = event.getInfo().getPort(); 
-			System.out.println("Service added: " + ip);
+			HostInfo device = DiscoveryRegistry.hostInfoOf(event.getInfo());
+			if (device == null) {
+				return;
+			}
+			System.out.println("Service added: " + device.getIp());
 			if (this.finder != null) {
-				this.finder.saveHostInfo(name, ip, port);
+				this.finder.saveHostInfo(device.getName(), device.getIp(), device.getPort());
 			}
 		}
 		public void serviceRemoved(ServiceEvent event) {			
-			String ip = event.getInfo().getInet4Addresses()[0].getHostAddress();
-			int port = event.getInfo().getPort();
-			System.out.println("Service removed: " + ip);
+			HostInfo device = DiscoveryRegistry.hostInfoOf(event.getInfo());
+			if (device == null) {
+				// address of removed service could be already forgotten by jmdns
+				if (this.finder != null) {
+					this.finder._peers.removeNamed(event.getName());
+				}
+				return;
+			}
+			System.out.println("Service removed: " + device.getIp());
 			if (this.finder != null) {
-				this.finder.forgetHostInfo(ip, port);				
+				this.finder.forgetHostInfo(device.getIp(), device.getPort());				
 			}
 		}
 		public void serviceResolved(ServiceEvent event) {        	
-			String name = event.getInfo().getName();
-			String ip = event.getInfo().getInet4Addresses()[0].getHostAddress();
-			int port = event.getInfo().getPort();
-			System.out.println("Service resolved: " + ip);
+			HostInfo device = DiscoveryRegistry.hostInfoOf(event.getInfo());
+			if (device == null) {
+				return;
+			}
+			System.out.println("Service resolved: " + device.getIp());
 			if (this.finder != null) {
-				this.finder.saveHostInfo(name, ip, port);
+				this.finder.saveHostInfo(device.getName(), device.getIp(), device.getPort());
 			}
 		}
 		
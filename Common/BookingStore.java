@@ -0,0 +1,251 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.TreeMap;
+
+/**
+ * 	This class keeps request records of the database in memory, so that
+ * 	devices read them without querying the database. Records are indexed by:
+ * 		ticket				- all records in ticket order (as in the database)
+ * 		passenger name		- booking records
+ * 		booked ticket		- canceling record of the booking
+ * 		checked state		- records not checked by air company yet
+ * 		flight and date		- number of confirmed bookings
+ * 
+ * 	Store is changed by DatabaseConnector only after the database is changed
+ * 	and it is not synchronized itself. Stored records are never given out,
+ * 	readers get copies which they may change freely.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class BookingStore {
+	private TreeMap<Long, RequestRecord> 				_byTicket = new TreeMap<Long, RequestRecord>();
+	private TreeMap<Long, RequestRecord> 				_notChecked = new TreeMap<Long, RequestRecord>();
+	private HashMap<String, ArrayList<RequestRecord>> 	_byName = new HashMap<String, ArrayList<RequestRecord>>();
+	private HashMap<Long, RequestRecord> 				_cancelFor = new HashMap<Long, RequestRecord>();
+
+	/* confirmed bookings by {flight number, flight date} - see seatKey() */
+	private LongIntMap 									_confirmedSeats = new LongIntMap(256);
+
+	public int size() {
+		return _byTicket.size();
+	}
+
+	public boolean contains(long ticket) {
+		return _byTicket.containsKey(ticket);
+	}
+
+	/**
+	 * @return whether record with the ticket is stored and has given state
+	 */
+	public boolean hasState(long ticket, int flight_number, boolean confirmed, boolean checked)
+	{
+		RequestRecord stored = _byTicket.get(ticket);
+		return stored != null && stored.getFlightNumber() == flight_number 
+				&& stored.isConfirmed() == confirmed && stored.isChecked() == checked;
+	}
+
+	/**
+	 * @return copy of the record or null
+	 */
+	public RequestRecord get(long ticket)
+	{
+		return copyOf(_byTicket.get(ticket));
+	}
+
+	/**
+	 * Stores copy of the record, record with the same ticket is replaced
+	 */
+	public void put(RequestRecord record)
+	{
+		remove(record.getTicket());
+
+		RequestRecord stored = new RequestRecord(record, record.isConfirmed(), record.isChecked());
+		_byTicket.put(stored.getTicket(), stored);
+		if (!stored.isChecked()) {
+			_notChecked.put(stored.getTicket(), stored);
+		}
+		if (stored.getRequestType() == 0) {
+			ArrayList<RequestRecord> bookings = _byName.get(stored.getPassengerName());
+			if (bookings == null) {
+				bookings = new ArrayList<RequestRecord>(1);
+				_byName.put(stored.getPassengerName(), bookings);
+			}
+			bookings.add(stored);
+			countSeat(stored, 1);
+		} else {
+			Long booking = bookedTicketOf(stored);
+			if (booking != null && !_cancelFor.containsKey(booking)) {
+				_cancelFor.put(booking, stored);
+			}
+		}
+	}
+
+	/**
+	 * Changes state of stored record
+	 */
+	public void setState(long ticket, boolean confirmed, boolean checked)
+	{
+		RequestRecord stored = _byTicket.get(ticket);
+		if (stored != null) {
+			put(new RequestRecord(stored, confirmed, checked));
+		}
+	}
+
+	/**
+	 * @return whether record was stored
+	 */
+	public boolean remove(long ticket)
+	{
+		RequestRecord stored = _byTicket.remove(ticket);
+		if (stored == null) {
+			return false;
+		}
+		_notChecked.remove(ticket);
+		if (stored.getRequestType() == 0) {
+			ArrayList<RequestRecord> bookings = _byName.get(stored.getPassengerName());
+			bookings.remove(stored);
+			if (bookings.isEmpty()) {
+				_byName.remove(stored.getPassengerName());
+			}
+			countSeat(stored, -1);
+		} else {
+			Long booking = bookedTicketOf(stored);
+			if (booking != null && _cancelFor.get(booking) == stored) {
+				_cancelFor.remove(booking);
+			}
+		}
+		return true;
+	}
+
+	public void clear()
+	{
+		_byTicket.clear();
+		_notChecked.clear();
+		_byName.clear();
+		_cancelFor.clear();
+		_confirmedSeats.clear();
+	}
+
+	/**
+	 * @param requestType booking (0) or canceling (1)
+	 * @return copies of records of the type in ticket order
+	 */
+	public ArrayList<RequestRecord> getRequests(int requestType)
+	{
+		ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();
+		for (RequestRecord stored : _byTicket.values()) {
+			if (stored.getRequestType() == requestType) {
+				requests.add(copyOf(stored));
+			}
+		}
+		return requests;
+	}
+
+	public ArrayList<RequestRecord> getNotChecked()
+	{
+		return copiesOf(_notChecked.values());
+	}
+
+	public ArrayList<RequestRecord> getBookingsByName(String name)
+	{
+		ArrayList<RequestRecord> bookings = _byName.get(name);
+		return (bookings == null) ? new ArrayList<RequestRecord>() : copiesOf(bookings);
+	}
+
+	/**
+	 * @return copy of canceling record for the booking or null
+	 */
+	public RequestRecord getCancelingFor(long ticket)
+	{
+		return copyOf(_cancelFor.get(ticket));
+	}
+
+	/**
+	 * @param day flight date as FlightCalendar.toEpochDay() gives
+	 * @return tickets of bookings for flights before the day
+	 */
+	public ArrayList<Long> getBookingsBefore(int day)
+	{
+		ArrayList<Long> tickets = new ArrayList<Long>();
+		for (RequestRecord stored : _byTicket.values()) {
+			if (stored.getRequestType() == 0 && stored.getFlightDate() != null 
+					&& FlightCalendar.toEpochDay(stored.getFlightDate()) < day) {
+				tickets.add(stored.getTicket());
+			}
+		}
+		return tickets;
+	}
+
+	/**
+	 * Canceling record whose booking is not known could come before the booking,
+	 * it is kept until it is older than bookings being removed.
+	 * @param gone tickets of bookings being removed
+	 * @param createdBefore canceling records without booking created before this time are resolved
+	 * @return tickets of canceling records whose booking is gone
+	 */
+	public ArrayList<Long> getResolvedCancelings(Collection<Long> gone, long createdBefore)
+	{
+		ArrayList<Long> tickets = new ArrayList<Long>();
+		for (RequestRecord stored : _byTicket.values()) {
+			if (stored.getRequestType() != 1) {
+				continue;
+			}
+			Long booking = bookedTicketOf(stored);
+			if (booking == null || gone.contains(booking)
+					|| (!_byTicket.containsKey(booking) && TicketGenerator.timeOf(stored.getTicket()) < createdBefore)) {
+				tickets.add(stored.getTicket());
+			}
+		}
+		return tickets;
+	}
+
+	/**
+	 * @param day flight date as FlightCalendar.toEpochDay() gives
+	 */
+	public int getConfirmedSeats(int flight_number, int day)
+	{
+		return _confirmedSeats.get(seatKey(flight_number, day), 0);
+	}
+
+	private void countSeat(RequestRecord booking, int delta)
+	{
+		if (booking.isConfirmed() && booking.getFlightDate() != null) {
+			_confirmedSeats.add(seatKey(booking.getFlightNumber(), FlightCalendar.toEpochDay(booking.getFlightDate())), delta);
+		}
+	}
+
+	private static long seatKey(int flight_number, int day)
+	{
+		return ((long)flight_number << 32) | (day & 0xffffffffL);
+	}
+
+	/**
+	 * Canceling record keeps ticket of canceled booking as passenger name
+	 */
+	private static Long bookedTicketOf(RequestRecord canceling)
+	{
+		try {
+			return Long.valueOf(canceling.getPassengerName());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static RequestRecord copyOf(RequestRecord stored)
+	{
+		return (stored == null) ? null : new RequestRecord(stored, stored.isConfirmed(), stored.isChecked());
+	}
+
+	private static ArrayList<RequestRecord> copiesOf(Iterable<RequestRecord> stored)
+	{
+		ArrayList<RequestRecord> copies = new ArrayList<RequestRecord>();
+		for (RequestRecord record : stored) {
+			copies.add(copyOf(record));
+		}
+		return copies;
+	}
+}
@@ -0,0 +1,59 @@
+import java.util.ArrayList;
+
+/**
+ * 	This class presents changes of request records made after some
+ * 	sequence number of the change log (see DatabaseConnector):
+ * 		records		- added or updated request records
+ * 		removed		- tickets of removed request records
+ * 		sequence	- latest change log sequence number included
+ * 		origin		- name of air company which sends changes
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class ChangeSet {
+	private String 						_origin = null;
+	private int 						_sequence;
+	private ArrayList<RequestRecord> 	_records = new ArrayList<RequestRecord>();
+	private ArrayList<Long> 			_removed = new ArrayList<Long>();
+
+	public ChangeSet(int sequence)
+	{
+		_sequence = sequence;
+	}
+
+	public String getOrigin() {
+		return _origin;
+	}
+
+	public void setOrigin(String origin) {
+		_origin = origin;
+	}
+
+	public int getSequence() {
+		return _sequence;
+	}
+
+	public void setSequence(int sequence) {
+		_sequence = sequence;
+	}
+
+	public ArrayList<RequestRecord> getRecords() {
+		return _records;
+	}
+
+	public ArrayList<Long> getRemoved() {
+		return _removed;
+	}
+
+	public boolean isEmpty() {
+		return _records.isEmpty() && _removed.isEmpty();
+	}
+
+	public String toString() {
+		return "changes up to " + _sequence + " from " + _origin + ": "
+				+ _records.size() + " records, " + _removed.size() + " removed";
+	}
+}
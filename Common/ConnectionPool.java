@@ -0,0 +1,198 @@
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
+
+/**
+ *  This class keeps long-lived connections to other devices (air companies,
+ *  camp devices and helicopters), so that TCP and object stream setup is not
+ *  paid for every command.
+ *
+ *  Connection is borrowed for one command exchange and released back after it.
+ *  Several connections could be kept for the same host if it is used by
+ *  several threads at the same time.
+ *
+ *  Idle connections are closed by eviction timer. Connection which has been idle
+ *  for some time is checked by "ping" command before it is given out.
+ *
+ *  Record format is negotiated for every new connection, as accepting side
+ *  keeps it for the connection. Hosts found to be without negotiation are
+ *  remembered, so that new connections to them don't ask again.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class ConnectionPool {
+	/* idle connections are closed after this time (less than server keep-alive timeout) */
+	public static final long 	IDLE_TIMEOUT = 30 * 1000;
+
+	/* connections idle longer than this are pinged before use */
+	public static final long 	CHECK_INTERVAL = 5 * 1000;
+
+	public static final int 	CONNECT_TIMEOUT = 5 * 1000;
+
+	/* reading reply from other device fails after this time */
+	public static final int 	READ_TIMEOUT = 15 * 1000;
+
+	/* maximum number of idle connections kept for one host */
+	public static final int 	MAX_IDLE_PER_HOST = 4;
+
+	/* idle connections by host, most recently used first */
+	private HashMap<String, LinkedList<PeerConnection>> _idle = new HashMap<String, LinkedList<PeerConnection>>();
+
+	/* WireCodec versions agreed with hosts */
+	private HashMap<String, Integer> _codecs = new HashMap<String, Integer>();
+
+	private Timer 				_evictionTimer = null;
+
+	/**
+	 * Key of the host in the pool {ip:port}
+	 */
+	public static String keyOf(HostInfo info)
+	{
+		return info.getIp() + ":" + info.getPort();
+	}
+
+	/**
+	 * Gives idle connection to the host or opens new one.
+	 * @param info destination host credentials
+	 * @return connection ready for command exchange
+	 */
+	public PeerConnection borrow(HostInfo info) throws IOException
+	{
+		String key = keyOf(info);
+		PeerConnection connection = null;
+		while ((connection = pollIdle(key)) != null)
+		{
+			if (connection.isOpen() && (connection.idleTime() < CHECK_INTERVAL || connection.ping())) {
+				return connection;
+			}
+			connection.close();
+		}
+
+		connection = new PeerConnection(info, CONNECT_TIMEOUT, READ_TIMEOUT);
+		Integer codec = knownCodec(key);
+		if (codec != null && codec == WireCodec.LEGACY) {
+			connection.setCodec(codec);
+			return connection;
+		}
+		try {
+			rememberCodec(key, connection.negotiateCodec());
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+		return connection;
+	}
+
+	/**
+	 * Returns connection to the pool after successful command exchange.
+	 */
+	public void release(PeerConnection connection)
+	{
+		synchronized (this) {
+			LinkedList<PeerConnection> connections = _idle.get(connection.getKey());
+			if (connections == null) {
+				connections = new LinkedList<PeerConnection>();
+				_idle.put(connection.getKey(), connections);
+			}
+			if (connection.isOpen() && connections.size() < MAX_IDLE_PER_HOST) {
+				connections.addFirst(connection);
+				startEvictionTimer();
+				return;
+			}
+		}
+		connection.close();
+	}
+
+	/**
+	 * Closes connection which failed during command exchange.
+	 */
+	public void discard(PeerConnection connection)
+	{
+		if (connection != null) {
+			connection.close();
+		}
+	}
+
+	/**
+	 * Closes all idle connections.
+	 */
+	public void closeAll()
+	{
+		LinkedList<PeerConnection> connections = new LinkedList<PeerConnection>();
+		synchronized (this) {
+			for (LinkedList<PeerConnection> list : _idle.values()) {
+				connections.addAll(list);
+			}
+			_idle.clear();
+		}
+		for (PeerConnection connection : connections) {
+			connection.close();
+		}
+	}
+
+	private synchronized Integer knownCodec(String key)
+	{
+		return _codecs.get(key);
+	}
+
+	private synchronized void rememberCodec(String key, int codec)
+	{
+		_codecs.put(key, codec);
+	}
+
+	private synchronized PeerConnection pollIdle(String key)
+	{
+		LinkedList<PeerConnection> connections = _idle.get(key);
+		if (connections == null || connections.isEmpty()) {
+			return null;
+		}
+		return connections.removeFirst();
+	}
+
+	private void startEvictionTimer()
+	{
+		if (_evictionTimer == null) {
+			_evictionTimer = new Timer("ConnectionPool eviction", true);
+			_evictionTimer.schedule(new TimerTask() {
+				public void run() {
+					evictIdle();
+				}
+			}, IDLE_TIMEOUT / 2, IDLE_TIMEOUT / 2);
+		}
+	}
+
+	/**
+	 * Closes connections which have been idle longer than IDLE_TIMEOUT
+	 */
+	private void evictIdle()
+	{
+		LinkedList<PeerConnection> expired = new LinkedList<PeerConnection>();
+		synchronized (this) {
+			Iterator<Map.Entry<String, LinkedList<PeerConnection>>> hosts = _idle.entrySet().iterator();
+			while (hosts.hasNext()) {
+				LinkedList<PeerConnection> connections = hosts.next().getValue();
+				Iterator<PeerConnection> li = connections.iterator();
+				while (li.hasNext()) {
+					PeerConnection connection = li.next();
+					if (connection.idleTime() >= IDLE_TIMEOUT || !connection.isOpen()) {
+						li.remove();
+						expired.add(connection);
+					}
+				}
+				if (connections.isEmpty()) {
+					hosts.remove();
+				}
+			}
+		}
+		for (PeerConnection connection : expired) {
+			connection.close();
+		}
+	}
+}
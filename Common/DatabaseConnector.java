@@ -1,17 +1,52 @@
+import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Properties;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
 
 
 /**
  * 	This class is designed to operate with single file SQLite database using 
  * 	JDBC driver for connection between java and SQLite
+ * 
+ * 	Every change of request records (insertion, update or removal) is written
+ * 	to the change log with increasing sequence number. Air companies use it
+ * 	to exchange only changes made since the last synchronization (see ChangeSet).
+ * 
+ * 	All queries have bound parameters and are prepared once per connection,
+ * 	prepared statements are kept until closeConnection() is called.
+ * 
+ * 	Database is kept in WAL mode: one connection writes under the write lock,
+ * 	while queries go through a pool of read-only connections and see the last
+ * 	committed state without waiting for the writer. Records of BookingStore
+ * 	are read under its own lock, which writer takes only to apply committed changes.
+ * 	Properties database.wal, database.readers and database.synchronous tune it.
+ * 
+ * 	Working set is kept proportional to upcoming flights by periodic compaction
+ * 	(see compact()): bookings of past flights are moved to RequestsArchive table,
+ * 	resolved canceling records are dropped and free pages are given back to
+ * 	the file system. Properties database.compaction.period, database.retention
+ * 	and database.vacuum.pages tune it.
+ * 
+ * 	Timetable has version which is increased by every its change (see
+ * 	getTimetableVersion()), devices keeping timetable ask it only if it is changed.
+ * 
+ * 	Request records are loaded to BookingStore when connector is created and
+ * 	it is changed together with the database, so records and number of
+ * 	confirmed seats are read from memory. Device should use single connector
+ * 	for its database, otherwise changes made by other connector are not seen.
  */
 
 /**
@@ -20,7 +55,57 @@ import java.util.Date;
  */
 public class DatabaseConnector {
 	
+	/* the only connection changing the database, used with _writeLock held */
 	Connection connection = null;     
+	private StatementCache _writer = null;
+	private ReentrantLock _writeLock = new ReentrantLock();
+	
+	/* read-only connections which are not used now */
+	private LinkedBlockingQueue<StatementCache> _readers = new LinkedBlockingQueue<StatementCache>();
+	private ArrayList<StatementCache> _allReaders = new ArrayList<StatementCache>();
+	
+	/* SQLITE_OPEN_READONLY flag of the driver */
+	private static final int READ_ONLY = 1;
+	
+	/* write-ahead log lets reads go during writes, otherwise all queries use the writing connection */
+	public static final boolean WAL = !"false".equals(System.getProperty("database.wal"));
+	
+	/* number of read-only connections in WAL mode */
+	public static final int READERS = Integer.getInteger("database.readers", 2);
+	
+	/* PRAGMA synchronous of the writing connection: OFF, NORMAL or FULL */
+	public static final String SYNCHRONOUS = synchronousMode(System.getProperty("database.synchronous", "NORMAL"));
+	
+	/* minutes between compactions, 0 turns compaction off */
+	public static final int COMPACTION_PERIOD = Integer.getInteger("database.compaction.period", 60);
+	
+	/* days after flight date when its bookings are archived */
+	public static final int RETENTION_DAYS = Integer.getInteger("database.retention", 1);
+	
+	/* free pages given back to the file system by one compaction at most */
+	public static final int VACUUM_PAGES = Integer.getInteger("database.vacuum.pages", 1024);
+	
+	private Timer _compactionTimer = null;
+	
+	/* 
+	 * Layout of tables, kept in PRAGMA user_version:
+	 * 	0 - flight date is "dd/MM/yyyy" text (FlightDate)
+	 * 	1 - flight date is number of days since 01/01/1970 (FlightDay),
+	 * 		flight time is kept also as minutes since midnight (FlightMinute)
+	 */
+	private static final int SCHEMA_VERSION = 1;
+	
+	/* number of seats of the flight if it is not specified in timetable */
+	public static final int DEFAULT_CAPACITY = 6;
+	
+	/* request records of the database */
+	private BookingStore _store = new BookingStore();
+	
+	/* seats by flight number */
+	private LongIntMap _capacities = new LongIntMap(64);
+	
+	/* increased by every change of timetable, devices ask timetable only if it is changed */
+	private volatile long _timetableVersion = 0;
 	
 	/**
 	 *	Connecting to the database with provided file path.
@@ -31,8 +116,25 @@ public class DatabaseConnector {
 		try{
 			Class.forName("org.sqlite.JDBC"); 
 			connection = DriverManager.getConnection("jdbc:sqlite:" + databasePath);
+			_writer = new StatementCache(connection);
+			
+			// takes effect for new database only, existing one is converted by compact()
+			executeQuery("PRAGMA auto_vacuum=INCREMENTAL");
+			boolean wal = WAL && enableWal();
+			// in WAL mode NORMAL syncs only at checkpoints and database is still consistent
+			executeQuery("PRAGMA synchronous=" + SYNCHRONOUS);
 			
 			createTablesIfNotExist();
+			loadRequests();
+			loadCapacities();
+			loadTimetableVersion();
+			
+			if (wal) {
+				openReaders(databasePath, READERS);
+			}
+			if (COMPACTION_PERIOD > 0) {
+				scheduleCompaction(COMPACTION_PERIOD * 60 * 1000L);
+			}
 		}
 		catch (ClassNotFoundException e){
 			System.err.println("Class not found");		
@@ -41,6 +143,19 @@ public class DatabaseConnector {
 		}
 	}
 
+	/**
+	 * @return mode if it is known to PRAGMA synchronous, NORMAL otherwise
+	 */
+	private static String synchronousMode(String mode)
+	{
+		String upper = mode.trim().toUpperCase(Locale.ENGLISH);
+		if (upper.equals("OFF") || upper.equals("NORMAL") || upper.equals("FULL")) {
+			return upper;
+		}
+		System.err.println("Unknown database.synchronous mode " + mode + ", NORMAL is used");
+		return "NORMAL";
+	}
+	
 	/**
 	 * Creating timetable and requests tables if they are absent
 	 */
@@ -48,14 +163,46 @@ public class DatabaseConnector {
 	{		 
 		String timetableQuery = "CREATE TABLE IF NOT EXISTS Timetable " 
 					+ "(FlightNumber integer NOT NULL PRIMARY KEY UNIQUE,FlightTime time NOT NULL,"
-					+ "Direction integer NOT NULL,AirCompany text NOT NULL);";
+					+ "Direction integer NOT NULL,AirCompany text NOT NULL,"
+					+ "Capacity integer NOT NULL DEFAULT " + DEFAULT_CAPACITY + ","
+					+ "FlightMinute integer NOT NULL DEFAULT " + FlightCalendar.NO_TIME + ");";
 		executeQuery(timetableQuery);
+		addColumnIfAbsent("Timetable", "Capacity", "integer NOT NULL DEFAULT " + DEFAULT_CAPACITY);
+		
+		executeQuery(requestsTableQuery("Requests"));
+		
+		// bookings of past flights, moved by compact()
+		executeQuery(requestsTableQuery("RequestsArchive"));
+		
+		// tables created by older versions are converted
+		if (getSchemaVersion() < SCHEMA_VERSION) {
+			migrate();
+		}
+		
+		// for queries by range of flight dates
+		executeQuery("CREATE INDEX IF NOT EXISTS RequestsByDay ON Requests (FlightDay);");
+		
+		// one row per ticket - the latest change of the request record
+		String changeLogQuery = "CREATE TABLE IF NOT EXISTS ChangeLog "
+					+ "(Sequence integer PRIMARY KEY AUTOINCREMENT,Ticket integer NOT NULL UNIQUE,"
+					+ "Removed boolean NOT NULL,Origin text);";
+		executeQuery(changeLogQuery);
+		
+		// replication state of other air companies
+		String peersQuery = "CREATE TABLE IF NOT EXISTS Peers "
+					+ "(Company text NOT NULL PRIMARY KEY UNIQUE,SentSequence integer NOT NULL DEFAULT 0,"
+					+ "ReceivedSequence integer NOT NULL DEFAULT 0);";
+		executeQuery(peersQuery);
 		
-		String requestsQuery = "CREATE TABLE IF NOT EXISTS Requests " 
-					+ "(Ticket integer NOT NULL PRIMARY KEY UNIQUE,PassengerName text NOT NULL," 
-					+ "FlightNumber integer,FlightDate text,Direction integer,RequestType integer NOT NULL," 
-					+ "TicketType integer,Confirmed boolean NOT NULL, Checked boolean NOT NULL);";
-		executeQuery(requestsQuery);
+		// seats lent by air company operating the flight to other companies
+		String quotasQuery = "CREATE TABLE IF NOT EXISTS SeatQuotas "
+					+ "(FlightNumber integer NOT NULL,FlightDay integer NOT NULL,Holder text NOT NULL,"
+					+ "Seats integer NOT NULL DEFAULT 0,Used integer NOT NULL DEFAULT 0,"
+					+ "PRIMARY KEY (FlightNumber,FlightDay,Holder));";
+		executeQuery(quotasQuery);
+		
+		// single row - version of the timetable
+		executeQuery("CREATE TABLE IF NOT EXISTS TimetableVersion (Version integer NOT NULL);");
 	}
 	
 	private void executeQuery(String query)
@@ -70,294 +217,413 @@ public class DatabaseConnector {
 		}
 	}
 	
-//-------------------------   REQUESTS  ----------------------------
+	private static String requestsTableQuery(String tableName)
+	{
+		return "CREATE TABLE IF NOT EXISTS " + tableName + " " 
+				+ "(Ticket integer NOT NULL PRIMARY KEY UNIQUE,PassengerName text NOT NULL," 
+				+ "FlightNumber integer,FlightDay integer,Direction integer,RequestType integer NOT NULL," 
+				+ "TicketType integer,Confirmed boolean NOT NULL, Checked boolean NOT NULL);";
+	}
 	
-	public synchronized ArrayList<RequestRecord> getAllRequests()
+	/**
+	 * Adds column to the table created by older version of this class
+	 */
+	private void addColumnIfAbsent(String tableName, String column, String definition)
 	{
-		ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();
-		requests.addAll(getBookRequests());
-		requests.addAll(getCancelRequests());
-		return requests;
+		try {
+			if (!hasColumn(tableName, column)) {
+				executeQuery("ALTER TABLE " + tableName + " ADD COLUMN " + column + " " + definition);
+			}
+		} catch (SQLException e) {
+			System.err.println("Could not check columns of " + tableName);
+			e.printStackTrace();
+		}
 	}
 	
-	public synchronized ArrayList<RequestRecord> getBookRequests()
+	private boolean hasColumn(String tableName, String column) throws SQLException
 	{
-		ArrayList<RequestRecord> bookings = new ArrayList<RequestRecord>();
-
-		Statement statement = null;
-		ResultSet table = null;		
-		String query = "SELECT * FROM Requests WHERE RequestType = '0'";
-		try {			
-			statement = connection.createStatement();			
-			table = statement.executeQuery(query);
-			while (table.next()) {								
-				RequestRecord record = getBookingFrom(table);
-				if (record != null) {
-					bookings.add(record);
-				}
-			}			
-			statement.close();				
+		Statement statement = connection.createStatement();
+		ResultSet table = statement.executeQuery("PRAGMA table_info(" + tableName + ")");
+		boolean present = false;
+		while (table.next()) {
+			present |= column.equalsIgnoreCase(table.getString("name"));
+		}
+		table.close();
+		statement.close();
+		return present;
+	}
+	
+	private int getSchemaVersion()
+	{
+		int version = 0;
+		try {
+			Statement statement = connection.createStatement();
+			ResultSet table = statement.executeQuery("PRAGMA user_version");
+			if (table.next()) {
+				version = table.getInt(1);
+			}
 			table.close();
+			statement.close();
 		} catch (SQLException e) {
-			System.out.println("Problem with SQL in timetable request code");			
+			System.err.println("Could not read schema version");
+			e.printStackTrace();
 		}
-		return bookings;		
+		return version;
 	}
 	
-	public synchronized ArrayList<RequestRecord> getCancelRequests()
-	{		
-		ArrayList<RequestRecord> cancelings = new ArrayList<RequestRecord>();
-
-		Statement statement = null;
-		ResultSet table = null;		
-		String query = "SELECT * FROM Requests WHERE RequestType = '1'";
-		try {			
-			statement = connection.createStatement();			
-			table = statement.executeQuery(query);
-			while (table.next()) 
-			{
-				RequestRecord record = getCancelingFrom(table);
-				if (record != null) {
-					cancelings.add(record);	
+	/**
+	 * Converts tables from older layout to SCHEMA_VERSION in single transaction.
+	 * If it fails, nothing is changed and it is tried again next time.
+	 */
+	private void migrate()
+	{
+		try {
+			connection.setAutoCommit(false);
+			Statement statement = connection.createStatement();
+			try {
+				// (1) Requests: FlightDate text to FlightDay number, table is copied as columns can't be dropped
+				boolean converted = false;
+				if (hasColumn("Requests", "FlightDate")) {
+					statement.execute(requestsTableQuery("RequestsCopy"));
+					statement.execute("INSERT INTO RequestsCopy SELECT Ticket,PassengerName,FlightNumber,"
+							+ "CAST(julianday(substr(FlightDate,7,4)||'-'||substr(FlightDate,4,2)||'-'||substr(FlightDate,1,2))"
+							+ " - julianday('1970-01-01') AS integer),"
+							+ "Direction,RequestType,TicketType,Confirmed,Checked FROM Requests");
+					statement.execute("DROP TABLE Requests");
+					statement.execute("ALTER TABLE RequestsCopy RENAME TO Requests");
+					converted = true;
 				}
-			}			
-			statement.close();				
-			table.close();
+				
+				// (2) Timetable: FlightMinute is added, FlightTime text is kept for showing
+				if (!hasColumn("Timetable", "FlightMinute")) {
+					statement.execute("ALTER TABLE Timetable ADD COLUMN FlightMinute integer NOT NULL DEFAULT " 
+							+ FlightCalendar.NO_TIME);
+					PreparedStatement update = prepareBatch("UPDATE Timetable SET FlightMinute = ? WHERE FlightNumber = ?");
+					ResultSet table = statement.executeQuery("SELECT FlightNumber,FlightTime FROM Timetable");
+					while (table.next()) {
+						update.setInt(1, FlightCalendar.toMinuteOfDay(table.getString("FlightTime")));
+						update.setInt(2, table.getInt("FlightNumber"));
+						update.addBatch();
+					}
+					table.close();
+					update.executeBatch();
+					converted = true;
+				}
+				
+				statement.execute("PRAGMA user_version = " + SCHEMA_VERSION);
+				connection.commit();
+				if (converted) {
+					System.out.println("Database is converted to schema version " + SCHEMA_VERSION);
+				}
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				statement.close();
+				connection.setAutoCommit(true);
+			}
 		} catch (SQLException e) {
-			System.out.println("Problem with SQL in timetable request code");			
+			System.err.println("Could not convert database to schema version " + SCHEMA_VERSION);
+			e.printStackTrace();
 		}
-		return cancelings;		
 	}
 	
-	public synchronized void addRequestRecord(RequestRecord record)
+	/**
+	 * Gives prepared statement of the writing connection for the query,
+	 * must be called with _writeLock held (or from constructor)
+	 */
+	private PreparedStatement prepare(String query) throws SQLException
+	{
+		return _writer.prepare(query);
+	}
+	
+	/**
+	 * Gives prepared statement of the writing connection for batch execution,
+	 * the same way as prepare() does
+	 */
+	private PreparedStatement prepareBatch(String query) throws SQLException
 	{
-		if (isRecordInDatabase(record.getTicket())) {
-			return;
-		}
-		
-		if (record.getRequestType() == 0) {
-			addBookRecord(record);
+		return _writer.prepareBatch(query);
+	}
+	
+	/**
+	 * Gives connection for read-only queries. In WAL mode it is one of read-only
+	 * connections which doesn't wait for writes, otherwise it is the writing
+	 * connection and the write lock is taken. Must be given back by releaseReader().
+	 */
+	private StatementCache borrowReader()
+	{
+		if (_allReaders.isEmpty()) {
+			_writeLock.lock();
+			return _writer;
 		}
-		else {
-			addCancelRecord(record);
+		try {
+			return _readers.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			_writeLock.lock();
+			return _writer;
 		}
 	}
 	
-	private synchronized void addBookRecord(RequestRecord book)
+	private void releaseReader(StatementCache reader)
 	{
-		if (book.getRequestType() != 0) {
-			System.out.println("SQLiteConnector. Unable to add canceling record as booking.");
-			return;
-		}		
-		
-		String confirmed = (book.isConfirmed()) ? "1" : "0";
-		String checked = (book.isChecked()) ? "1" : "0";		
-
-		SimpleDateFormat ft = new SimpleDateFormat ("dd/MM/yyyy");
-		String date = ft.format(book.getFlightDate());
-		String query = "INSERT INTO Requests (Ticket,PassengerName,FlightNumber,FlightDate,Direction," 
-				+ "RequestType,TicketType,Confirmed,Checked) VALUES (" 
-				+ book.getTicket() + ","
-				+ "\"" + book.getPassengerName() + "\","
-				+ book.getFlightNumber() + ","
-				+ "\"" + date + "\","
-				+ book.getDirection() + ","
-				+ book.getRequestType() + ","
-				+ book.getTicketType() + ","
-				+ confirmed + ","
-				+ checked + ")";
-		//System.out.println(query);
-		executeQuery(query);
-	}
-	
-	private synchronized void addCancelRecord(RequestRecord cancel)
-	{
-		if (cancel.getRequestType() != 1) {
-			System.out.println("SQLiteConnector. Unable to add booking record as canceling.");
-			return;
+		if (reader == _writer) {
+			_writeLock.unlock();
+		} else {
+			_readers.offer(reader);
 		}
-		
-		String confirmed = (cancel.isConfirmed()) ? "1" : "0";
-		String checked = (cancel.isChecked()) ? "1" : "0";
-		String query = "INSERT INTO Requests (Ticket,PassengerName,FlightNumber,FlightDate,Direction," 
-				+ "RequestType,TicketType,Confirmed,Checked) VALUES (" 
-				+ cancel.getTicket() + ","
-				+ "\"" + cancel.getPassengerName() + "\","
-				+ "NULL" + ","
-				+ "NULL" + ","
-				+ "NULL" + ","
-				+ cancel.getRequestType() + ","
-				+ "NULL" + ","
-				+ confirmed + ","
-				+ checked + ")";
-		//System.out.println(query);
-		executeQuery(query);
-	}
-	
-	public synchronized RequestRecord getCancelRequestByTicket(int ticket)
-	{
-		String query = "SELECT * FROM REQUESTS WHERE RequestType = '1' and Ticket=" + ticket;
-		RequestRecord record = null;
-		
-		Statement statement = null;
-		ResultSet table = null;	
-		try {			
-			statement = connection.createStatement();
-			table = statement.executeQuery(query);
-			while (table.next()) {				
-				record = getCancelingFrom(table);				
-				// considering the unique tickets for each request
-				break;			
-			}			
-			statement.close();				
-			table.close();
+	}
+	
+	/**
+	 * Switches database to write-ahead log, so that readers don't wait for writer
+	 * @return whether database is in WAL mode
+	 */
+	private boolean enableWal()
+	{
+		try {
+			// journal_mode gives new mode as result, so it is run as query
+			Statement statement = connection.createStatement();
+			ResultSet result = statement.executeQuery("PRAGMA journal_mode=WAL");
+			boolean wal = result.next() && "wal".equalsIgnoreCase(result.getString(1));
+			result.close();
+			statement.close();
+			return wal;
 		} catch (SQLException e) {
-			System.out.println("Problem with SQL in cancel request by ticket code");			
+			System.err.println("Could not switch database to WAL mode");
+			e.printStackTrace();
 		}
-		return record;
-		
+		return false;
 	}
 	
-	public synchronized RequestRecord getCancelRequestForTicket(int ticket)
+	/**
+	 * Opens read-only connections to the database
+	 */
+	private void openReaders(String databasePath, int count) throws SQLException
 	{
-		String query = "SELECT * FROM REQUESTS WHERE RequestType = '1' and PassengerName=\"" + String.valueOf(ticket) + "\"";
-		RequestRecord record = null;
-		
-		Statement statement = null;
-		ResultSet table = null;	
-		try {			
-			statement = connection.createStatement();
-			table = statement.executeQuery(query);
-			while (table.next()) {				
-				record = getCancelingFrom(table);				
-				// considering the unique tickets for each request
-				break;			
-			}			
-			statement.close();				
-			table.close();
-		} catch (SQLException e) {
-			System.out.println("Problem with SQL in cancel request by ticket code");			
+		Properties properties = new Properties();
+		properties.setProperty("open_mode", Integer.toString(READ_ONLY));
+		for (int i = 0; i < count; ++i) {
+			StatementCache reader = new StatementCache(DriverManager.getConnection("jdbc:sqlite:" + databasePath, properties));
+			_allReaders.add(reader);
+			_readers.add(reader);
 		}
-		return record;
 	}
 	
-	private RequestRecord getCancelingFrom(ResultSet table) throws SQLException
+//-------------------------   REQUESTS  ----------------------------
+	
+	public ArrayList<RequestRecord> getAllRequests()
 	{
-		if (table == null || table.getInt("RequestType") != 1) {
-			return null;
+		synchronized (_store) {
+			ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();
+			requests.addAll(getBookRequests());
+			requests.addAll(getCancelRequests());
+			return requests;
 		}
+	}
+	
+	public ArrayList<RequestRecord> getBookRequests()
+	{
+		synchronized (_store) {
+			return _store.getRequests(0);
+		}
+	}
+	
+	public ArrayList<RequestRecord> getCancelRequests()
+	{
+		synchronized (_store) {
+			return _store.getRequests(1);
+		}
+	}
+	
+	public void addRequestRecord(RequestRecord record)
+	{
+		_writeLock.lock();
+		try {
+			if (_store.contains(record.getTicket())) {
+				return;
+			}
 		
-		RequestRecord result = new RequestRecord(table.getString("PassengerName"), table.getInt("RequestType"));
-		result.setTicket(table.getInt("Ticket"));
-		if (table.getBoolean("Confirmed")){
-			result.confirm();
-		}
-		if (table.getBoolean("Checked")){
-			result.markAsChecked();
-		}	
-		return result;
+			try {
+				PreparedStatement statement = prepare(INSERT_REQUEST);
+				bindRequest(statement, record);
+				statement.executeUpdate();
+			} catch (SQLException e) {
+				System.err.println("Could not add request " + record.toString());
+				e.printStackTrace();
+				return;
+			}
+			synchronized (_store) {
+				_store.put(record);
+			}
+			logChange(record.getTicket(), false, null);
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return copy of the request record or null
+	 */
+	public RequestRecord getRequest(long ticket)
+	{
+		synchronized (_store) {
+			return _store.get(ticket);
+		}
+	}
+	
+	public RequestRecord getCancelRequestByTicket(long ticket)
+	{
+		synchronized (_store) {
+			RequestRecord record = _store.get(ticket);
+			return (record != null && record.getRequestType() == 1) ? record : null;
+		}
+	}
+	
+	public RequestRecord getCancelRequestForTicket(long ticket)
+	{
+		synchronized (_store) {
+			return _store.getCancelingFor(ticket);
+		}
+	}
+	
+	public ArrayList<RequestRecord> getBookRecordsByName(String name)
+	{
+		synchronized (_store) {
+			return _store.getBookingsByName(name);
+		}
 	}
 	
-	public synchronized ArrayList<RequestRecord> getBookRecordsByName(String name)
+	/**
+	 * Gives bookings for flights in range of dates, uses index on FlightDay
+	 * @param first first flight date of the range
+	 * @param last last flight date of the range (inclusive)
+	 * @return bookings ordered by flight date
+	 */
+	public ArrayList<RequestRecord> getBookRecordsBetween(Date first, Date last)
 	{
-		String query = "SELECT * FROM REQUESTS WHERE PassengerName=" + name;
-		return getBookRecordsByQuery(query);
+		StatementCache reader = borrowReader();
+		try {
+			try {
+				PreparedStatement statement = reader.prepare("SELECT * FROM Requests "
+						+ "WHERE FlightDay BETWEEN ? AND ? AND RequestType = 0 ORDER BY FlightDay");
+				statement.setInt(1, FlightCalendar.toEpochDay(first));
+				statement.setInt(2, FlightCalendar.toEpochDay(last));
+				return getRequestsByQuery(statement);
+			} catch (SQLException e) {
+				System.out.println("Problem with SQL in bookings by dates request code");
+			}
+			return new ArrayList<RequestRecord>();
+		} finally {
+			releaseReader(reader);
+		}
 	}
 
 	/**
-	 * This function is used to simplify getting bookings from database
-	 * by using SELECT-like query, specified with WHERE field,
-	 * for example: SELECT * FROM REQUESTS WHERE FlightDate="11/12/2012"
+	 * Walks all request records by database cursor in order of tickets,
+	 * so that they are not collected in memory. Records are read from one
+	 * snapshot of the database, writes go on meanwhile in WAL mode.
+	 * @param visitor receives records, its IOException stops walking
+	 */
+	public void forEachRequest(RequestVisitor visitor) throws IOException
+	{
+		StatementCache reader = borrowReader();
+		try {
+			ResultSet table = reader.prepare("SELECT * FROM Requests ORDER BY Ticket").executeQuery();
+			try {
+				RequestRowMapper mapper = null;
+				while (table.next()) {
+					if (mapper == null) {
+						mapper = new RequestRowMapper(table);
+					}
+					RequestRecord record = mapper.map(table);
+					if (record != null) {
+						visitor.visit(record);
+					}
+				}
+			} finally {
+				table.close();
+			}
+		} catch (SQLException e) {
+			System.out.println("Problem with SQL in requests walking code");
+		} finally {
+			releaseReader(reader);
+		}
+	}
+	
+	/**
+	 * This function is used to simplify getting requests from database
+	 * by prepared SELECT-like query with bound parameters,
+	 * for example: SELECT * FROM Requests WHERE FlightDay = ?
 	 * 
-	 * @param query - string with SELECT query
-	 * @return first item from results
+	 * @param statement - prepared SELECT query
+	 * @return booking and canceling records from results
 	 */
-	private ArrayList<RequestRecord> getBookRecordsByQuery(String query) {
-		ArrayList<RequestRecord> bookings = new ArrayList<RequestRecord>();
-		
-		Statement statement = null;
-		ResultSet table = null;	
-		RequestRecord record = null;
-		try {			
-			statement = connection.createStatement();
-			table = statement.executeQuery(query);
+	private ArrayList<RequestRecord> getRequestsByQuery(PreparedStatement statement) throws SQLException
+	{
+		ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();
+		ResultSet table = statement.executeQuery();
+		try {
+			RequestRowMapper mapper = null;
 			while (table.next()) {
-				if (table.getInt("RequestType") != 0) {
-					continue;
+				// empty result set is closed at once, so columns are looked up at the first row
+				if (mapper == null) {
+					mapper = new RequestRowMapper(table);
 				}
-				record = getBookingFrom(table);
+				RequestRecord record = mapper.map(table);
 				if (record != null) {
-					bookings.add(record);
+					requests.add(record);
 				}
-			}			
-			statement.close();				
+			}
+		} finally {
 			table.close();
-		} catch (SQLException e) {
-			System.out.println("Problem with SQL in timetable request code");			
 		}
-		return bookings;
+		return requests;
 	}	
 	
-	private RequestRecord getBookingFrom(ResultSet table) throws SQLException
-	{	
-		if (table == null || table.getInt("RequestType") != 0) {
-			return null;
-		}
-		
-		RequestRecord result = null;
-		SimpleDateFormat ft = new SimpleDateFormat ("dd/MM/yyyy");
-		Date date = null;
-		try{
-			date = ft.parse(table.getString("FlightDate"));
-		} catch(ParseException e) {
-			System.err.println("SQLiteConnector. Failed to parse string: " + table.getString("FlightDate") + ".");
-			return null;
-		}
-		
-		result = new RequestRecord(table.getString("PassengerName"), 
-				table.getInt("FlightNumber"), date, table.getInt("Direction"),
-				table.getInt("RequestType"), table.getInt("TicketType"));
-		result.setTicket(table.getInt("Ticket"));
-		if (table.getBoolean("Confirmed")){
-			result.confirm();
-		}
-		if (table.getBoolean("Checked")){
-			result.markAsChecked();
-		}	
-		return result;
-	}
-	
 //------------------------------------   TIMETABLE ----------------------------------------------
 	
-	public synchronized ArrayList<TimeTableEntry> getTimeTable()
+	public ArrayList<TimeTableEntry> getTimeTable()
 	{
-		String query = "SELECT * FROM Timetable ORDER BY FlightTime";
-		
-		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();		
-		Statement statement = null;
-		ResultSet table = null;		
-		try {			
-			statement = connection.createStatement();
-			table = statement.executeQuery(query);
-			while (table.next()) {			
-				TimeTableEntry entry = new TimeTableEntry(table.getInt("FlightNumber"), table.getString("FlightTime"), 
-						table.getInt("Direction"), table.getString("AirCompany"));
-				timetable.add(entry);				
-			}			
-			statement.close();				
-			table.close();
-		} catch (SQLException e) {
-			System.out.println("Problem with SQL in timetable request code");			
+		StatementCache reader = borrowReader();
+		try {
+			ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();		
+			try {			
+				ResultSet table = reader.prepare("SELECT * FROM Timetable ORDER BY FlightMinute,FlightTime").executeQuery();
+				while (table.next()) {			
+					timetable.add(getEntryFrom(table));				
+				}			
+				table.close();
+			} catch (SQLException e) {
+				System.out.println("Problem with SQL in timetable request code");			
+			}
+			return timetable;		
+		} finally {
+			releaseReader(reader);
 		}
-		return timetable;		
 	}
 	
-	public synchronized void addTimeTableEntry(TimeTableEntry entry)
+	public void addTimeTableEntry(TimeTableEntry entry)
 	{
-		String query = "INSERT INTO Timetable (FlightTime, Direction, AirCompany) VALUES (\"" 
-				+ entry.getTime() +"\", "+ entry.getDirection() +", \"" + entry.getAirCompany() + "\")";
-		//System.out.println(query);
-		executeQuery(query);
+		_writeLock.lock();
+		try {
+			try {
+				PreparedStatement statement = prepare(INSERT_FLIGHT);
+				bindFlight(statement, entry);
+				if (statement.executeUpdate() > 0) {
+					writeNextTimetableVersion();
+					++_timetableVersion;
+					synchronized (_store) {
+						_capacities.put(entry.getFlightNumber(), capacityOf(entry));
+					}
+				}
+			} catch (SQLException e) {
+				System.err.println("Could not add timetable entry " + entry.toString());
+				e.printStackTrace();
+			}
+		} finally {
+			_writeLock.unlock();
+		}
 	}
 	
 	/**
@@ -367,33 +633,53 @@ public class DatabaseConnector {
 	 * @param flight_number number of flight in our timetable
 	 * @return timetable entry for specified flight (CHECK FOR null!)
 	 */
-	public synchronized TimeTableEntry getTimeTableEntry(int flight_number)
-	{
-		String query = "SELECT * FROM TIMETABLE WHERE FlightNumber=" + flight_number;				
-		Statement statement = null;
-		ResultSet table = null;	
-		TimeTableEntry entry = null;
-		try {			
-			statement = connection.createStatement();
-			table = statement.executeQuery(query);
-			while (table.next()) {	
-				entry = new TimeTableEntry(table.getInt("FlightNumber"), table.getString("FlightTime"), 
-						table.getInt("Direction"), table.getString("AirCompany"));								
-			}			
-			statement.close();				
-			table.close();
-		} catch (SQLException e) {
-			System.out.println("Problem with SQL in timetable request code");			
+	public TimeTableEntry getTimeTableEntry(int flight_number)
+	{
+		StatementCache reader = borrowReader();
+		try {
+			TimeTableEntry entry = null;
+			try {			
+				PreparedStatement statement = reader.prepare("SELECT * FROM Timetable WHERE FlightNumber = ?");
+				statement.setInt(1, flight_number);
+				ResultSet table = statement.executeQuery();
+				if (table.next()) {	
+					entry = getEntryFrom(table);								
+				}			
+				table.close();
+			} catch (SQLException e) {
+				System.out.println("Problem with SQL in timetable request code");			
+			}
+			return entry;	
+		} finally {
+			releaseReader(reader);
 		}
-		return entry;	
 	}
 	
+	private TimeTableEntry getEntryFrom(ResultSet table) throws SQLException
+	{
+		return new TimeTableEntry(table.getInt("FlightNumber"), table.getString("FlightTime"), 
+				table.getInt("Direction"), table.getString("AirCompany"), table.getInt("Capacity"));
+	}
+	
+	/**
+	 * Closes prepared statements and connection to the database
+	 */
 	public void closeConnection()
 	{
+		if (_compactionTimer != null) {
+			_compactionTimer.cancel();
+		}
+		_writeLock.lock();
 		try {
-			connection.close();
-		} catch (SQLException e) {
-			System.out.println("Failed to close connection to SQLite");
+			// reader being used now fails its query and gives empty result
+			for (StatementCache reader : _allReaders) {
+				reader.close();
+			}
+			_allReaders.clear();
+			_readers.clear();
+			_writer.close();
+		} finally {
+			_writeLock.unlock();
 		}
 	}
 	
@@ -401,110 +687,728 @@ public class DatabaseConnector {
 	/*
 	 * Assume that we will need to either add requests or update them in the database.
 	 * Assume that fresh data is more important and up-to-date for us.
+	 * 
+	 * Records are merged in single transaction by batches of prepared statements:
+	 * new records are inserted (existing are ignored), then the rest are updated.
+	 * Only really changed rows are counted in MergeResult and written to the change log.
 	 */	
-	public void mergeRequests(ArrayList<RequestRecord> requests) 
+	
+	private static final String INSERT_REQUEST = "INSERT OR IGNORE INTO Requests "
+			+ "(Ticket,PassengerName,FlightNumber,FlightDay,Direction,RequestType,TicketType,Confirmed,Checked) "
+			+ "VALUES (?,?,?,?,?,?,?,?,?)";
+	
+	private static final String INSERT_FLIGHT = "INSERT OR IGNORE INTO Timetable "
+			+ "(FlightNumber,FlightTime,Direction,AirCompany,FlightMinute,Capacity) VALUES (?,?,?,?,?,?)";
+	
+	private static final String DELETE_REQUEST = "DELETE FROM Requests WHERE Ticket = ?";
+	
+	private static final String UPDATE_CONFIRMED = "UPDATE Requests SET Confirmed=? WHERE Ticket=? AND Confirmed<>?";
+	
+	public MergeResult mergeRequests(ArrayList<RequestRecord> requests) 
 	{
-		if (requests == null) {
-			System.out.println("no requests to merge");
-			return;
+		_writeLock.lock();
+		try {
+			if (requests == null) {
+				System.out.println("no requests to merge");
+				return new MergeResult();
+			}
+		
+			try {
+				return mergeRequests(requests, null, null);
+			} catch (SQLException e) {
+				System.err.println("Failed to merge requests");
+				e.printStackTrace();
+				return new MergeResult();
+			}
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * @param requests added or updated records
+	 * @param removed tickets of removed records (may be null)
+	 * @param origin air company which made the changes, null for local changes
+	 * @throws SQLException if merge failed - nothing is changed then
+	 */
+	private MergeResult mergeRequests(ArrayList<RequestRecord> requests, ArrayList<Long> removed, 
+			String origin) throws SQLException 
+	{
+		// records are compared with the store, so that unchanged ones don't reach the database
+		ArrayList<RequestRecord> fresh = new ArrayList<RequestRecord>();
+		ArrayList<RequestRecord> present = new ArrayList<RequestRecord>();
+		for (RequestRecord record : requests) {
+			if (!_store.contains(record.getTicket())) {
+				fresh.add(record);
+			} else if (!_store.hasState(record.getTicket(), record.getFlightNumber(), record.isConfirmed(), record.isChecked())) {
+				present.add(record);
+			}
 		}
+		ArrayList<Long> deleted = new ArrayList<Long>();
+		if (removed != null) {
+			for (Long ticket : removed) {
+				if (_store.contains(ticket)) {
+					deleted.add(ticket);
+				}
+			}
+		}
+		
+		MergeResult result = new MergeResult();
+		ArrayList<RequestRecord> inserted = new ArrayList<RequestRecord>();
+		ArrayList<RequestRecord> updated = new ArrayList<RequestRecord>();
+		ArrayList<Long> changed = new ArrayList<Long>();
 		
-		for (int i = 0; i < requests.size(); ++i)
-		{
-			RequestRecord record = requests.get(i);
-			if (isRecordInDatabase(record.getTicket()))	{
-				updateRequest(record);
+		connection.setAutoCommit(false);
+		try {
+			// (1) insert new records
+			PreparedStatement insert = prepareBatch(INSERT_REQUEST);
+			for (RequestRecord record : fresh) {
+				bindRequest(insert, record);
+				insert.addBatch();
+			}
+			int[] counts = (fresh.isEmpty()) ? new int[0] : insert.executeBatch();
+			for (int i = 0; i < fresh.size(); ++i) {
+				if (counts[i] > 0) {
+					inserted.add(fresh.get(i));
+				} else {
+					// the same ticket was twice in the list
+					present.add(fresh.get(i));
+				}
+			}
+			
+			// (2) update the rest - assume that only 'confirmed' and 'checked' fields can be updated,
+			// and flight number of ON_DEMAND booking placed by air company (see FlightAllocator),
+			// canceling records keep no flight
+			PreparedStatement update = prepareBatch("UPDATE Requests SET Confirmed=?,Checked=?,"
+					+ "FlightNumber=CASE WHEN RequestType=0 THEN ? ELSE FlightNumber END WHERE Ticket=?");
+			for (RequestRecord record : present) {
+				update.setBoolean(1, record.isConfirmed());
+				update.setBoolean(2, record.isChecked());
+				update.setInt(3, record.getFlightNumber());
+				update.setLong(4, record.getTicket());
+				update.addBatch();
+			}
+			counts = (present.isEmpty()) ? new int[0] : update.executeBatch();
+			for (int i = 0; i < present.size(); ++i) {
+				if (counts[i] > 0) {
+					updated.add(present.get(i));
+				}
+			}
+			
+			// (3) remove records
+			if (!deleted.isEmpty()) {
+				PreparedStatement delete = prepareBatch(DELETE_REQUEST);
+				for (Long ticket : deleted) {
+					delete.setLong(1, ticket);
+					delete.addBatch();
+				}
+				delete.executeBatch();
+			}
+			
+			// (4) only real changes are logged, so records don't travel between companies forever
+			for (RequestRecord record : inserted) {
+				changed.add(record.getTicket());
 			}
-			else if (record.getRequestType() == 0) {
-				addBookRecord(record);
+			for (RequestRecord record : updated) {
+				changed.add(record.getTicket());
 			}
-			else {
-				addCancelRecord(record);
+			logChanges(changed, false, origin);
+			logChanges(deleted, true, origin);
+			
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+		
+		// the store follows committed changes only, readers see them all at once
+		synchronized (_store) {
+			for (RequestRecord record : inserted) {
+				_store.put(record);
+				result.addInserted();
 			}
-		}		
+			for (RequestRecord record : updated) {
+				// seats are counted again, flight could be changed
+				_store.put(record);
+				result.addUpdated();
+			}
+			for (Long ticket : deleted) {
+				_store.remove(ticket);
+				result.addRemoved();
+			}
+		}
+		return result;
 	}
 	
 	/**
-	 * Assume that only 'confirmed' and 'checked' fields can be updated
-	 * @param record
+	 * Sets all request fields to insert statement (canceling records have no flight data)
 	 */
-	private void updateRequest(RequestRecord record) {		
-		// update request record (checked and confirmed fields)			
-		String confirmed = (record.isConfirmed()) ? "1" : "0";
-		String checked = (record.isChecked()) ? "1" : "0";					
-		String query = "UPDATE Requests SET " + "Confirmed=" + confirmed + ","
-				+"Checked=" + checked + " WHERE Ticket=" + record.getTicket() + ";";			
-		executeQuery(query);			
+	private void bindRequest(PreparedStatement statement, RequestRecord record) throws SQLException
+	{
+		boolean booking = (record.getRequestType() == 0);
+		statement.setLong(1, record.getTicket());
+		statement.setString(2, record.getPassengerName());
+		if (booking) {
+			statement.setInt(3, record.getFlightNumber());
+			statement.setInt(4, FlightCalendar.toEpochDay(record.getFlightDate()));
+			statement.setInt(5, record.getDirection());
+			statement.setInt(7, record.getTicketType());
+		} else {
+			statement.setNull(3, Types.INTEGER);
+			statement.setNull(4, Types.INTEGER);
+			statement.setNull(5, Types.INTEGER);
+			statement.setNull(7, Types.INTEGER);
+		}
+		statement.setInt(6, record.getRequestType());
+		statement.setBoolean(8, record.isConfirmed());
+		statement.setBoolean(9, record.isChecked());
+	}
+	
+	/**
+	 * @return version of the timetable, it is increased by every change
+	 */
+	public long getTimetableVersion()
+	{
+		return _timetableVersion;
+	}
+	
+	/**
+	 * Writes increased version of the timetable, must be called with _writeLock held.
+	 * Version in memory is increased by caller after commit, so that timetable
+	 * read after getTimetableVersion() is never older than the version.
+	 */
+	private void writeNextTimetableVersion() throws SQLException
+	{
+		PreparedStatement statement = prepare("UPDATE TimetableVersion SET Version = ?");
+		statement.setLong(1, _timetableVersion + 1);
+		statement.executeUpdate();
+	}
+	
+	private void bindFlight(PreparedStatement statement, TimeTableEntry entry) throws SQLException
+	{
+		statement.setInt(1, entry.getFlightNumber());
+		statement.setString(2, entry.getTime());
+		statement.setInt(3, entry.getDirection());
+		statement.setString(4, entry.getAirCompany());
+		statement.setInt(5, FlightCalendar.toMinuteOfDay(entry.getTime()));
+		statement.setInt(6, capacityOf(entry));
+	}
+	
+	/**
+	 * @return number of seats of the entry, DEFAULT_CAPACITY if sender doesn't know it
+	 */
+	private static int capacityOf(TimeTableEntry entry)
+	{
+		return (entry.getCapacity() > 0) ? entry.getCapacity() : DEFAULT_CAPACITY;
 	}
 
-	private boolean isRecordInDatabase(int ticket)
+	/* unknown number of seats is bound as null */
+	private static void bindCapacity(PreparedStatement statement, int index, TimeTableEntry entry) throws SQLException
 	{
-		boolean inDatabase = false;
-		String query = "SELECT * FROM Requests WHERE Ticket = '" + ticket + "'";
-		ResultSet resultSet = null;		
-		try {			
-			Statement statement = connection.createStatement();
-			resultSet = statement.executeQuery(query);	
-			if (resultSet.next()){
-				inDatabase = true;				
+		if (entry.getCapacity() > 0) {
+			statement.setInt(index, entry.getCapacity());
+		} else {
+			statement.setNull(index, Types.INTEGER);
+		}
+	}
+
+	/**
+	 * Merges timetable in single transaction the same way as requests.
+	 * Flight time, direction, air company and number of seats could be updated,
+	 * number of seats is kept if the entry doesn't have it.
+	 */
+	public MergeResult mergeTimetable(ArrayList<TimeTableEntry> timetable) 
+	{
+		_writeLock.lock();
+		try {
+			MergeResult result = new MergeResult();
+			if (timetable == null) {
+				System.out.println("no timetable to merge");
+				return result;
 			}
-			statement.close();
+		
+			try {
+				connection.setAutoCommit(false);
+				try {
+					PreparedStatement insert = prepareBatch(INSERT_FLIGHT);
+					for (TimeTableEntry entry : timetable) {
+						bindFlight(insert, entry);
+						insert.addBatch();
+					}
+					int[] inserted = (timetable.isEmpty()) ? new int[0] : insert.executeBatch();
+				
+					ArrayList<TimeTableEntry> present = new ArrayList<TimeTableEntry>();
+					for (int i = 0; i < timetable.size(); ++i) {
+						if (inserted[i] > 0) {
+							result.addInserted();
+						} else {
+							present.add(timetable.get(i));
+						}
+					}
+				
+					PreparedStatement update = prepareBatch("UPDATE Timetable SET "
+							+ "FlightTime=?,Direction=?,AirCompany=?,FlightMinute=?,Capacity=COALESCE(?,Capacity) WHERE FlightNumber=? "
+							+ "AND (FlightTime<>? OR Direction<>? OR AirCompany<>? OR Capacity<>COALESCE(?,Capacity))");
+					for (TimeTableEntry entry : present) {
+						update.setString(1, entry.getTime());
+						update.setInt(2, entry.getDirection());
+						update.setString(3, entry.getAirCompany());
+						update.setInt(4, FlightCalendar.toMinuteOfDay(entry.getTime()));
+						bindCapacity(update, 5, entry);
+						update.setInt(6, entry.getFlightNumber());
+						update.setString(7, entry.getTime());
+						update.setInt(8, entry.getDirection());
+						update.setString(9, entry.getAirCompany());
+						bindCapacity(update, 10, entry);
+						update.addBatch();
+					}
+					int[] updated = (present.isEmpty()) ? new int[0] : update.executeBatch();
+					for (int i = 0; i < present.size(); ++i) {
+						if (updated[i] > 0) {
+							result.addUpdated();
+						}
+					}
+					if (result.hasChanges()) {
+						writeNextTimetableVersion();
+					}
+				
+					connection.commit();
+				} catch (SQLException e) {
+					connection.rollback();
+					throw e;
+				} finally {
+					connection.setAutoCommit(true);
+				}
+			} catch (SQLException e) {
+				System.err.println("Failed to merge timetable");
+				e.printStackTrace();
+				return new MergeResult();
+			}
+			if (result.hasChanges()) {
+				++_timetableVersion;
+				synchronized (_store) {
+					loadCapacities();
+				}
+			}
+			return result;
+		} finally {
+			_writeLock.unlock();
+		}
+	}	
+	
+//-----------------------------   REPLICATION ----------------------------------
+	
+	/**
+	 * Writes change of request record to the change log with new sequence number.
+	 * Previous change of the same ticket is replaced.
+	 * @param origin air company which made the change, null for local changes
+	 */
+	private void logChange(long ticket, boolean removed, String origin)
+	{
+		ArrayList<Long> tickets = new ArrayList<Long>(1);
+		tickets.add(ticket);
+		try {
+			logChanges(tickets, removed, origin);
 		} catch (SQLException e) {
-			System.err.println("Could not execute query: " + query);
+			System.err.println("Could not log change of ticket " + ticket);
 			e.printStackTrace();
-		} 
-		return inDatabase;
+		}
 	}
-
-	public void mergeTimetable(ArrayList<TimeTableEntry> timetable) 
+	
+	private void logChanges(ArrayList<Long> tickets, boolean removed, String origin) throws SQLException
 	{
-		if (timetable == null) {
-			System.out.println("no timetable to merge");
+		if (tickets.isEmpty()) {
 			return;
 		}
-		
-		for (int i = 0; i < timetable.size(); ++i)
-		{
-			TimeTableEntry entry = timetable.get(i);
-			if (isFlightInDatabase(entry.getFlightNumber())) {
-				updateFlight(entry);
+		PreparedStatement statement = prepareBatch("INSERT OR REPLACE INTO ChangeLog (Ticket,Removed,Origin) VALUES (?,?,?)");
+		for (Long ticket : tickets) {
+			statement.setLong(1, ticket);
+			statement.setBoolean(2, removed);
+			statement.setString(3, origin);
+			statement.addBatch();
+		}
+		statement.executeBatch();
+	}
+	
+	/**
+	 * Collects changes of request records made after specified sequence number
+	 * @param sequence last sequence number known by other side
+	 * @param exceptOrigin changes made by this air company are skipped (may be null)
+	 * @return changes with the latest included sequence number (origin is not set)
+	 */
+	public ChangeSet getChangesSince(int sequence, String exceptOrigin)
+	{
+		_writeLock.lock();
+		try {
+			ChangeSet changes = new ChangeSet(sequence);
+			// records themselves are taken from the store
+			String query = "SELECT Sequence,Ticket,Removed FROM ChangeLog "
+					+ "WHERE Sequence > ? AND (Origin IS NULL OR Origin <> ?) ORDER BY Sequence";
+			try {
+				PreparedStatement statement = prepare(query);
+				statement.setInt(1, sequence);
+				statement.setString(2, (exceptOrigin == null) ? "" : exceptOrigin);
+				ResultSet table = statement.executeQuery();
+				while (table.next()) 
+				{
+					changes.setSequence(table.getInt("Sequence"));
+					if (table.getBoolean("Removed")) {
+						changes.getRemoved().add(table.getLong("Ticket"));
+						continue;
+					}
+					RequestRecord record = _store.get(table.getLong("Ticket"));
+					if (record != null) {
+						changes.getRecords().add(record);
+					}
+				}
+				table.close();
+			} catch (SQLException e) {
+				System.out.println("Problem with SQL in getChangesSince() code");
 			}
-			else {
-				addTimeTableEntry(entry);
+			return changes;
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Writes decisions of air company in single transaction: changed
+	 * state of decided records and removal of canceled ones.
+	 * @param decided checked (and confirmed) records
+	 * @param removed tickets of records to remove
+	 * @return result of the merge or null if decisions are not written
+	 */
+	public MergeResult applyDecisions(ArrayList<RequestRecord> decided, ArrayList<Long> removed)
+	{
+		_writeLock.lock();
+		try {
+			return mergeRequests(decided, removed, null);
+		} catch (SQLException e) {
+			System.err.println("Failed to write decisions");
+			e.printStackTrace();
+			return null;
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * Applies changes received from other air company and remembers
+	 * the latest sequence number received from it.
+	 */
+	public MergeResult mergeChanges(ChangeSet changes)
+	{
+		_writeLock.lock();
+		try {
+			try {
+				MergeResult result = mergeRequests(changes.getRecords(), changes.getRemoved(), changes.getOrigin());
+				setPeerSequence(changes.getOrigin(), "ReceivedSequence", "?", changes.getSequence());
+				return result;
+			} catch (SQLException e) {
+				// sequence is not remembered, so these changes will be received again
+				System.err.println("Failed to merge " + changes.toString());
+				e.printStackTrace();
+				return new MergeResult();
 			}
-		}		
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return sequence number of the latest change sent to air company
+	 */
+	public int getSentSequence(String company)
+	{
+		_writeLock.lock();
+		try {
+			return getPeerSequence(company, "SentSequence");
+		} finally {
+			_writeLock.unlock();
+		}
 	}
 	
-	private void updateFlight(TimeTableEntry entry) {
-		// update timetable entry (FlightTime, Direction and AirCompany fields)			
-		String direction = (entry.getDirection() == 1) ? "1" : "0";		
-		String query = "UPDATE Timetable SET " + "FlightTime='" + entry.getTime() + "', "
-				+"Direction=" + direction +", AirCompany='" + entry.getAirCompany() 
-				+ "' WHERE FlightNumber=" + entry.getFlightNumber() + ";";			
-		executeQuery(query);		
+	/**
+	 * Remembers the latest change sent to air company, sequence number never
+	 * goes back, so that push finished after a later one doesn't send changes again
+	 */
+	public void setSentSequence(String company, int sequence)
+	{
+		_writeLock.lock();
+		try {
+			setPeerSequence(company, "SentSequence", "MAX(SentSequence,?)", sequence);
+		} finally {
+			_writeLock.unlock();
+		}
 	}
-
-	private boolean isFlightInDatabase(int flightNumber) {
-		boolean inDatabase = false;
-		String query = "SELECT * FROM Timetable WHERE FlightNumber=" + flightNumber;
-		ResultSet resultSet = null;		
-		try {			
-			Statement statement = connection.createStatement();
-			resultSet = statement.executeQuery(query);	
-			if (resultSet.next()){
-				inDatabase = true;				
+	
+	/**
+	 * @return sequence number of the latest change received from air company
+	 */
+	public int getReceivedSequence(String company)
+	{
+		_writeLock.lock();
+		try {
+			return getPeerSequence(company, "ReceivedSequence");
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+	private int getPeerSequence(String company, String column)
+	{
+		int sequence = 0;
+		String query = "SELECT " + column + " FROM Peers WHERE Company = ?";
+		try {
+			PreparedStatement statement = prepare(query);
+			statement.setString(1, company);
+			ResultSet table = statement.executeQuery();
+			if (table.next()) {
+				sequence = table.getInt(1);
 			}
-			statement.close();
+			table.close();
 		} catch (SQLException e) {
 			System.err.println("Could not execute query: " + query);
 			e.printStackTrace();
-		} 
-		return inDatabase;
-	}	
+		}
+		return sequence;
+	}
 	
-	private void cleanUp()
+	/**
+	 * @param value expression of the new value, sequence is bound to it
+	 */
+	private void setPeerSequence(String company, String column, String value, int sequence)
 	{
-		// TODO implement - remove checked and not confirmed items
+		String update = "UPDATE Peers SET " + column + " = " + value + " WHERE Company = ?";
+		try {
+			PreparedStatement statement = prepare("INSERT OR IGNORE INTO Peers (Company) VALUES (?)");
+			statement.setString(1, company);
+			statement.executeUpdate();
+			
+			statement = prepare(update);
+			statement.setInt(1, sequence);
+			statement.setString(2, company);
+			statement.executeUpdate();
+		} catch (SQLException e) {
+			System.err.println("Could not execute query: " + update);
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * @return seats lent to other companies and borrowed from them
+	 */
+	public ArrayList<SeatQuota> getSeatQuotas()
+	{
+		ArrayList<SeatQuota> quotas = new ArrayList<SeatQuota>();
+		StatementCache reader = borrowReader();
+		try {
+			ResultSet table = reader.prepare("SELECT * FROM SeatQuotas").executeQuery();
+			while (table.next()) {
+				quotas.add(new SeatQuota(table.getInt("FlightNumber"), table.getInt("FlightDay"), 
+						table.getString("Holder"), table.getInt("Seats"), table.getInt("Used")));
+			}
+			table.close();
+		} catch (SQLException e) {
+			System.out.println("Problem with SQL in seat quotas request code");
+		} finally {
+			releaseReader(reader);
+		}
+		return quotas;
+	}
+	
+	/**
+	 * Stores seat quotas in single transaction, quotas without seats are removed
+	 */
+	public void saveSeatQuotas(ArrayList<SeatQuota> quotas)
+	{
+		if (quotas.isEmpty()) {
+			return;
+		}
+		_writeLock.lock();
+		try {
+			connection.setAutoCommit(false);
+			try {
+				PreparedStatement save = prepareBatch("INSERT OR REPLACE INTO SeatQuotas "
+						+ "(FlightNumber,FlightDay,Holder,Seats,Used) VALUES (?,?,?,?,?)");
+				PreparedStatement delete = prepareBatch("DELETE FROM SeatQuotas WHERE FlightNumber=? AND FlightDay=? AND Holder=?");
+				for (SeatQuota quota : quotas) {
+					if (quota.getSeats() == 0 && quota.getUsed() == 0) {
+						delete.setInt(1, quota.getFlightNumber());
+						delete.setInt(2, quota.getDay());
+						delete.setString(3, quota.getHolder());
+						delete.addBatch();
+					} else {
+						save.setInt(1, quota.getFlightNumber());
+						save.setInt(2, quota.getDay());
+						save.setString(3, quota.getHolder());
+						save.setInt(4, quota.getSeats());
+						save.setInt(5, quota.getUsed());
+						save.addBatch();
+					}
+				}
+				save.executeBatch();
+				delete.executeBatch();
+				connection.commit();
+			} catch (SQLException e) {
+				connection.rollback();
+				throw e;
+			} finally {
+				connection.setAutoCommit(true);
+			}
+		} catch (SQLException e) {
+			System.err.println("Could not save seat quotas");
+			e.printStackTrace();
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+//-----------------------------   COMPACTION ----------------------------------
+	
+	/**
+	 * Runs compact() periodically in background thread
+	 * @param period milliseconds between compactions
+	 */
+	private void scheduleCompaction(long period)
+	{
+		_compactionTimer = new Timer("Database compaction", true);
+		_compactionTimer.schedule(new TimerTask() {
+			public void run() {
+				MergeResult result = compact();
+				if (result.hasChanges()) {
+					System.out.println("Database compacted: " + result.toString());
+				}
+			}
+		}, period, period);
+	}
+	
+	/**
+	 * Removes records which are not needed by devices anymore in single transaction:
+	 * 		bookings of flights older than RETENTION_DAYS - moved to RequestsArchive,
+	 * 		canceling records whose booking is archived - dropped, those whose booking
+	 * 		is not known are dropped when they are older than RETENTION_DAYS,
+	 * 		change log rows of these records and removals received by all known
+	 * 		companies - dropped.
+	 * Then up to VACUUM_PAGES free pages are given back to the file system.
+	 * Removals are not sent to other companies, each of them compacts its own database.
+	 * @return number of removed records
+	 */
+	public MergeResult compact()
+	{
+		MergeResult result = new MergeResult();
+		int day = FlightCalendar.toEpochDay(new Date()) - RETENTION_DAYS;
+		_writeLock.lock();
+		try {
+			ArrayList<Long> archived;
+			ArrayList<Long> resolved;
+			synchronized (_store) {
+				archived = _store.getBookingsBefore(day);
+				resolved = _store.getResolvedCancelings(new HashSet<Long>(archived), 
+						System.currentTimeMillis() - RETENTION_DAYS * FlightCalendar.DAY_MILLIS);
+			}
+			
+			if (!archived.isEmpty() || !resolved.isEmpty()) {
+				try {
+					removeCompacted(archived, resolved);
+				} catch (SQLException e) {
+					System.err.println("Failed to compact requests");
+					e.printStackTrace();
+					return result;
+				}
+				synchronized (_store) {
+					for (Long ticket : archived) {
+						_store.remove(ticket);
+						result.addRemoved();
+					}
+					for (Long ticket : resolved) {
+						_store.remove(ticket);
+						result.addRemoved();
+					}
+				}
+			}
+			vacuum(VACUUM_PAGES);
+			return result;
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+	private void removeCompacted(ArrayList<Long> archived, ArrayList<Long> resolved) throws SQLException
+	{
+		connection.setAutoCommit(false);
+		try {
+			PreparedStatement archive = prepareBatch("INSERT OR REPLACE INTO RequestsArchive SELECT * FROM Requests WHERE Ticket = ?");
+			for (Long ticket : archived) {
+				archive.setLong(1, ticket);
+				archive.addBatch();
+			}
+			if (!archived.isEmpty()) {
+				archive.executeBatch();
+			}
+			
+			ArrayList<Long> removed = new ArrayList<Long>(archived);
+			removed.addAll(resolved);
+			PreparedStatement delete = prepareBatch(DELETE_REQUEST);
+			PreparedStatement forget = prepareBatch("DELETE FROM ChangeLog WHERE Ticket = ?");
+			for (Long ticket : removed) {
+				delete.setLong(1, ticket);
+				delete.addBatch();
+				forget.setLong(1, ticket);
+				forget.addBatch();
+			}
+			delete.executeBatch();
+			forget.executeBatch();
+			
+			// removals already received by every known company aren't needed in the log
+			prepare("DELETE FROM ChangeLog WHERE Removed = 1 "
+					+ "AND Sequence <= (SELECT MIN(SentSequence) FROM Peers)").executeUpdate();
+			
+			connection.commit();
+		} catch (SQLException e) {
+			connection.rollback();
+			throw e;
+		} finally {
+			connection.setAutoCommit(true);
+		}
+	}
+	
+	/**
+	 * Gives free pages of the database back to the file system. Database created
+	 * without incremental auto-vacuum is converted once by full VACUUM.
+	 * Must be called with _writeLock held.
+	 * @param pages maximal number of pages to give back
+	 */
+	private void vacuum(int pages)
+	{
+		try {
+			Statement statement = connection.createStatement();
+			try {
+				ResultSet mode = statement.executeQuery("PRAGMA auto_vacuum");
+				boolean incremental = mode.next() && mode.getInt(1) == 2;
+				mode.close();
+				if (!incremental) {
+					statement.execute("PRAGMA auto_vacuum=INCREMENTAL");
+					statement.execute("VACUUM");
+					System.out.println("Database is converted to incremental vacuum");
+					return;
+				}
+				ResultSet free = statement.executeQuery("PRAGMA freelist_count");
+				int count = free.next() ? Math.min(pages, free.getInt(1)) : 0;
+				free.close();
+				// every step of the pragma frees one page, driver makes only one step
+				for (int i = 0; i < count; ++i) {
+					statement.execute("PRAGMA incremental_vacuum(1)");
+				}
+			} finally {
+				statement.close();
+			}
+		} catch (SQLException e) {
+			System.err.println("Could not vacuum database");
+			e.printStackTrace();
+		}
 	}
 
 	
@@ -516,21 +1420,23 @@ public class DatabaseConnector {
 	 */
 	public boolean hasFlight(int flightNumber) 
 	{
-		boolean inDatabase = false;
-		String query = "SELECT * FROM Timetable WHERE FlightNumber = '" + flightNumber + "'";
-		ResultSet resultSet = null;		
-		try {			
-			Statement statement = connection.createStatement();
-			resultSet = statement.executeQuery(query);	
-			if (resultSet.next()){
-				inDatabase = true;				
-			}
-			statement.close();
-		} catch (SQLException e) {
-			System.err.println("Could not execute query: " + query);
-			e.printStackTrace();
-		} 
-		return inDatabase;
+		StatementCache reader = borrowReader();
+		try {
+			boolean inDatabase = false;
+			try {			
+				PreparedStatement statement = reader.prepare("SELECT 1 FROM Timetable WHERE FlightNumber = ?");
+				statement.setInt(1, flightNumber);
+				ResultSet resultSet = statement.executeQuery();	
+				inDatabase = resultSet.next();
+				resultSet.close();
+			} catch (SQLException e) {
+				System.err.println("Could not check flight " + flightNumber);
+				e.printStackTrace();
+			} 
+			return inDatabase;
+		} finally {
+			releaseReader(reader);
+		}
 	}
 
 	/**
@@ -540,56 +1446,192 @@ public class DatabaseConnector {
 	 */
 	public ArrayList<RequestRecord> getNotCheckedRequests() 
 	{
-		ArrayList<RequestRecord> notChecked = new ArrayList<RequestRecord>();
-		String query = "SELECT * FROM Requests WHERE Checked =  '0'";
-		Statement statement = null;
-		ResultSet table = null;	
-		try {			
-			statement = connection.createStatement();
-			table = statement.executeQuery(query);
-			while (table.next()) 
-			{
-				RequestRecord record = (table.getInt("RequestType") == 0) ? getBookingFrom(table) : getCancelingFrom(table);				
-				if (record != null) {
-					notChecked.add(record);
-				}
-			}			
-			statement.close();				
-			table.close();
-		} catch (SQLException e) {
-			System.out.println("Problem with SQL in notchecked() request code");			
+		synchronized (_store) {
+			return _store.getNotChecked();
 		}
-		return notChecked;
 	}
 
-	public void removeRequest(Integer req_number) 
+	public void removeRequest(long req_number) 
 	{
-		String query = "DELETE FROM Requests WHERE Ticket = " + String.valueOf(req_number);
-		executeQuery(query);
+		_writeLock.lock();
+		try {
+			if (!_store.contains(req_number)) {
+				return;
+			}
+		
+			try {
+				PreparedStatement statement = prepare(DELETE_REQUEST);
+				statement.setLong(1, req_number);
+				statement.executeUpdate();
+				synchronized (_store) {
+					_store.remove(req_number);
+				}
+				logChange(req_number, true, null);
+			} catch (SQLException e) {
+				System.err.println("Could not remove request " + req_number);
+				e.printStackTrace();
+			}
+		} finally {
+			_writeLock.unlock();
+		}
 	}
 
+	/**
+	 * Checks confirmed bookings of the flight against its capacity.
+	 * Doesn't query the database and doesn't create objects.
+	 */
 	public boolean flightHasFreeSeats(int flight_number, Date date) 
 	{
-		SimpleDateFormat ft = new SimpleDateFormat ("dd/MM/yyyy");		
-		
-		String query = "SELECT * FROM Requests WHERE FlightNumber =  '" 
-						+ flight_number +"' and FlightDate = \"" + ft.format(date) + "\"";
+		return getFreeSeats(flight_number, date) > 0;
+	}
+	
+	/**
+	 * @return number of not confirmed seats of the flight, could be negative
+	 * if capacity was reduced. Doesn't query the database.
+	 */
+	public int getFreeSeats(int flight_number, Date date)
+	{
+		synchronized (_store) {
+			int confirmed = _store.getConfirmedSeats(flight_number, FlightCalendar.toEpochDay(date));
+			return _capacities.get(flight_number, DEFAULT_CAPACITY) - confirmed;
+		}
+	}
+	
+	/**
+	 * Confirms booking in the database if its flight has free seats
+	 * @param booking booking record already stored in the database
+	 * @return whether booking is confirmed
+	 */
+	public boolean reserveSeat(RequestRecord booking)
+	{
+		_writeLock.lock();
+		try {
+			if (booking.getRequestType() != 0) {
+				return false;
+			}
+			if (booking.isConfirmed()) {
+				return true;
+			}
+			if (!flightHasFreeSeats(booking.getFlightNumber(), booking.getFlightDate())) {
+				return false;
+			}
 		
-		Statement statement = null;
-		ResultSet table = null;
-		int count = 0;
-		try {			
-			statement = connection.createStatement();
-			table = statement.executeQuery(query);
-			while (table.next()) 
-			{
-				++count;
-			}			
-			statement.close();				
+			try {
+				PreparedStatement statement = prepare(UPDATE_CONFIRMED);
+				statement.setBoolean(1, true);
+				statement.setLong(2, booking.getTicket());
+				statement.setBoolean(3, true);
+				if (statement.executeUpdate() == 0) {
+					System.err.println("Booking is not in the database: " + booking.toString());
+					return false;
+				}
+			} catch (SQLException e) {
+				System.err.println("Could not confirm booking " + booking.getTicket());
+				e.printStackTrace();
+				return false;
+			}
+			booking.confirm();
+			synchronized (_store) {
+				RequestRecord stored = _store.get(booking.getTicket());
+				_store.setState(booking.getTicket(), true, stored != null && stored.isChecked());
+			}
+			logChange(booking.getTicket(), false, null);
+			return true;
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+	/**
+	 * @return number of seats of the flight
+	 */
+	public int getFlightCapacity(int flight_number)
+	{
+		synchronized (_store) {
+			return _capacities.get(flight_number, DEFAULT_CAPACITY);
+		}
+	}
+	
+	public void setFlightCapacity(int flight_number, int seats)
+	{
+		_writeLock.lock();
+		try {
+			try {
+				PreparedStatement statement = prepare("UPDATE Timetable SET Capacity = ? WHERE FlightNumber = ?");
+				statement.setInt(1, seats);
+				statement.setInt(2, flight_number);
+				if (statement.executeUpdate() > 0) {
+					// other devices take new number of seats with the timetable
+					writeNextTimetableVersion();
+					++_timetableVersion;
+					synchronized (_store) {
+						_capacities.put(flight_number, seats);
+					}
+				}
+			} catch (SQLException e) {
+				System.err.println("Could not set capacity of flight " + flight_number);
+				e.printStackTrace();
+			}
+		} finally {
+			_writeLock.unlock();
+		}
+	}
+	
+//-----------------------------   LOADING ----------------------------------
+	
+	/**
+	 * Loads all request records to the store
+	 */
+	private void loadRequests()
+	{
+		_store.clear();
+		try {
+			for (RequestRecord record : getRequestsByQuery(prepare("SELECT * FROM Requests"))) {
+				_store.put(record);
+			}
+		} catch (SQLException e) {
+			System.err.println("Could not load requests");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Loads version of the timetable. New database starts from current time, so that
+	 * devices which kept timetable of recreated database don't take it as not changed.
+	 */
+	private void loadTimetableVersion()
+	{
+		try {
+			ResultSet table = prepare("SELECT Version FROM TimetableVersion").executeQuery();
+			boolean present = table.next();
+			_timetableVersion = present ? table.getLong(1) : System.currentTimeMillis();
 			table.close();
+			if (!present) {
+				PreparedStatement insert = prepare("INSERT INTO TimetableVersion (Version) VALUES (?)");
+				insert.setLong(1, _timetableVersion);
+				insert.executeUpdate();
+			}
 		} catch (SQLException e) {
-			System.out.println("Problem with SQL in flightHasFreeSeats() code");			
+			System.err.println("Could not load timetable version");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Loads flights capacities from the database
+	 */
+	private void loadCapacities()
+	{
+		_capacities.clear();
+		try {
+			ResultSet table = prepare("SELECT FlightNumber,Capacity FROM Timetable").executeQuery();
+			while (table.next()) {
+				_capacities.put(table.getInt("FlightNumber"), table.getInt("Capacity"));
+			}
+			table.close();
+		} catch (SQLException e) {
+			System.err.println("Could not load flights capacities");
+			e.printStackTrace();
 		}
-		return count <= 6;
 	}
 }
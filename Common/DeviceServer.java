@@ -0,0 +1,638 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamConstants;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 	This class accepts connections of other devices and processes commands
+ * 	coming over them, it is shared by all device types. Device registers
+ * 	handler for every command it supports, "ping", codec negotiation and
+ * 	"goodbye" exchange are processed by server.
+ *
+ * 	Accepted connections are watched by one selector thread (run()) while they
+ * 	are idle between commands. When command starts coming, connection is given
+ * 	to HandlerExecutor thread, which processes this one command over object
+ * 	streams in blocking mode and gives connection back to the selector. So
+ * 	connections kept open by ConnectionPool of other devices don't take threads,
+ * 	and thread is not waiting for peer which stopped sending commands.
+ *
+ * 	Object stream headers are exchanged by selector thread, so that device
+ * 	which connected and sent nothing more doesn't take thread either. Object
+ * 	streams are created by handler thread for the first command and kept
+ * 	between commands. They don't read ahead of the "goodbye" finishing command,
+ * 	so the next command is always seen by the selector.
+ *
+ * 	Frames of framed session (see FrameProtocol) are read by selector thread
+ * 	without blocking: received bytes are collected in direct buffer of the
+ * 	connection, and frames complete so far are given to handler thread
+ * 	together. Handler writes replies through direct buffer and gives connection
+ * 	back to the selector, so idle pipeline doesn't take thread and thread never
+ * 	waits for the rest of frame.
+ *
+ * 	When all handler threads are busy and their queue is full, connection with
+ * 	started command waits aside and is given to the next thread which finishes
+ * 	its command. Selector thread never processes commands itself.
+ *
+ * 	Connections idle longer than NetworkOperator.KEEP_ALIVE_TIMEOUT are closed.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class DeviceServer {
+	/**
+	 * Processes one command after it is read, "goodbye" is exchanged by server after it
+	 */
+	public interface Command {
+		void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException;
+	}
+
+	/**
+	 * State of accepted connection, it is changed by one thread at a time:
+	 * stream header is read by selector thread, then commands are processed
+	 * by handler threads; frames are read by selector thread and served
+	 * by handler threads
+	 */
+	private static class Connection {
+		SocketChannel 			_channel;
+		ObjectInputStream 		_in = null;
+		ObjectOutputStream 		_out = null;
+
+		/* object stream header of other side, commands follow when it is read */
+		ByteBuffer 				_header = ByteBuffer.allocateDirect(4);
+
+		/* WireCodec version agreed for this connection */
+		int 					_codec = WireCodec.LEGACY;
+
+		/* framed session is started, frames come instead of commands */
+		boolean 				_framed = false;
+
+		/* received bytes of framed session, they are read by selector thread */
+		ByteBuffer 				_frames = null;
+
+		/* frames received completely, they are served by handler thread */
+		ArrayList<FrameProtocol.Frame> _received = new ArrayList<FrameProtocol.Frame>();
+
+		/* replies to frames are written through it */
+		ByteBuffer 				_replies = null;
+
+		/* time when the last command was finished */
+		long 					_lastUsed = System.currentTimeMillis();
+
+		Connection(SocketChannel channel) {
+			_channel = channel;
+		}
+
+		void close() {
+			try {
+				_channel.close();
+			} catch (IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Object streams without header, it is exchanged by selector thread
+	 */
+	private static class CommandInputStream extends ObjectInputStream {
+		CommandInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		protected void readStreamHeader() {
+		}
+	}
+
+	private static class CommandOutputStream extends ObjectOutputStream {
+		CommandOutputStream(OutputStream out) throws IOException {
+			super(out);
+		}
+
+		protected void writeStreamHeader() {
+		}
+	}
+
+	/* idle connections are checked this often */
+	private static final long 					IDLE_CHECK = NetworkOperator.KEEP_ALIVE_TIMEOUT / 4;
+
+	/* initial size of buffers of framed session, they grow for larger frames */
+	private static final int 					FRAME_BUFFER = 64 * 1024;
+
+	private String 								_name;
+	private int 								_port;
+	private Selector 							_selector = null;
+	private ServerSocketChannel 				_acceptChannel = null;
+
+	/* handlers of commands by name */
+	private HashMap<String, Command> 			_commands = new HashMap<String, Command>();
+
+	/* handler of framed sessions, null if device doesn't support them */
+	private FrameProtocol.Handler 				_frames = null;
+
+	/* connections which finished command, they are registered again by selector thread */
+	private ConcurrentLinkedQueue<Connection> 	_finished = new ConcurrentLinkedQueue<Connection>();
+
+	/* connections being served by handler threads */
+	private ConcurrentLinkedQueue<Connection> 	_serving = new ConcurrentLinkedQueue<Connection>();
+
+	/* connections with started command waiting for handler thread, used by selector thread */
+	private ArrayDeque<Connection> 				_waiting = new ArrayDeque<Connection>();
+
+	/* threads processing commands */
+	private HandlerExecutor 					_handlers;
+
+	/**
+	 * Binds server to the port, connections are accepted after run() is called
+	 * @param name device name for threads names
+	 * @param port port to listen
+	 * @throws IllegalStateException if server could not be bound, device can't work without it
+	 */
+	public DeviceServer(String name, int port)
+	{
+		_name = name;
+		_port = port;
+		try {
+			_selector = Selector.open();
+			_acceptChannel = ServerSocketChannel.open();
+			// queue of 10 possible incoming connections
+			_acceptChannel.socket().bind(new InetSocketAddress(port), 10);
+			_acceptChannel.configureBlocking(false);
+			_acceptChannel.register(_selector, SelectionKey.OP_ACCEPT);
+		} catch (IOException e) {
+			System.err.println("Unable to bind server to port " + _port);
+			try {
+				if (_acceptChannel != null) {
+					_acceptChannel.close();
+				}
+				if (_selector != null) {
+					_selector.close();
+				}
+			} catch (IOException closing) {
+			}
+			throw new IllegalStateException("Unable to bind " + name + " server to port " + port, e);
+		}
+		_handlers = new HandlerExecutor(name);
+	}
+
+	public int getPort()
+	{
+		return _port;
+	}
+
+	/**
+	 * Registers handler of the command, must be called before run()
+	 */
+	public void register(String command, Command handler)
+	{
+		_commands.put(command, handler);
+	}
+
+	/**
+	 * Registers handler of "framed" command (see FrameProtocol), must be called before run()
+	 */
+	public void register(FrameProtocol.Handler handler)
+	{
+		_frames = handler;
+	}
+
+	/**
+	 * Selector loop, it is finished by stop()
+	 */
+	public void run()
+	{
+		long lastCheck = System.currentTimeMillis();
+		try {
+			while (_acceptChannel.isOpen()) {
+				// keys selected by selectNow() below are not reported by select() again
+				if (_selector.selectedKeys().isEmpty()) {
+					_selector.select(IDLE_CHECK);
+				}
+				resumeFinished();
+				serveWaiting();
+
+				ArrayList<Connection> started = new ArrayList<Connection>();
+				Iterator<SelectionKey> keys = _selector.selectedKeys().iterator();
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable() && ((Connection)key.attachment())._header.hasRemaining()) {
+						readHeader(key);
+					} else if (key.isReadable() && ((Connection)key.attachment())._framed) {
+						// frames are served when at least one of them is received completely
+						if (readFrames(key)) {
+							key.cancel();
+							started.add((Connection)key.attachment());
+						}
+					} else if (key.isReadable()) {
+						// connection is served in blocking mode, so it leaves the selector
+						key.cancel();
+						started.add((Connection)key.attachment());
+					}
+				}
+				if (!started.isEmpty()) {
+					// cancelled keys are deregistered by the next selection
+					_selector.selectNow();
+					for (Connection connection : started) {
+						serve(connection);
+					}
+				}
+
+				if (System.currentTimeMillis() - lastCheck >= IDLE_CHECK) {
+					closeIdle();
+					lastCheck = System.currentTimeMillis();
+				}
+			}
+		} catch (IOException e) {
+			System.err.println("Selector failed: " + e.toString());
+		} finally {
+			closeAll();
+		}
+	}
+
+	/**
+	 * Stops accepting and closes all connections, commands being processed fail
+	 */
+	public void stop()
+	{
+		try {
+			if (_acceptChannel != null) {
+				_acceptChannel.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Problems with accept socket");
+			e.printStackTrace();
+		}
+
+		// no new commands are processed
+		_handlers.shutdown();
+		for (Connection connection : _serving) {
+			connection.close();
+		}
+
+		// selector thread closes connections kept by other devices
+		if (_selector != null) {
+			_selector.wakeup();
+		}
+	}
+
+	/**
+	 * Waits for commands being processed after stop()
+	 */
+	public void awaitStopped(long milliseconds)
+	{
+		try {
+			_handlers.awaitTermination(milliseconds, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+		}
+	}
+
+	private void accept() throws IOException
+	{
+		SocketChannel channel;
+		while ((channel = _acceptChannel.accept()) != null) {
+			System.out.println("Connection from: " + channel.socket().getInetAddress().getHostAddress());
+			channel.socket().setTcpNoDelay(true);
+			channel.configureBlocking(false);
+
+			// other side waits for our header before it sends commands, it fits empty socket buffer
+			ByteBuffer header = ByteBuffer.allocateDirect(4);
+			header.putShort(ObjectStreamConstants.STREAM_MAGIC);
+			header.putShort(ObjectStreamConstants.STREAM_VERSION);
+			header.flip();
+			try {
+				channel.write(header);
+			} catch (IOException e) {
+				header.position(0);
+			}
+			if (header.hasRemaining()) {
+				channel.close();
+				continue;
+			}
+			channel.register(_selector, SelectionKey.OP_READ, new Connection(channel));
+		}
+	}
+
+	/**
+	 * Reads object stream header of other side as far as it is received
+	 */
+	private void readHeader(SelectionKey key)
+	{
+		Connection connection = (Connection)key.attachment();
+		ByteBuffer header = connection._header;
+		try {
+			if (connection._channel.read(header) < 0) {
+				key.cancel();
+				connection.close();
+				return;
+			}
+		} catch (IOException e) {
+			key.cancel();
+			connection.close();
+			return;
+		}
+		if (header.hasRemaining()) {
+			return;
+		}
+		header.flip();
+		if (header.getShort() != ObjectStreamConstants.STREAM_MAGIC
+				|| header.getShort() != ObjectStreamConstants.STREAM_VERSION) {
+			System.err.println("Data received in unknown format");
+			key.cancel();
+			connection.close();
+		}
+	}
+
+	/**
+	 * Reads bytes of framed session as far as they are received
+	 * @return whether there are frames received completely
+	 */
+	private boolean readFrames(SelectionKey key)
+	{
+		Connection connection = (Connection)key.attachment();
+		try {
+			if (connection._channel.read(connection._frames) < 0) {
+				key.cancel();
+				connection.close();
+				return false;
+			}
+			ByteBuffer buffer = connection._frames;
+			buffer.flip();
+			FrameProtocol.Frame frame;
+			while ((frame = FrameProtocol.nextFrame(buffer)) != null) {
+				connection._received.add(frame);
+			}
+			buffer.compact();
+			if (!buffer.hasRemaining()) {
+				// frame is larger than buffer, its size is checked by nextFrame()
+				buffer.flip();
+				connection._frames = ByteBuffer.allocateDirect(buffer.capacity() * 2).put(buffer);
+			}
+		} catch (IOException e) {
+			System.err.println("Framed session is broken: " + e.getMessage());
+			key.cancel();
+			connection.close();
+			return false;
+		}
+		return !connection._received.isEmpty();
+	}
+
+	/**
+	 * Writes replies to frames through direct buffer, channel is in blocking mode
+	 */
+	private void writeReplies(Connection connection, byte[] replies) throws IOException
+	{
+		if (connection._replies == null || connection._replies.capacity() < replies.length) {
+			connection._replies = ByteBuffer.allocateDirect(Math.max(FRAME_BUFFER, replies.length));
+		}
+		ByteBuffer buffer = connection._replies;
+		buffer.clear();
+		buffer.put(replies);
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			connection._channel.write(buffer);
+		}
+	}
+
+	/**
+	 * Registers connections which finished command again
+	 */
+	private void resumeFinished()
+	{
+		Connection connection;
+		while ((connection = _finished.poll()) != null) {
+			try {
+				connection._channel.configureBlocking(false);
+				connection._channel.register(_selector, SelectionKey.OP_READ, connection);
+			} catch (IOException e) {
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Closes connections kept by other devices and selector, called by selector thread
+	 */
+	private void closeAll()
+	{
+		for (SelectionKey key : _selector.keys()) {
+			if (key.attachment() != null) {
+				((Connection)key.attachment()).close();
+			}
+		}
+		Connection connection;
+		while ((connection = _finished.poll()) != null) {
+			connection.close();
+		}
+		while ((connection = _waiting.poll()) != null) {
+			connection.close();
+		}
+		try {
+			_selector.close();
+		} catch (IOException e) {
+		}
+	}
+
+	private void closeIdle()
+	{
+		long now = System.currentTimeMillis();
+		for (SelectionKey key : _selector.keys()) {
+			Connection connection = (Connection)key.attachment();
+			if (connection != null && now - connection._lastUsed >= NetworkOperator.KEEP_ALIVE_TIMEOUT) {
+				key.cancel();
+				connection.close();
+			}
+		}
+	}
+
+	/**
+	 * Gives connection with started command to handler thread,
+	 * it waits if all threads are busy
+	 */
+	private void serve(Connection connection)
+	{
+		try {
+			connection._channel.configureBlocking(true);
+		} catch (IOException e) {
+			connection.close();
+			return;
+		}
+		// connections which started commands earlier go first
+		if (!_waiting.isEmpty() || !execute(connection)) {
+			_waiting.add(connection);
+		}
+	}
+
+	/**
+	 * Gives waiting connections to handler threads while there are free ones
+	 */
+	private void serveWaiting()
+	{
+		while (!_waiting.isEmpty() && execute(_waiting.peek())) {
+			_waiting.poll();
+		}
+	}
+
+	/**
+	 * @return false if all handler threads are busy, connection is closed if server is stopped
+	 */
+	private boolean execute(final Connection connection)
+	{
+		_serving.add(connection);
+		try {
+			_handlers.execute(new Runnable() {
+				public void run() {
+					serveCommand(connection);
+				}
+			});
+			return true;
+		} catch (RejectedExecutionException e) {
+			_serving.remove(connection);
+			if (_handlers.isShutdown()) {
+				connection.close();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * This function processes single command and gives connection back to the selector.
+	 * Connection is closed if other side closed it or command failed.
+	 */
+	private void serveCommand(Connection connection)
+	{
+		boolean finished = false;
+		try {
+			Socket socket = connection._channel.socket();
+			socket.setSoTimeout(HandlerExecutor.READ_TIMEOUT);
+			if (connection._out == null) {
+				connection._out = new CommandOutputStream(socket.getOutputStream());
+				connection._in = new CommandInputStream(socket.getInputStream());
+			}
+			if (connection._framed) {
+				finished = serveFrames(connection, connection._in, connection._out);
+			} else {
+				finished = processCommand(connection, connection._in, connection._out);
+			}
+		} catch (ClassNotFoundException e) {
+			System.err.println("Data received in unknown format");
+		} catch (IOException e) {
+			// connection was closed while command was processed
+			if (connection._channel.isOpen()) {
+				System.err.println("Some IO error in " + _name + " server");
+			}
+		} finally {
+			_serving.remove(connection);
+		}
+
+		if (!finished) {
+			connection.close();
+		} else {
+			connection._lastUsed = System.currentTimeMillis();
+			_finished.add(connection);
+		}
+		// thread is free for waiting connections
+		_selector.wakeup();
+	}
+
+	/**
+	 * @return whether connection could be used for the next command
+	 */
+	private boolean processCommand(Connection connection, ObjectInputStream in, ObjectOutputStream out) throws IOException,
+		ClassNotFoundException
+	{
+		String command;
+		try {
+			command = (String)in.readObject();
+		} catch (EOFException e) {
+			// other side closed connection
+			return false;
+		}
+
+		Command handler = _commands.get(command);
+		if (handler != null) {
+			handler.process(in, out, connection._codec);
+		} else if (command.equals(FrameProtocol.COMMAND) && _frames != null) {
+			// frames are read by selector, object streams are used again after GOODBYE
+			connection._framed = true;
+			connection._frames = ByteBuffer.allocateDirect(FRAME_BUFFER);
+			return true;
+		} else if (WireCodec.isNegotiation(command)) {
+			connection._codec = WireCodec.acceptNegotiation(command, out);
+		} else if (!command.equals("ping")) {
+			System.err.println("Unknown socket command.");
+		}
+		return finishCommand(in, out);
+	}
+
+	/**
+	 * Serves frames received completely, then session goes back
+	 * to the selector until the next frames come
+	 * @return whether connection could be used for the next frames or command
+	 */
+	private boolean serveFrames(Connection connection, ObjectInputStream in, ObjectOutputStream out) throws IOException,
+		ClassNotFoundException
+	{
+		ByteArrayOutputStream replies = new ByteArrayOutputStream();
+		boolean goodbye = FrameProtocol.serve(connection._received, new DataOutputStream(replies), connection._codec, _frames);
+		connection._received.clear();
+		writeReplies(connection, replies.toByteArray());
+		if (!goodbye) {
+			return true;
+		}
+
+		// other side sends nothing after GOODBYE until it receives reply
+		boolean clean = connection._frames.position() == 0;
+		connection._framed = false;
+		connection._frames = null;
+		connection._replies = null;
+		if (!clean) {
+			System.err.println("Data received after the end of framed session");
+			return false;
+		}
+		return finishCommand(in, out);
+	}
+
+	/**
+	 * Exchanges "goodbye" after command. Object stream is reset before
+	 * "goodbye", so that nothing is left unsent between commands and
+	 * frames of the next framed session are the first bytes other side reads.
+	 */
+	private boolean finishCommand(ObjectInputStream in, ObjectOutputStream out) throws IOException, ClassNotFoundException
+	{
+		String goodbye = (String)in.readObject();
+		out.reset();
+		if (goodbye.equals("goodbye"))
+		{
+			out.writeObject("goodbye");
+			System.out.println("Communication finished successfully");
+		}
+		out.flush();
+		return true;
+	}
+}
@@ -0,0 +1,136 @@
+import java.net.Inet4Address;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jmdns.JmDNS;
+import javax.jmdns.ServiceEvent;
+import javax.jmdns.ServiceInfo;
+import javax.jmdns.ServiceListener;
+
+/**
+ *  This class keeps devices found in the network by service type, so that
+ *  lookups are answered at once instead of asking JmDNS every time
+ *  (JmDNS.list() could wait up to several seconds).
+ *
+ *  Listener is added once per service type on its first lookup, devices are
+ *  added when their service is resolved and removed when it is gone.
+ *  Lookup waits for JmDNS only while no devices of the type are known.
+ *  Devices of every type are kept in PeerRegistry, so the healthiest of them
+ *  could be picked.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class DiscoveryRegistry {
+	private JmDNS 														_jmdns = null;
+
+	/* resolved devices by service type */
+	private ConcurrentHashMap<String, PeerRegistry> 						_devices =
+			new ConcurrentHashMap<String, PeerRegistry>();
+
+	/* listeners by service type */
+	private ConcurrentHashMap<String, ServiceListener> 					_listeners =
+			new ConcurrentHashMap<String, ServiceListener>();
+
+	public DiscoveryRegistry(JmDNS jmdns)
+	{
+		_jmdns = jmdns;
+	}
+
+	/**
+	 * Gives devices of the service type known now. If there are no such devices,
+	 * JmDNS is asked and it might take some time.
+	 * @param type service type (e.g. "_camp._tcp.local.")
+	 * @return new list of devices
+	 */
+	public LinkedList<HostInfo> getDevices(String type)
+	{
+		return new LinkedList<HostInfo>(lookup(type).getPeers());
+	}
+
+	/**
+	 * Gives the healthiest device of the service type (see PeerRegistry.best()).
+	 * If there are no such devices, JmDNS is asked and it might take some time.
+	 * @return device or null if there are no devices of the type
+	 */
+	public HostInfo getBestDevice(String type)
+	{
+		return lookup(type).getBest();
+	}
+
+	private PeerRegistry lookup(String type)
+	{
+		PeerRegistry devices = subscribe(type);
+		if (devices.isEmpty()) {
+			for (ServiceInfo info : _jmdns.list(type)) {
+				HostInfo device = hostInfoOf(info);
+				if (device != null) {
+					devices.add(device);
+				}
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * Removes listeners, must be called before JmDNS is closed
+	 */
+	public void close()
+	{
+		for (String type : _listeners.keySet()) {
+			ServiceListener listener = _listeners.remove(type);
+			if (listener != null) {
+				_jmdns.removeServiceListener(type, listener);
+			}
+		}
+	}
+
+	/**
+	 * Adds listener for the service type if it is not added yet
+	 * @return devices of the type
+	 */
+	private PeerRegistry subscribe(final String type)
+	{
+		PeerRegistry devices = _devices.get(type);
+		if (devices != null) {
+			return devices;
+		}
+
+		_devices.putIfAbsent(type, new PeerRegistry());
+		devices = _devices.get(type);
+		final PeerRegistry known = devices;
+		ServiceListener listener = new ServiceListener() {
+			public void serviceAdded(ServiceEvent event) {
+				// address is known after service is resolved
+				_jmdns.requestServiceInfo(type, event.getName());
+			}
+			public void serviceRemoved(ServiceEvent event) {
+				known.removeNamed(event.getName());
+			}
+			public void serviceResolved(ServiceEvent event) {
+				HostInfo device = hostInfoOf(event.getInfo());
+				if (device != null) {
+					known.add(device);
+				}
+			}
+		};
+		if (_listeners.putIfAbsent(type, listener) == null) {
+			_jmdns.addServiceListener(type, listener);
+		}
+		return devices;
+	}
+
+	/**
+	 * @return host info of resolved service or null if its address is unknown
+	 */
+	public static HostInfo hostInfoOf(ServiceInfo info)
+	{
+		Inet4Address[] addresses = (info == null) ? null : info.getInet4Addresses();
+		if (addresses == null || addresses.length == 0) {
+			return null;
+		}
+		return new HostInfo(info.getName(), addresses[0].getHostAddress(), info.getPort());
+	}
+}
@@ -0,0 +1,93 @@
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * 	This class contains conversions between dates used by request records
+ * 	and compact integer forms:
+ * 		flight date		- days since 01/01/1970 in local time zone
+ * 		flight time		- minutes since midnight ("HH:mm" in timetable)
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class FlightCalendar {
+	/* value used for absent flight date (e.g. in canceling records) */
+	public static final int 	NO_DAY = Integer.MIN_VALUE;
+
+	/* value used for flight time which is not in "HH:mm" format */
+	public static final int 	NO_TIME = -1;
+
+	public static final long 	DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+	private static final TimeZone _zone = TimeZone.getDefault();
+
+	/**
+	 * @param date flight date (time of day is ignored)
+	 * @return number of days since 01/01/1970 or NO_DAY for null date
+	 */
+	public static int toEpochDay(Date date)
+	{
+		if (date == null) {
+			return NO_DAY;
+		}
+		long millis = date.getTime();
+		long local = millis + _zone.getOffset(millis);
+		long day = local / DAY_MILLIS;
+		if (local % DAY_MILLIS < 0) {
+			--day;
+		}
+		return (int)day;
+	}
+
+	/**
+	 * @param day number of days since 01/01/1970
+	 * @return midnight of that day in local time zone or null for NO_DAY
+	 */
+	public static Date fromEpochDay(int day)
+	{
+		if (day == NO_DAY) {
+			return null;
+		}
+		long midnight = day * DAY_MILLIS;
+		long guess = midnight - _zone.getOffset(midnight);
+		return new Date(midnight - _zone.getOffset(guess));
+	}
+
+	/**
+	 * @param time flight time like "22:35"
+	 * @return minutes since midnight or NO_TIME if time has other format
+	 */
+	public static int toMinuteOfDay(String time)
+	{
+		if (time == null) {
+			return NO_TIME;
+		}
+		int colon = time.indexOf(':');
+		if (colon < 1 || colon > 2 || time.length() != colon + 3) {
+			return NO_TIME;
+		}
+		try {
+			int hours = Integer.parseInt(time.substring(0, colon));
+			int minutes = Integer.parseInt(time.substring(colon + 1));
+			if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59) {
+				return NO_TIME;
+			}
+			return hours * 60 + minutes;
+		} catch (NumberFormatException e) {
+			return NO_TIME;
+		}
+	}
+
+	/**
+	 * @param minute minutes since midnight
+	 * @return flight time like "07:05"
+	 */
+	public static String formatMinuteOfDay(int minute)
+	{
+		int hours = minute / 60;
+		int minutes = minute % 60;
+		return ((hours < 10) ? "0" : "") + hours + ":" + ((minutes < 10) ? "0" : "") + minutes;
+	}
+}
@@ -0,0 +1,279 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 	This class implements framed commands, so that many commands are sent over
+ * 	one connection without waiting for replies (see Pipeline) and replies are
+ * 	matched to commands by request id, not by their order.
+ *
+ * 	Framed session is started by command "framed" when both sides support
+ * 	WireCodec.FRAMED_VERSION. Then frames are sent in both directions as raw
+ * 	bytes over the socket, not inside object streams:
+ * 		int			payload length
+ * 		byte		opcode
+ * 		int			request id, reply has id of the command
+ * 		payload		opcode-dependent, lists are written by WireCodec
+ * 	Session is finished by GOODBYE frame, accepting side replies GOODBYE after
+ * 	replies to all commands, then "goodbye" is exchanged as after any command.
+ *
+ * 	Opcodes and payloads (reply has the same opcode, or ERROR):
+ * 		GOODBYE						- empty
+ * 		PING						- empty, empty reply
+ * 		GIVE_ME_TIMETABLE			- empty, timetable is replied
+ * 		GIVE_ME_TIMETABLE_IF_NEWER	- long version of kept timetable, long version of
+ * 									  timetable is replied, followed by timetable if versions differ
+ * 		TAKE_MY_REQUEST				- list of request records, empty reply
+ * 		CONFIRMATION				- list of request records, empty reply
+ * 		ERROR						- reply to command device doesn't support, message
+ *
+ * 	Accepting side reads frames without blocking (see DeviceServer): received
+ * 	bytes are collected in direct buffer of the connection and frames complete
+ * 	so far are given to serve() together. Other commands are answered at once,
+ * 	but records of all TAKE_MY_REQUEST and CONFIRMATION frames given together
+ * 	are given to device at once, so that burst of bookings is merged in one
+ * 	transaction. Their replies go after replies to commands which followed them.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class FrameProtocol {
+	public static final int 	GOODBYE = 0;
+	public static final int 	PING = 1;
+	public static final int 	GIVE_ME_TIMETABLE = 2;
+	public static final int 	GIVE_ME_TIMETABLE_IF_NEWER = 3;
+	public static final int 	TAKE_MY_REQUEST = 4;
+	public static final int 	CONFIRMATION = 5;
+	public static final int 	ERROR = 127;
+
+	/* command starting framed session */
+	public static final String 	COMMAND = "framed";
+
+	/* larger frames are treated as broken stream */
+	public static final int 	MAX_PAYLOAD = 16 * 1024 * 1024;
+
+	/* payload length, opcode and request id */
+	public static final int 	HEADER_SIZE = 9;
+
+	/* record frames given to device at once at most */
+	public static final int 	MAX_BATCH = 1024;
+
+	/**
+	 * Commands of framed session are processed by device
+	 */
+	public interface Handler {
+		/**
+		 * Writes reply to command which is not a list of records
+		 * @return false if opcode is not supported by device
+		 */
+		boolean reply(int opcode, DataInputStream payload, DataOutputStream reply, int codec) throws IOException;
+
+		/**
+		 * Takes records of TAKE_MY_REQUEST or CONFIRMATION frames
+		 * @return false if opcode is not supported by device
+		 */
+		boolean receive(int opcode, ArrayList<RequestRecord> records);
+	}
+
+	/**
+	 * One received frame
+	 */
+	public static class Frame {
+		private int 	_opcode;
+		private int 	_id;
+		private byte[] 	_payload;
+
+		public Frame(int opcode, int id, byte[] payload) {
+			_opcode = opcode;
+			_id = id;
+			_payload = payload;
+		}
+
+		public int getOpcode() {
+			return _opcode;
+		}
+
+		public int getId() {
+			return _id;
+		}
+
+		public DataInputStream getPayload() {
+			return new DataInputStream(new ByteArrayInputStream(_payload));
+		}
+	}
+
+	/**
+	 * Records of consecutive frames with the same opcode
+	 */
+	private static class Batch {
+		ArrayList<Integer> 			_ids = new ArrayList<Integer>();
+		ArrayList<RequestRecord> 	_records = new ArrayList<RequestRecord>();
+	}
+
+	private static final byte[] 	EMPTY = new byte[0];
+
+	public static void writeFrame(DataOutput out, int opcode, int id, byte[] payload) throws IOException
+	{
+		out.writeInt(payload.length);
+		out.writeByte(opcode);
+		out.writeInt(id);
+		out.write(payload);
+	}
+
+	/**
+	 * @return frame as it is sent
+	 */
+	public static byte[] encodeFrame(int opcode, int id, byte[] payload) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(HEADER_SIZE + payload.length);
+		writeFrame(new DataOutputStream(bytes), opcode, id, payload);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Reads frame in blocking mode, header is read at once
+	 */
+	public static Frame readFrame(DataInput in) throws IOException
+	{
+		byte[] header = new byte[HEADER_SIZE];
+		in.readFully(header);
+		ByteBuffer fields = ByteBuffer.wrap(header);
+		int length = checkLength(fields.getInt());
+		int opcode = fields.get() & 0xff;
+		int id = fields.getInt();
+		byte[] payload = new byte[length];
+		in.readFully(payload);
+		return new Frame(opcode, id, payload);
+	}
+
+	/**
+	 * Takes the next frame from received bytes, if it is received completely
+	 * @param buffer received bytes ready for reading, incomplete frame is left in it
+	 * @return frame or null if it is not received completely
+	 */
+	public static Frame nextFrame(ByteBuffer buffer) throws IOException
+	{
+		if (buffer.remaining() < HEADER_SIZE) {
+			return null;
+		}
+		int start = buffer.position();
+		int length = checkLength(buffer.getInt(start));
+		if (buffer.remaining() < HEADER_SIZE + length) {
+			return null;
+		}
+		buffer.getInt();
+		int opcode = buffer.get() & 0xff;
+		int id = buffer.getInt();
+		byte[] payload = new byte[length];
+		buffer.get(payload);
+		return new Frame(opcode, id, payload);
+	}
+
+	private static int checkLength(int length) throws IOException
+	{
+		if (length < 0 || length > MAX_PAYLOAD) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		return length;
+	}
+
+	/**
+	 * @return payload with list of records
+	 */
+	public static byte[] encodeRecords(List<RequestRecord> records, int codec) throws IOException
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		WireCodec.writeRecords(new DataOutputStream(bytes), records, codec);
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Accepting side of framed session, called with frames received together
+	 * after "framed" command.
+	 * @param frames frames in order they were received
+	 * @param out replies to frames
+	 * @param codec WireCodec version agreed for the connection
+	 * @return true if session is finished by GOODBYE, false if it waits for the next frames
+	 */
+	public static boolean serve(List<Frame> frames, DataOutput out, int codec, Handler handler) throws IOException
+	{
+		LinkedHashMap<Integer, Batch> batches = new LinkedHashMap<Integer, Batch>();
+		int batched = 0;
+		for (Frame frame : frames) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream reply = new DataOutputStream(bytes);
+			int opcode = frame.getOpcode();
+			switch (opcode) {
+			case GOODBYE:
+				receiveBatches(out, batches, handler);
+				writeFrame(out, GOODBYE, frame.getId(), EMPTY);
+				return true;
+			case PING:
+				writeFrame(out, PING, frame.getId(), EMPTY);
+				break;
+			case TAKE_MY_REQUEST:
+			case CONFIRMATION:
+				Batch batch = batches.get(opcode);
+				if (batch == null) {
+					batch = new Batch();
+					batches.put(opcode, batch);
+				}
+				batch._ids.add(frame.getId());
+				batch._records.addAll(WireCodec.readRecords(frame.getPayload(), codec));
+				if (++batched >= MAX_BATCH) {
+					receiveBatches(out, batches, handler);
+					batched = 0;
+				}
+				break;
+			default:
+				if (handler.reply(opcode, frame.getPayload(), reply, codec)) {
+					reply.flush();
+					writeFrame(out, opcode, frame.getId(), bytes.toByteArray());
+				} else {
+					writeFrame(out, ERROR, frame.getId(), unknownOpcode(opcode));
+				}
+			}
+		}
+		receiveBatches(out, batches, handler);
+		return false;
+	}
+
+	private static void receiveBatches(DataOutput out, LinkedHashMap<Integer, Batch> batches, Handler handler) throws IOException
+	{
+		for (Map.Entry<Integer, Batch> entry : batches.entrySet()) {
+			int opcode = entry.getKey();
+			Batch batch = entry.getValue();
+			boolean received = handler.receive(opcode, batch._records);
+			for (int id : batch._ids) {
+				if (received) {
+					writeFrame(out, opcode, id, EMPTY);
+				} else {
+					writeFrame(out, ERROR, id, unknownOpcode(opcode));
+				}
+			}
+		}
+		batches.clear();
+	}
+
+	/**
+	 * @return payload of ERROR reply
+	 */
+	private static byte[] unknownOpcode(int opcode) throws IOException
+	{
+		System.err.println("Unknown frame opcode " + opcode);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		new DataOutputStream(bytes).writeUTF("Unknown opcode " + opcode);
+		return bytes.toByteArray();
+	}
+}
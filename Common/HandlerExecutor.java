@@ -0,0 +1,44 @@
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 	This class is a bounded pool of threads processing commands coming over
+ * 	accepted connections (see DeviceServer). When all threads are busy and the
+ * 	queue is full, command is rejected and DeviceServer keeps its connection
+ * 	until a thread is free, so that selector thread is never blocked by command.
+ * 
+ * 	Limits can be changed by system properties (-Dname=value):
+ * 		handlers.threads		- number of threads processing commands
+ * 		handlers.queue			- number of commands waiting for a thread
+ * 		handlers.readTimeout	- milliseconds to read the rest of started command
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class HandlerExecutor extends ThreadPoolExecutor {
+	public static final int 	THREADS = Integer.getInteger("handlers.threads", 16);
+	public static final int 	QUEUE = Integer.getInteger("handlers.queue", 16);
+	public static final int 	READ_TIMEOUT = Integer.getInteger("handlers.readTimeout", 15 * 1000);
+
+	/**
+	 * @param name device name for threads names
+	 */
+	public HandlerExecutor(final String name)
+	{
+		super(THREADS, THREADS, NetworkOperator.KEEP_ALIVE_TIMEOUT, TimeUnit.MILLISECONDS, 
+				new ArrayBlockingQueue<Runnable>(QUEUE), 
+				new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, name + " handler");
+						thread.setDaemon(true);
+						return thread;
+					}
+				}, 
+				new ThreadPoolExecutor.AbortPolicy());
+		allowCoreThreadTimeOut(true);
+	}
+}
@@ -0,0 +1,140 @@
+import java.util.Arrays;
+
+/**
+ * 	This class is a map from long keys to int values stored in
+ * 	primitive arrays (open addressing with linear probing), so that
+ * 	lookups and updates don't create any objects.
+ *
+ * 	Long.MIN_VALUE can not be used as a key. Keys are never removed.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class LongIntMap {
+	private static final long 	FREE = Long.MIN_VALUE;
+
+	private long[] 				_keys;
+	private int[] 				_values;
+	private int 				_size = 0;
+
+	/**
+	 * @param expected expected number of keys
+	 */
+	public LongIntMap(int expected)
+	{
+		int capacity = 16;
+		while (capacity < expected * 2) {
+			capacity <<= 1;
+		}
+		_keys = new long[capacity];
+		_values = new int[capacity];
+		Arrays.fill(_keys, FREE);
+	}
+
+	/**
+	 * @return value for the key or missing if there is no such key
+	 */
+	public int get(long key, int missing)
+	{
+		int index = indexOf(key);
+		return (_keys[index] == key) ? _values[index] : missing;
+	}
+
+	public void put(long key, int value)
+	{
+		int index = indexOf(key);
+		if (_keys[index] != key) {
+			index = insert(key, index);
+		}
+		_values[index] = value;
+	}
+
+	/**
+	 * Adds delta to the value of the key (absent key has value 0)
+	 * @return new value
+	 */
+	public int add(long key, int delta)
+	{
+		int index = indexOf(key);
+		if (_keys[index] != key) {
+			index = insert(key, index);
+		}
+		_values[index] += delta;
+		return _values[index];
+	}
+
+	public int size() {
+		return _size;
+	}
+
+	/**
+	 * @return new array of the keys
+	 */
+	public long[] keys()
+	{
+		long[] keys = new long[_size];
+		int count = 0;
+		for (long key : _keys) {
+			if (key != FREE) {
+				keys[count++] = key;
+			}
+		}
+		return keys;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(_keys, FREE);
+		Arrays.fill(_values, 0);
+		_size = 0;
+	}
+
+	/**
+	 * @return index of the key or of the free slot where it should be
+	 */
+	private int indexOf(long key)
+	{
+		int mask = _keys.length - 1;
+		int index = hash(key) & mask;
+		while (_keys[index] != key && _keys[index] != FREE) {
+			index = (index + 1) & mask;
+		}
+		return index;
+	}
+
+	private int insert(long key, int index)
+	{
+		if ((_size + 1) * 2 > _keys.length) {
+			grow();
+			index = indexOf(key);
+		}
+		_keys[index] = key;
+		_values[index] = 0;
+		++_size;
+		return index;
+	}
+
+	private void grow()
+	{
+		long[] keys = _keys;
+		int[] values = _values;
+		_keys = new long[keys.length * 2];
+		_values = new int[values.length * 2];
+		Arrays.fill(_keys, FREE);
+		for (int i = 0; i < keys.length; ++i) {
+			if (keys[i] != FREE) {
+				int index = indexOf(keys[i]);
+				_keys[index] = keys[i];
+				_values[index] = values[i];
+			}
+		}
+	}
+
+	private static int hash(long key)
+	{
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,50 @@
+/**
+ * 	This class presents result of merging records into the database:
+ * 	how many rows were inserted, updated and removed. Records which
+ * 	were already in the database unchanged are not counted.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class MergeResult {
+	private int _inserted = 0;
+	private int _updated = 0;
+	private int _removed = 0;
+
+	public void addInserted() {
+		++_inserted;
+	}
+
+	public void addUpdated() {
+		++_updated;
+	}
+
+	public void addRemoved() {
+		++_removed;
+	}
+
+	public int getInserted() {
+		return _inserted;
+	}
+
+	public int getUpdated() {
+		return _updated;
+	}
+
+	public int getRemoved() {
+		return _removed;
+	}
+
+	/**
+	 * @return whether merge changed anything in the database
+	 */
+	public boolean hasChanges() {
+		return _inserted + _updated + _removed > 0;
+	}
+
+	public String toString() {
+		return _inserted + " inserted, " + _updated + " updated, " + _removed + " removed";
+	}
+}
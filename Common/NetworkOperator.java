@@ -6,12 +6,22 @@ import java.io.ObjectOutputStream;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
-import java.util.ListIterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  *  This class is designed to implement common network requesting
@@ -27,463 +37,589 @@ public class NetworkOperator {
 	 * Protocol for receiving and sending timetable and request records
 	 * 1st message: command {takeMyRequests, takeMyTimetable, giveMeRequests or giveMeTimetable}
 	 * 2nd message: number of objects ready to transfer
+	 * 				(records replied to giveMeRequests are streamed by chunks since WireCodec.STREAM_VERSION)
 	 * after:		objects (object's type is command-dependent)
 	 * last: 		initiator says "goodbye" to finish communication
 	 * 				other device confirms by "goodbye"
+	 * 
+	 * Connection is not closed after "goodbye", it is kept in the pool and
+	 * the next command could be sent over it. Accepting side closes connection
+	 * which is idle longer than KEEP_ALIVE_TIMEOUT.
+	 * Command "ping" has no objects and is used to check kept connection.
+	 * 
+	 * Objects are sent either as count and serialized objects (legacy devices)
+	 * or in compact binary format, see WireCodec for format and negotiation.
+	 * 
+	 * Air companies supporting WireCodec.CHANGES_VERSION exchange only changes
+	 * of request records instead of all of them:
+	 * 		takeMyChanges:	change set, pushed to other company
+	 * 		giveMeChanges:	int sequence number, then change set is replied
+	 * 
+	 * Since WireCodec.SEATS_VERSION air company lends seats of its flights to others:
+	 * 		giveMeSeats:	holder name, int flight number, int flight day, int seats used,
+	 * 						int seats given back, int seats wanted - then int seats lent is replied
+	 * 
+	 * Since WireCodec.TIMETABLE_VERSION timetable is sent only if it is changed:
+	 * 		giveMeTimetableIfNewer:	long version of kept timetable, then long version of
+	 * 						timetable is replied, followed by timetable only if versions differ
+	 * 
+	 * Since WireCodec.FRAMED_VERSION commands could be pipelined (see Pipeline):
+	 * 		framed:			framed session, see FrameProtocol for frames
 	 */	
 
-	public static boolean sendRequests(HostInfo info, ArrayList<RequestRecord> _requests) 
-	{
-		if (info == null) {
-			System.out.println("sendRequests(): Host info is null.");
-			return false;
-		}
+	/* accepting side closes connections idle longer than this */
+	public static final int KEEP_ALIVE_TIMEOUT = 60 * 1000;
 
-		Socket clientSocket = null;
-		try
-		{		
-			// open new socket connection
-			clientSocket = new Socket(info.getIp(), info.getPort());
-			//System.out.println("Connected to: " + clientSocket.getInetAddress().getHostAddress() + ". OK");
-		} catch(UnknownHostException unknownHost) {
-			System.err.println("Unknown host: " + info.getIp() + ":" + info.getPort());	
-			return false;			
-		} catch (IOException ex) {
-			System.out.println("Socket timeout");
-			return false;
-		}
+	/* returned by accepting side when connection is finished */
+	public static final int CONNECTION_CLOSED = -1;
 
-		try
-		{	
-			boolean sentOk = false;							
-			ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());			
+	/* connections kept open to other devices */
+	private static final ConnectionPool _pool = new ConnectionPool();
 
-			// (1) send command			
-			out.writeObject("takeMyRequests");
+	/* broadcast recipients are contacted concurrently by this number of threads at most */
+	public static final int BROADCAST_THREADS = 4;
 
-			// (2) send number of objects
-			int number = _requests.size();
-			out.writeObject(number);
+	/* attempts to deliver broadcast to one recipient */
+	public static final int BROADCAST_ATTEMPTS = 3;
 
-			// (3)send booking/canceling records				
-			for (int i = 0; i < number; ++i) {
-				out.writeObject(_requests.get(i));					
-			}
+	/* delay before the second attempt, doubled before every next one */
+	public static final int RETRY_DELAY = 500;
 
-			// (4) say "goodbye"			
-			out.writeObject("goodbye");
-			out.flush();
+	/* time given to broadcast recipients for all attempts */
+	public static final int BROADCAST_TIMEOUT = 20 * 1000;
 
-			// (5) receive ok reply "goodbye"
-			String goodbye;
-			try {
-				goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye")) {
-					System.out.println("Requests sending finished fine. Delivered to " + info.toString());
-					sentOk = true;
-				}
-			} catch (ClassNotFoundException e) {
-				System.out.println("String cast failed in the sendRequests()");
-			}
+	/* threads sending broadcasts, they exit when idle */
+	private static final ThreadPoolExecutor _senders = createSenders();
 
-			in.close();
-			out.close();
-			clientSocket.close();				
+	/* threads reading replies of pipelines, they are reused by the next pipelines and exit when idle */
+	private static final ThreadPoolExecutor _readers = createReaders();
 
-			return sentOk;
-		} catch(Exception e){	
-			System.out.println("Exception in sendRequests()");
-		}	
+	/**
+	 * One command exchange over connection taken from the pool
+	 */
+	private interface Exchange<T> {
+		T perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException;
+	}
 
-		return false;		
+	/**
+	 * Exchange giving received records to visitor, it can't be repeated
+	 * after visitor got some of them
+	 */
+	private static abstract class VisitingExchange<T> implements Exchange<T> {
+		boolean 	_visited = false;
 	}
 
-	public static boolean sendTimetable(HostInfo info, ArrayList<TimeTableEntry> _timetable)
+	/**
+	 * This function takes connection from the pool, performs command exchange 
+	 * and gives connection back. If kept connection was closed by other side 
+	 * exchange is repeated once over new connection, unless it is VisitingExchange
+	 * which already gave records to visitor. Duration of exchange and
+	 * failures are reported to PeerRegistry, so that healthy device is picked next time.
+	 * @param info destination host credentials
+	 * @param caller function name for log messages
+	 * @param failed result returned when exchange failed
+	 * @return exchange result
+	 */
+	private static <T> T exchange(HostInfo info, String caller, T failed, Exchange<T> exchange)
 	{
 		if (info == null) {
-			System.out.println("sendTimetable(): Host info is null.");
-			return false;
+			System.out.println(caller + "(): Host info is null.");
+			return failed;
 		}
 
-		Socket clientSocket = null;
-		try
-		{		
-			// open new socket connection
-			clientSocket = new Socket(info.getIp(), info.getPort());
-			//System.out.println("Connected to: " + clientSocket.getInetAddress().getHostAddress() + ". OK");
-		} catch(UnknownHostException unknownHost) {
-			System.err.println("Unknown host: " + info.getIp() + ":" + info.getPort());	
-			return false;			
-		} catch (IOException ex) {
-			System.out.println("Socket timeout");
-			return false;
-		}
+		PeerRegistry.Peer peer = PeerRegistry.peerOf(info);
+		for (int attempt = 0; ; ++attempt)
+		{
+			long started = System.currentTimeMillis();
+			PeerConnection connection = null;
+			try
+			{		
+				connection = _pool.borrow(info);
+			} catch(UnknownHostException unknownHost) {
+				System.err.println("Unknown host: " + info.getIp() + ":" + info.getPort());	
+				peer.failed();
+				return failed;			
+			} catch (IOException ex) {
+				System.out.println("Socket timeout");
+				peer.failed();
+				return failed;
+			}
 
-		try
-		{	boolean sentOk = false;	 							
-		ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-		out.flush();
-		ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());			
+			try
+			{
+				T result = exchange.perform(connection.getInput(), connection.getOutput(), connection.getCodec());
+				connection.commandFinished();
+				_pool.release(connection);
+				peer.exchanged(System.currentTimeMillis() - started);
+				return result;
+			} catch (ClassNotFoundException | ClassCastException e) {
+				System.out.println("Object cast failed in the " + caller + "()");
+				_pool.discard(connection);
+				peer.failed();
+				return failed;
+			} catch (IOException e) {
+				_pool.discard(connection);
+				boolean visited = (exchange instanceof VisitingExchange) && ((VisitingExchange<?>)exchange)._visited;
+				if (!connection.isReused() || attempt > 0 || visited) {
+					System.out.println("Exception in " + caller + "()");
+					peer.failed();
+					return failed;
+				}
+				// kept connection has been closed by other side - retry with another one
+			}
+		}
+	}
 
-		// (1) send command			
-		out.writeObject("takeMyTimetable");
+	/**
+	 * Reads "goodbye" reply finishing command exchange
+	 */
+	private static boolean receiveGoodbye(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		String goodbye = (String)in.readObject();
+		return goodbye.equals("goodbye");
+	}
 
-		// (2) send number of objects
-		int number = _timetable.size();
-		out.writeObject(number);
+	public static boolean sendRequests(final HostInfo info, final ArrayList<RequestRecord> _requests) 
+	{
+		return exchange(info, "sendRequests", false, new Exchange<Boolean>() {
+			public Boolean perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
+				// (1) send command			
+				out.writeObject("takeMyRequests");
 
-		// (3)send booking/canceling records				
-		for (int i = 0; i < number; ++i) {
-			out.writeObject(_timetable.get(i));					
-		}
+				// (2-3) send number of objects and booking/canceling records
+				WireCodec.writeRequests(out, _requests, codec);
 
-		// (4) say "goodbye"			
-		out.writeObject(new String("goodbye"));
-		out.flush();
+				// (4) say "goodbye"			
+				out.writeObject("goodbye");
+				out.flush();
 
-		// (5) receive ok reply "goodbye"
-		String goodbye;
-		try {
-			goodbye = (String)in.readObject();
-			if (goodbye.equals("goodbye")) {
-				System.out.println("Timetable sending finished fine. Delivered to " + info.toString());
-				sentOk = true;
+				// (5) receive ok reply "goodbye"
+				if (receiveGoodbye(in)) {
+					System.out.println("Requests sending finished fine. Delivered to " + info.toString());
+					return true;
+				}
+				return false;
 			}
-		} catch (ClassNotFoundException e) {
-			System.out.println("String cast failed in the sendTimetable()");
-		}
+		});
+	}
+
+	public static boolean sendTimetable(final HostInfo info, final ArrayList<TimeTableEntry> _timetable)
+	{
+		return exchange(info, "sendTimetable", false, new Exchange<Boolean>() {
+			public Boolean perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
+				// (1) send command			
+				out.writeObject("takeMyTimetable");
 
-		in.close();
-		out.close();
-		clientSocket.close();				
+				// (2-3) send number of objects and timetable entries
+				WireCodec.writeTimetable(out, _timetable, codec);
 
-		return sentOk;
-		} catch(Exception e){	
-			System.out.println("Exception in sendTimetable()");
-		}	
+				// (4) say "goodbye"			
+				out.writeObject("goodbye");
+				out.flush();
 
-		return false;				
+				// (5) receive ok reply "goodbye"
+				if (receiveGoodbye(in)) {
+					System.out.println("Timetable sending finished fine. Delivered to " + info.toString());
+					return true;
+				}
+				return false;
+			}
+		});
 	}
 
 	/**
 	 * This function requests booking/canceling records from destination host
 	 * @param info destination host credentials
-	 * @return list of request records or empty list in case of unreachable host
+	 * @return list of request records or null in case of unreachable host
 	 */
 	public static ArrayList<RequestRecord> requestRecords(HostInfo info) 
 	{
-		if (info == null) {
-			System.out.println("requestRecords(): Host info is null.");
-			return null;
-		}
-
-		Socket clientSocket = null;
-		try
-		{		
-			// open new socket connection
-			clientSocket = new Socket(info.getIp(), info.getPort());
-			System.out.println("Connected to: " + clientSocket.getInetAddress().getHostAddress() + ". OK");
-		} catch(UnknownHostException unknownHost) {
-			System.err.println("Unknown host: " + info.getIp() + ":" + info.getPort());	
-			return null;			
-		} catch (IOException ex) {
-			System.out.println("Socket timeout");
-			return null;
-		}
-
-		try
-		{
-			ArrayList<RequestRecord>  requests = new ArrayList<RequestRecord>();
-			ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());			
-
-			// (1) send command			
-			out.writeObject("giveMeRequests");
-			out.flush();
-
-			// (2) receive number of objects
-			int numberOfObjects = 0;
-			try {
-				numberOfObjects = (int)in.readObject();
-			} catch (ClassNotFoundException e1) {
-				System.out.println("Failed to cast number of objects");
-				return null;
-			}	
-
-			// (3)receive booking/canceling records
-			for (int i = 0; i < numberOfObjects; ++i)
+		final ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();
+		boolean received = requestRecords(info, new RequestVisitor() {
+			public void visit(RequestRecord record)
 			{
-				try
-				{
-					RequestRecord record = (RequestRecord)in.readObject();
-					requests.add(record);
-				}
-				catch(ClassNotFoundException e)
-				{
-					System.err.println("Data received in unknown format");
-				}
+				requests.add(record);
 			}
+		});
+		return received ? requests : null;
+	}
 
-			// (4) say "goodbye"			
-			out.writeObject(new String("goodbye"));
-			out.flush();
-
-			// (5) receive ok reply "goodbye"
-			try 
+	/**
+	 * This function requests booking/canceling records from destination host
+	 * and gives them to visitor one by one while they are received, so that
+	 * all of them are not kept in memory (see WireCodec.STREAM_VERSION).
+	 * Every record is given once: failed exchange is not repeated after
+	 * the first record was given to visitor.
+	 * @param info destination host credentials
+	 * @return whether records were received, visitor could get part of them otherwise
+	 */
+	public static boolean requestRecords(HostInfo info, final RequestVisitor visitor) 
+	{
+		return exchange(info, "requestRecords", false, new VisitingExchange<Boolean>() {
+			public Boolean perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
 			{
-				String goodbye;
-				goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye")) {
+				// (1) send command			
+				out.writeObject("giveMeRequests");
+				out.flush();
+
+				// (2-3) receive booking/canceling records by chunks
+				WireCodec.readRequestStream(in, codec, new RequestVisitor() {
+					public void visit(RequestRecord record) throws IOException {
+						_visited = true;
+						visitor.visit(record);
+					}
+				});
+
+				// (4) say "goodbye"			
+				out.writeObject("goodbye");
+				out.flush();
+
+				// (5) receive ok reply "goodbye"
+				if (receiveGoodbye(in)) {
 					System.out.println("Records requesting finished fine.");
 				}
-			} catch (ClassNotFoundException e) {
-				System.out.println("Object cast failed in the requestRecords()");
+				return true;
 			}
-
-			in.close();
-			out.close();
-			clientSocket.close();
-
-			return requests;
-		}		
-		catch(IOException ioException)
-		{
-			System.err.println("IOexception occured in requestRecords()");
-			ioException.printStackTrace();
-			return null;
-		}		
+		});
 	}
 
 	/**
 	 * This function requests timetable from destination host
 	 * @param info destination host credentials
-	 * @return list of timetable entries or empty list in case of unreachable host
+	 * @return list of timetable entries or null in case of unreachable host
 	 */
 	public static ArrayList<TimeTableEntry> requestTimetable(HostInfo info) 
 	{	
-		if (info == null) {
-			System.out.println("requestTimetable(): Host info is null.");
-			return null;
-		}
-
-		Socket clientSocket = null;
-		try
-		{		
-			// open new socket connection
-			clientSocket = new Socket(info.getIp(), info.getPort());			
-			//System.out.println("Connected to: " + clientSocket.getInetAddress().getHostAddress() + ". OK");
-		} catch(UnknownHostException unknownHost) {
-			System.err.println("Unknown host: " + info.getIp() + ":" + info.getPort());	
-			return null;			
-		} catch (IOException ex) {
-			System.out.println("Socket timeout");
-			return null;
-		}
-		try 
-		{
-			ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();
-			ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());			
+		return exchange(info, "requestTimetable", null, new Exchange<ArrayList<TimeTableEntry>>() {
+			public ArrayList<TimeTableEntry> perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
+				// (1) send command			
+				out.writeObject("giveMeTimetable");
+				out.flush();
 
-			// (1) send command			
-			out.writeObject("giveMeTimetable");
-			out.flush();
+				// (2-3) receive number of objects and timetable entries
+				ArrayList<TimeTableEntry> timetable = WireCodec.readTimetable(in, codec);
 
-			// (2) receive number of objects
-			int numberOfObjects = 0;
-			try {
-				numberOfObjects = (int)in.readObject();
-			} catch (ClassNotFoundException e1) {
-				System.out.println("Failed to cast number of objects");
-				return null;
-			}			
+				// (4) say "goodbye"			
+				out.writeObject("goodbye");
+				out.flush();
 
-			// (3)receive booking/canceling records
-			for (int i = 0; i < numberOfObjects; ++i)
-			{
-				try
-				{
-					TimeTableEntry record = (TimeTableEntry)in.readObject();
-					timetable.add(record);
-				}
-				catch(ClassNotFoundException e)
-				{
-					System.err.println("Data received in unknown format");
+				// (5) receive ok reply "goodbye"
+				if (receiveGoodbye(in)) {
+					System.out.println("Timetable requesting finished fine.");
 				}
+				return timetable;
 			}
+		});
+	}	
 
-			// (4) say "goodbye"			
-			out.writeObject("goodbye");
-			out.flush();
-
-			// (5) receive ok reply "goodbye"
-			try 
+	/**
+	 * This function requests timetable from destination host only if it is changed
+	 * since it was kept in the cache, otherwise the kept copy is given.
+	 * Host which doesn't support WireCodec.TIMETABLE_VERSION sends whole timetable.
+	 * @param info destination host credentials
+	 * @param cache timetable kept by caller, it is updated
+	 * @return list of timetable entries or null in case of unreachable host
+	 */
+	public static ArrayList<TimeTableEntry> requestTimetable(final HostInfo info, final TimetableCache cache) 
+	{	
+		return exchange(info, "requestTimetable", null, new Exchange<ArrayList<TimeTableEntry>>() {
+			public ArrayList<TimeTableEntry> perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
 			{
-				String goodbye;
-				goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye")) {
-					System.out.println("Timetable requesting finished fine.");
+				long version = TimetableCache.NO_VERSION;
+				ArrayList<TimeTableEntry> timetable = null;
+
+				// (1-3) send command with kept version, receive version and changed timetable
+				if (codec >= WireCodec.TIMETABLE_VERSION) {
+					long known = cache.getVersion(info);
+					out.writeObject("giveMeTimetableIfNewer");
+					out.writeLong(known);
+					out.flush();
+					version = in.readLong();
+					if (version != known) {
+						timetable = WireCodec.readTimetable(in, codec);
+					}
+				} else {
+					out.writeObject("giveMeTimetable");
+					out.flush();
+					timetable = WireCodec.readTimetable(in, codec);
 				}
-			} catch (ClassNotFoundException e) {
-				System.out.println("Object cast failed in the requestTimetable()");					
-			}				
 
-			in.close();
-			out.close();
-			clientSocket.close();
+				// (4) say "goodbye"			
+				out.writeObject("goodbye");
+				out.flush();
 
-			return timetable;
-		}		
-		catch(IOException ioException)
-		{
-			System.err.println("IOexception occured in requestTimetable()");
-			ioException.printStackTrace();
-			return null;
-		}				
+				// (5) receive ok reply "goodbye"
+				if (receiveGoodbye(in)) {
+					System.out.println("Timetable requesting finished fine.");
+				}
+				return cache.update(info, version, timetable);
+			}
+		});
 	}	
 
-	/* This function is to communicate between air companies only! */
+	/**
+	 * This function is to communicate between air companies only!
+	 * Sends broadcast to all recipients concurrently and waits for results.
+	 * @return whether all recipients received broadcast
+	 */
 	public static boolean sendBroadcast(LinkedList<HostInfo> recipients, ArrayList<RequestRecord> requests, ArrayList<TimeTableEntry> timetable)
 	{		
-		boolean sentOk = false;
-		ListIterator<HostInfo> li = recipients.listIterator();
-		while (li.hasNext()) {
-			HostInfo recipient = li.next();			
-			boolean currentOk = sendBroadcast(recipient, requests, timetable);
-			sentOk = sentOk && currentOk;
-		}		
-		return sentOk;
+		LinkedList<HostInfo> delivered = awaitDelivered(sendBroadcastAsync(recipients, requests, timetable));
+		return delivered.size() == recipients.size();
 	}
 
-	public static boolean sendBroadcast(HostInfo recipient, ArrayList<RequestRecord> requests, ArrayList<TimeTableEntry> timetable)
-	{		
-		if (recipient == null) {
-			System.out.println("sendBroadcast(): Host info is null.");
-			return false;
-		}		
-
-		Socket clientSocket = null;
-		try
-		{				
-			clientSocket = new Socket(recipient.getIp(), recipient.getPort());			
-		} catch(UnknownHostException unknownHost) {
-			System.err.println("Unknown airCompany: " + recipient.getIp() + ":" + recipient.getPort());	
-			return false;			
-		} catch (IOException ex) {
-			System.out.println("Socket timeout");
-			return false;
+	/**
+	 * Starts sending broadcast to every recipient in the background. Failed
+	 * sending is repeated up to BROADCAST_ATTEMPTS times with growing delay.
+	 * @return result of sending for every recipient, in recipients order
+	 */
+	public static LinkedHashMap<HostInfo, Future<Boolean>> sendBroadcastAsync(LinkedList<HostInfo> recipients, 
+			final ArrayList<RequestRecord> requests, final ArrayList<TimeTableEntry> timetable)
+	{
+		LinkedHashMap<HostInfo, Future<Boolean>> results = new LinkedHashMap<HostInfo, Future<Boolean>>();
+		for (final HostInfo recipient : recipients) {
+			results.put(recipient, submit(new Callable<Boolean>() {
+				public Boolean call() throws InterruptedException
+				{
+					int delay = RETRY_DELAY;
+					for (int attempt = 1; ; ++attempt) {
+						if (sendBroadcast(recipient, requests, timetable)) {
+							return true;
+						}
+						if (attempt == BROADCAST_ATTEMPTS) {
+							return false;
+						}
+						Thread.sleep(delay);
+						delay *= 2;
+					}
+				}
+			}));
 		}
+		return results;
+	}
 
-		try
-		{	
-			boolean sentOk = false;
-			ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
+	/**
+	 * Waits BROADCAST_TIMEOUT at most for results of sendBroadcastAsync(),
+	 * sending which is not finished by then is cancelled.
+	 * @return recipients which received broadcast
+	 */
+	public static LinkedList<HostInfo> awaitDelivered(Map<HostInfo, Future<Boolean>> results)
+	{
+		LinkedList<HostInfo> delivered = new LinkedList<HostInfo>();
+		long deadline = System.currentTimeMillis() + BROADCAST_TIMEOUT;
+		for (Map.Entry<HostInfo, Future<Boolean>> result : results.entrySet()) {
+			if (await(result.getValue(), deadline, false)) {
+				delivered.add(result.getKey());
+			} else {
+				System.out.println("Broadcast is not delivered to " + result.getKey().toString());
+			}
+		}
+		return delivered;
+	}
 
-			out.writeObject("broadcast");			
+	/**
+	 * Runs task on the threads sending broadcasts
+	 */
+	public static <T> Future<T> submit(Callable<T> task)
+	{
+		return _senders.submit(task);
+	}
 
-			// flushing requests
-			int reqs_number = (requests == null) ? 0 : requests.size();
-			out.writeObject(reqs_number);
+	/**
+	 * Waits for result of the task till deadline, cancels task if it isn't finished
+	 * @param deadline time in milliseconds as System.currentTimeMillis() gives
+	 * @param failed result returned when task failed or timed out
+	 */
+	public static <T> T await(Future<T> future, long deadline, T failed)
+	{
+		try {
+			return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			return failed;
+		} catch (ExecutionException e) {
+			System.err.println("Task failed: " + e.getCause());
+			return failed;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return failed;
+		}
+	}
 
-			for (int i = 0; i < reqs_number; ++i) {				
-				out.writeObject(requests.get(i));
-			}
-			out.flush();
+	private static ThreadPoolExecutor createSenders()
+	{
+		ThreadPoolExecutor senders = new ThreadPoolExecutor(BROADCAST_THREADS, BROADCAST_THREADS, 
+				ConnectionPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), 
+				new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "NetworkOperator sender");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		senders.allowCoreThreadTimeOut(true);
+		return senders;
+	}
+
+	/**
+	 * Every open pipeline takes one reader, so their number is not limited
+	 */
+	private static ThreadPoolExecutor createReaders()
+	{
+		return new ThreadPoolExecutor(0, Integer.MAX_VALUE, ConnectionPool.IDLE_TIMEOUT, TimeUnit.MILLISECONDS,
+				new SynchronousQueue<Runnable>(), new ThreadFactory() {
+					public Thread newThread(Runnable task) {
+						Thread thread = new Thread(task, "Pipeline reader");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
 
-			// flushing timetable
-			int tt_number = (timetable == null) ? 0 : timetable.size();
-			out.writeObject(tt_number);
+	public static boolean sendBroadcast(final HostInfo recipient, final ArrayList<RequestRecord> requests, final ArrayList<TimeTableEntry> timetable)
+	{		
+		return exchange(recipient, "sendBroadcast", false, new Exchange<Boolean>() {
+			public Boolean perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
+				out.writeObject("broadcast");			
 
-			for (int i = 0; i < tt_number; ++i) {				
-				out.writeObject(timetable.get(i));
-			}
-			out.flush();
+				// flushing requests
+				WireCodec.writeRequests(out, requests, codec);
 
-			out.writeObject("goodbye");
-			out.flush();
+				// flushing timetable
+				WireCodec.writeTimetable(out, timetable, codec);
 
-			try {
-				String goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye")) {
+				out.writeObject("goodbye");
+				out.flush();
+
+				if (receiveGoodbye(in)) {
 					System.out.println("Broadcast sent fine. Delivered to " + recipient.toString());
-					sentOk = true;
+					return true;
 				}
-			} catch (ClassNotFoundException e) {
-				e.printStackTrace();
-				System.out.println("Object cast failed in the sendRequests()");
+				return false;
 			}
+		});
+	}	
 
-			in.close();
-			out.close();
-			clientSocket.close();				
+	/**
+	 * @return whether host is able to exchange change sets
+	 */
+	public static boolean supportsChanges(HostInfo info)
+	{
+		return exchange(info, "supportsChanges", false, new Exchange<Boolean>() {
+			public Boolean perform(ObjectInputStream in, ObjectOutputStream out, int codec)
+			{
+				// codec is agreed when connection is opened - nothing to send
+				return codec >= WireCodec.CHANGES_VERSION;
+			}
+		});
+	}
 
-			return sentOk;
-		} catch(Exception e){
-			e.printStackTrace();
-			System.out.println("Exception in sendBroadcast()");
-		}	
+	/**
+	 * This function reports seats used by holder to air company operating the flight
+	 * and asks it for more seats. Changes confirming used seats must be delivered before.
+	 * @param day flight date as FlightCalendar.toEpochDay() gives
+	 * @return number of seats lent or -1 if host is unreachable or doesn't lend seats
+	 */
+	public static int requestSeats(HostInfo info, final String holder, final int flight, final int day, 
+			final int used, final int returned, final int wanted)
+	{
+		return exchange(info, "requestSeats", -1, new Exchange<Integer>() {
+			public Integer perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
+				if (codec < WireCodec.SEATS_VERSION) {
+					return -1;
+				}
+				out.writeObject("giveMeSeats");
+				out.writeObject(holder);
+				out.writeInt(flight);
+				out.writeInt(day);
+				out.writeInt(used);
+				out.writeInt(returned);
+				out.writeInt(wanted);
+				out.flush();
 
-		return false;		
-	}	
+				int lent = in.readInt();
 
-	public static boolean sendTakeOff(HostInfo info)
+				out.writeObject("goodbye");
+				out.flush();
+				receiveGoodbye(in);
+				return lent;
+			}
+		});
+	}
+
+	/**
+	 * This function pushes changes of request records to other air company
+	 * @param info destination host credentials
+	 * @param changes change set with origin set to our company name
+	 */
+	public static boolean sendChanges(final HostInfo info, final ChangeSet changes)
 	{
-		if (info == null) {
-			System.out.println("sendTakeOff(): Host info is null.");
-			return false;
-		}
+		return exchange(info, "sendChanges", false, new Exchange<Boolean>() {
+			public Boolean perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
+				out.writeObject("takeMyChanges");
+				WireCodec.writeChanges(out, changes, codec);
+				out.writeObject("goodbye");
+				out.flush();
 
-		Socket clientSocket = null;
-		try
-		{				
-			clientSocket = new Socket(info.getIp(), info.getPort());			
-		} catch(UnknownHostException unknownHost) {
-			System.err.println("Unknown host: " + info.getIp() + ":" + info.getPort());	
-			return false;			
-		} catch (IOException ex) {
-			System.out.println("Socket timeout");
-			return false;
-		}
+				if (receiveGoodbye(in)) {
+					System.out.println("Changes sent fine (" + changes.toString() + "). Delivered to " + info.toString());
+					return true;
+				}
+				return false;
+			}
+		});
+	}
 
-		try
-		{	
-			boolean sendedOk = false;										
-			ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(clientSocket.getInputStream());
+	/**
+	 * This function requests changes of request records from other air company
+	 * @param info destination host credentials
+	 * @param sequence latest sequence number received from this host before
+	 * @return change set or null in case of unreachable host
+	 */
+	public static ChangeSet requestChanges(HostInfo info, final int sequence)
+	{
+		return exchange(info, "requestChanges", null, new Exchange<ChangeSet>() {
+			public ChangeSet perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
+				out.writeObject("giveMeChanges");
+				out.writeInt(sequence);
+				out.flush();
 
-			out.writeObject("takeOff");		
-			out.flush();
+				ChangeSet changes = WireCodec.readChanges(in, codec);
 
-			out.writeObject("goodbye");
-			out.flush();
+				out.writeObject("goodbye");
+				out.flush();
 
-			try {
-				String goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye")) {
-					System.out.println("TakeOff comand sent fine. Delivered to " + info.toString());
-					sendedOk = true;
+				if (receiveGoodbye(in)) {
+					System.out.println("Changes requesting finished fine.");
 				}
-			} catch (ClassNotFoundException e) {
-				System.out.println("Object cast failed in the sendRequests()");
+				return changes;
 			}
+		});
+	}
 
-			in.close();
-			out.close();
-			clientSocket.close();				
-
-			return sendedOk;
-		} catch(Exception e){	
-			System.out.println("Exception in sendRequests()");
-		}	
+	public static boolean sendTakeOff(final HostInfo info)
+	{
+		return exchange(info, "sendTakeOff", false, new Exchange<Boolean>() {
+			public Boolean perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
+				out.writeObject("takeOff");		
+				out.writeObject("goodbye");
+				out.flush();
 
-		return false;		
+				if (receiveGoodbye(in)) {
+					System.out.println("TakeOff comand sent fine. Delivered to " + info.toString());
+					return true;
+				}
+				return false;
+			}
+		});
 	}	
 
 	/**
@@ -491,51 +627,127 @@ public class NetworkOperator {
 	 * @param info receiver host details
 	 * @param record request record to send
 	 */
-	public static boolean sendRecord(HostInfo info, RequestRecord record) 
+	public static boolean sendRecord(final HostInfo info, final RequestRecord record) 
 	{
-		if (info != null) {
-			try
-			{					        	
-				Socket clientSocket = null;
-				try
-				{		
-					// open new socket connection
-					clientSocket = new Socket(info.getIp(), info.getPort());
-					System.out.println("Connected to: " + clientSocket.getInetAddress().getHostAddress() + ". OK");
-				} catch(UnknownHostException unknownHost) {
-					System.err.println("Unknown host: " + info.getIp() + ":" + info.getPort());	
-					return false;			
-				} catch (IOException ex) {
-					System.out.println("Socket timeout");
-					return false;
-				}			
-				ObjectOutputStream out = new ObjectOutputStream(clientSocket.getOutputStream());
-				out.flush();
-
+		return exchange(info, "sendRecord", false, new Exchange<Boolean>() {
+			public Boolean perform(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException
+			{
 				// (1) send command			
 				out.writeObject("takeMyRequest");
 
-				// (2) send number of objects (one for our case)
-				int number = 1;
-				out.writeObject(number);
-
-				// (3)send booking/canceling record
-				out.writeObject(record);
+				// (2-3) send number of objects (one for our case) and booking/canceling record
+				ArrayList<RequestRecord> records = new ArrayList<RequestRecord>(1);
+				records.add(record);
+				WireCodec.writeRequests(out, records, codec);
 
 				// (4) say "goodbye"			
-				out.writeObject(new String("goodbye"));
+				out.writeObject("goodbye");
 				out.flush();
 
-				out.close();
-				clientSocket.close();			
+				// (5) receive ok reply "goodbye"
+				return receiveGoodbye(in);
+			}
+		});
+	}
 
-				return true;
-			} catch(Exception e){	
-				System.out.println("Exception in sendRecord()");
-			}	
+	/**
+	 * This function sends request records to host one record per command. If host
+	 * supports framed commands they are pipelined, so burst of records costs one
+	 * round trip and is merged by host at once.
+	 * @param info receiver host details
+	 * @param records booking/canceling records to send
+	 * @return records which were not delivered
+	 */
+	public static ArrayList<RequestRecord> sendRecords(HostInfo info, List<RequestRecord> records)
+	{
+		ArrayList<RequestRecord> failed = new ArrayList<RequestRecord>();
+		Pipeline pipeline = openPipeline(info);
+		if (pipeline == null) {
+			for (RequestRecord record : records) {
+				if (!sendRecord(info, record)) {
+					failed.add(record);
+				}
+			}
+			return failed;
+		}
+
+		ArrayList<Future<Boolean>> replies = new ArrayList<Future<Boolean>>(records.size());
+		for (RequestRecord record : records) {
+			replies.add(pipeline.sendRecord(record));
+		}
+		pipeline.close();
+		for (int i = 0; i < records.size(); ++i) {
+			if (!await(replies.get(i), System.currentTimeMillis(), false)) {
+				failed.add(records.get(i));
+			}
 		}
+		return failed;
+	}
 
-		return false;
+	/**
+	 * This function sends request records to host in one command: one TAKE_MY_REQUEST
+	 * frame if host supports framed commands, otherwise "takeMyRequests" command.
+	 * @param info receiver host details
+	 * @param records booking/canceling records to send
+	 * @return true if host took all records
+	 */
+	public static boolean sendBatch(HostInfo info, ArrayList<RequestRecord> records)
+	{
+		Pipeline pipeline = openPipeline(info);
+		if (pipeline == null) {
+			return sendRequests(info, records);
+		}
+
+		Future<Boolean> reply = pipeline.sendRecords(records);
+		pipeline.close();
+		return await(reply, System.currentTimeMillis(), false);
+	}
+
+	/**
+	 * Starts framed session with host (see Pipeline), it should be closed by caller.
+	 * @param info destination host credentials
+	 * @return pipeline or null if host doesn't support framed commands or it is unreachable
+	 */
+	public static Pipeline openPipeline(HostInfo info)
+	{
+		if (info == null) {
+			System.out.println("openPipeline(): Host info is null.");
+			return null;
+		}
+
+		PeerRegistry.Peer peer = PeerRegistry.peerOf(info);
+		PeerConnection connection = null;
+		try {
+			connection = _pool.borrow(info);
+		} catch (IOException e) {
+			System.out.println("Socket timeout");
+			peer.failed();
+			return null;
+		}
+		if (connection.getCodec() < WireCodec.FRAMED_VERSION) {
+			_pool.release(connection);
+			return null;
+		}
+
+		try {
+			// frames are written to the socket directly after the command
+			connection.getOutput().writeObject(FrameProtocol.COMMAND);
+			connection.getOutput().flush();
+		} catch (IOException e) {
+			System.out.println("Exception in openPipeline()");
+			_pool.discard(connection);
+			peer.failed();
+			return null;
+		}
+		return new Pipeline(_pool, connection, peer, _readers);
+	}
+
+	/**
+	 * Closes all connections kept to other devices
+	 */
+	public static void closeConnections()
+	{
+		_pool.closeAll();
 	}
 
 	/** Function for searching any available port for socket connection
@@ -3,7 +3,6 @@ import java.net.InetAddress;
 import java.net.UnknownHostException;
 
 import java.util.LinkedList;
-import java.util.ListIterator;
 
 import javax.jmdns.JmDNS;
 import javax.jmdns.ServiceEvent;
@@ -31,15 +30,14 @@ public class PassiveDeviceFinder {
 	// own service name
 	private String _deviceName = null;
 	
-	// list of all devices
-	private LinkedList<HostInfo> _devices = null;	
+	// devices of the service type, not including _myself
+	private PeerRegistry _peers = new PeerRegistry();
 
 	/* Creating JmDNS instance and registering the local service */
 	public PassiveDeviceFinder(String serviceType, String deviceName, int port)
 	{		
 		_serviceType = serviceType;
 		_deviceName = deviceName;		
-		_devices = new LinkedList<HostInfo>();
 		
 		try {
 			_myself = new HostInfo(_deviceName, InetAddress.getLocalHost().getHostAddress(), port);
@@ -63,25 +61,26 @@ public class PassiveDeviceFinder {
 	
 	private void refreshDeviceList()
 	{
-		_devices.clear();
-		
-		LinkedList<HostInfo> devices = jmdnsRequestDevices();
-		ListIterator<HostInfo> li = devices.listIterator();
-        while (li.hasNext()) {
-        	HostInfo info = li.next();        	
-        	saveHostInfo(info.getName(), info.getIp(), info.getPort());
-        }      
+		LinkedList<HostInfo> devices = new LinkedList<HostInfo>();
+		for (HostInfo info : jmdnsRequestDevices()) {
+			// do not save myself
+			if (!info.getIp().equals(_myself.getIp()) || info.getPort() != _myself.getPort()) {
+				devices.add(info);
+			}
+		}
+		// saved devices are replaced, not cleared - readers don't see empty list
+		_peers.retainOnly(devices);
 	}
 
 	/* Here we find all network devices of type "CAMP" including _myself
 	 * and add them to list "Devices"
 	 */
-	private synchronized LinkedList<HostInfo> jmdnsRequestDevices()
+	private LinkedList<HostInfo> jmdnsRequestDevices()
 	{		
 		return jmdnsRequestDevices(_serviceType);		
 	}	
 	
-	public synchronized LinkedList<HostInfo> jmdnsRequestDevices(String type)
+	public LinkedList<HostInfo> jmdnsRequestDevices(String type)
 	{
 		LinkedList<HostInfo> devices = new LinkedList<HostInfo>();
 		ServiceInfo[] serviceInfos = _jmdns.list(type);			
@@ -108,52 +107,41 @@ public class PassiveDeviceFinder {
 	}
 	
 	/** 
-	 * Here we return all network devices saved for the moment as CAMP devices
+	 * Here we return copy of all network devices saved for the moment as CAMP devices
+	 */
+	public LinkedList<HostInfo> getDevices()
+	{
+		return new LinkedList<HostInfo>(_peers.getPeers());
+	}
+	
+	/**
+	 * @return registry of saved devices, for reading them without copying
+	 * and for listening to their changes
 	 */
-	public synchronized LinkedList<HostInfo> getDevices()
+	public PeerRegistry getPeerRegistry()
 	{
-		return _devices;
+		return _peers;
 	}
 	
 	/** 
 	 * Here we save CAMP device if it has not been saved yet 
 	 * and if it is not _myself
 	 */
-	private synchronized void saveHostInfo(String name, String ip, int port)
+	private void saveHostInfo(String name, String ip, int port)
 	{
 		// do not save myself into CAMP devices
 		if (ip.equals(_myself.getIp()) && port == _myself.getPort()) {
 			return;
 		}
-		
-		// check if such info has been saved before
-		ListIterator<HostInfo> li = _devices.listIterator();
-        while (li.hasNext()) {
-        	HostInfo info = li.next();
-        	
-        	// if this host has been saved - do not save it
-        	if (ip.equals(info.getIp()) && info.getPort() == port) {        		
-        		return;
-        	}
-        }
-        
-        // finally, save host info
-        _devices.add(new HostInfo(name, ip, port));
+		_peers.add(new HostInfo(name, ip, port));
 	}
 	
 	/**
 	 *  Here we remove info about CAMP device from our list
 	 */
-	private synchronized void forgetHostInfo(String ip, int port)
+	private void forgetHostInfo(String ip, int port)
 	{		
-		ListIterator<HostInfo> li = _devices.listIterator();
-        while (li.hasNext()) {
-        	HostInfo info = li.next();        	
-        	if (ip.equals(info.getIp()) && info.getPort() == port) { 
-        		_devices.remove(li.nextIndex() - 1);
-        		return;
-        	}        	
-        }
+		_peers.remove(ip, port);
 	}
 
 	/*
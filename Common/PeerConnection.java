@@ -0,0 +1,169 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ *  This class keeps one socket connection to another device together
+ *  with its object streams. Object stream headers are exchanged only once,
+ *  when connection is opened, so the connection could be used for
+ *  many commands while it is kept in ConnectionPool.
+ *
+ *  Record format (see WireCodec) is negotiated once for the connection.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class PeerConnection {
+	/* pool key of the host this connection belongs to */
+	private String 				_key;
+
+	private Socket 				_socket;
+	private ObjectOutputStream 	_out;
+	private ObjectInputStream 	_in;
+
+	/* time when connection was used last time */
+	private long 				_lastUsed;
+
+	/* number of finished commands sent over this connection */
+	private int 				_commands = 0;
+
+	/* WireCodec version agreed with other side */
+	private int 				_codec = WireCodec.LEGACY;
+
+	/**
+	 * Opens new connection and exchanges object stream headers.
+	 * @param info destination host credentials
+	 * @param connectTimeout connection timeout in milliseconds
+	 * @param readTimeout reading timeout in milliseconds
+	 */
+	public PeerConnection(HostInfo info, int connectTimeout, int readTimeout) throws IOException
+	{
+		_key = ConnectionPool.keyOf(info);
+		_socket = new Socket();
+		try {
+			_socket.connect(new InetSocketAddress(info.getIp(), info.getPort()), connectTimeout);
+			_socket.setTcpNoDelay(true);
+			_socket.setSoTimeout(readTimeout);
+			_out = new ObjectOutputStream(_socket.getOutputStream());
+			_out.flush();
+			_in = new ObjectInputStream(_socket.getInputStream());
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		_lastUsed = System.currentTimeMillis();
+	}
+
+	public String getKey() {
+		return _key;
+	}
+
+	public ObjectOutputStream getOutput() {
+		return _out;
+	}
+
+	public ObjectInputStream getInput() {
+		return _in;
+	}
+
+	/**
+	 * Frames of framed session are sent over the socket directly (see FrameProtocol)
+	 */
+	public Socket getSocket() {
+		return _socket;
+	}
+
+	public int getCodec() {
+		return _codec;
+	}
+
+	/**
+	 * Sets codec version already known for other side
+	 */
+	public void setCodec(int codec) {
+		_codec = codec;
+	}
+
+	/**
+	 * Agrees record format with other side.
+	 * @return agreed WireCodec version
+	 */
+	public int negotiateCodec() throws IOException
+	{
+		try {
+			_codec = WireCodec.negotiate(_in, _out);
+		} catch (ClassNotFoundException e) {
+			_codec = WireCodec.LEGACY;
+		}
+		commandFinished();
+		return _codec;
+	}
+
+	/**
+	 * Whether this connection has been used before, so it could be
+	 * closed by other side in the meantime.
+	 */
+	public boolean isReused() {
+		return _commands > 0;
+	}
+
+	/**
+	 * Marks the end of command exchange. Object stream handle table is reset,
+	 * so that objects sent next time are written again and not as references
+	 * to the objects sent before.
+	 */
+	public void commandFinished() throws IOException
+	{
+		_out.reset();
+		_out.flush();
+		++_commands;
+		_lastUsed = System.currentTimeMillis();
+	}
+
+	/**
+	 * @return time in milliseconds since connection was used last time
+	 */
+	public long idleTime() {
+		return System.currentTimeMillis() - _lastUsed;
+	}
+
+	/**
+	 * Cheap local check, doesn't detect that connection was closed by other side.
+	 */
+	public boolean isOpen() {
+		return _socket.isConnected() && !_socket.isClosed()
+				&& !_socket.isInputShutdown() && !_socket.isOutputShutdown();
+	}
+
+	/**
+	 * Health check: sends "ping" command and waits for "goodbye" reply.
+	 * @return whether other side replied
+	 */
+	public boolean ping()
+	{
+		try {
+			_out.writeObject("ping");
+			_out.writeObject("goodbye");
+			_out.flush();
+			String goodbye = (String)_in.readObject();
+			if (goodbye.equals("goodbye")) {
+				commandFinished();
+				return true;
+			}
+		} catch (Exception e) {
+		}
+		return false;
+	}
+
+	public void close()
+	{
+		try {
+			_socket.close();
+		} catch (IOException e) {
+		}
+	}
+}
@@ -0,0 +1,241 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ *  This class keeps devices found in the network, keyed by ip and port.
+ *  Readers get immutable snapshot of the devices without locking, snapshot
+ *  is replaced on every change and listeners are notified after it.
+ *
+ *  Every device has metadata shared by all registries (see Peer): when it was
+ *  seen in the network, response time and number of failed exchanges in a row
+ *  as NetworkOperator reports them. getBest() picks the healthiest device.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class PeerRegistry {
+	/**
+	 * Receives changes of registry, it is called outside registry lock
+	 */
+	public interface Listener {
+		void peerAdded(HostInfo peer);
+		void peerRemoved(HostInfo peer);
+	}
+
+	/**
+	 * Metadata of device, one per ip and port
+	 */
+	public static class Peer {
+		private volatile long 	_lastSeen = 0;
+		private volatile long 	_responseTime = 0;
+		private volatile int 	_failures = 0;
+
+		/* time in milliseconds as System.currentTimeMillis() gives, 0 if never seen */
+		public long getLastSeen() {
+			return _lastSeen;
+		}
+
+		/* average duration of command exchange in milliseconds, 0 if unknown */
+		public long getResponseTime() {
+			return _responseTime;
+		}
+
+		/* failed exchanges since the last successful one */
+		public int getFailures() {
+			return _failures;
+		}
+
+		public void seen() {
+			_lastSeen = System.currentTimeMillis();
+		}
+
+		/**
+		 * Command exchange succeeded, it took given time
+		 */
+		public synchronized void exchanged(long milliseconds) {
+			// moving average, so that single slow exchange doesn't change much
+			_responseTime = (_responseTime == 0) ? Math.max(1, milliseconds) : (_responseTime * 7 + milliseconds) / 8;
+			_failures = 0;
+			seen();
+		}
+
+		public synchronized void failed() {
+			++_failures;
+		}
+	}
+
+	/* metadata of all devices by key */
+	private static final ConcurrentHashMap<String, Peer> 	_metadata = new ConcurrentHashMap<String, Peer>();
+
+	/* devices by key in order they were found, changed under the registry lock */
+	private LinkedHashMap<String, HostInfo> 				_peers = new LinkedHashMap<String, HostInfo>();
+	private volatile List<HostInfo> 						_snapshot = Collections.emptyList();
+
+	private CopyOnWriteArrayList<Listener> 					_listeners = new CopyOnWriteArrayList<Listener>();
+
+	/**
+	 * @return metadata of the device, it is created on the first call
+	 */
+	public static Peer peerOf(HostInfo info)
+	{
+		String key = keyOf(info.getIp(), info.getPort());
+		Peer peer = _metadata.get(key);
+		if (peer == null) {
+			_metadata.putIfAbsent(key, new Peer());
+			peer = _metadata.get(key);
+		}
+		return peer;
+	}
+
+	/**
+	 * @return device with the least failures, then with the least response time;
+	 * devices which weren't contacted yet go after healthy ones. Null if list is empty.
+	 */
+	public static HostInfo best(Collection<HostInfo> devices)
+	{
+		HostInfo best = null;
+		Peer bestPeer = null;
+		for (HostInfo info : devices) {
+			Peer peer = peerOf(info);
+			if (best == null || isHealthier(peer, bestPeer)) {
+				best = info;
+				bestPeer = peer;
+			}
+		}
+		return best;
+	}
+
+	private static boolean isHealthier(Peer peer, Peer than)
+	{
+		if (peer.getFailures() != than.getFailures()) {
+			return peer.getFailures() < than.getFailures();
+		}
+		long time = (peer.getResponseTime() == 0) ? Long.MAX_VALUE : peer.getResponseTime();
+		long thanTime = (than.getResponseTime() == 0) ? Long.MAX_VALUE : than.getResponseTime();
+		return time < thanTime;
+	}
+
+	/**
+	 * @return immutable list of devices, it is not changed by registry
+	 */
+	public List<HostInfo> getPeers()
+	{
+		return _snapshot;
+	}
+
+	/**
+	 * @return the healthiest device (see best()) or null if there are no devices
+	 */
+	public HostInfo getBest()
+	{
+		return best(_snapshot);
+	}
+
+	public boolean isEmpty()
+	{
+		return _snapshot.isEmpty();
+	}
+
+	public void addListener(Listener listener)
+	{
+		_listeners.add(listener);
+	}
+
+	public void removeListener(Listener listener)
+	{
+		_listeners.remove(listener);
+	}
+
+	/**
+	 * Adds device or marks it as seen if it is known
+	 * @return whether device is added
+	 */
+	public boolean add(HostInfo info)
+	{
+		peerOf(info).seen();
+		synchronized (this) {
+			String key = keyOf(info.getIp(), info.getPort());
+			if (_peers.containsKey(key)) {
+				return false;
+			}
+			_peers.put(key, info);
+			publish();
+		}
+		for (Listener listener : _listeners) {
+			listener.peerAdded(info);
+		}
+		return true;
+	}
+
+	/**
+	 * @return whether device was known
+	 */
+	public boolean remove(String ip, int port)
+	{
+		HostInfo removed;
+		synchronized (this) {
+			removed = _peers.remove(keyOf(ip, port));
+			if (removed == null) {
+				return false;
+			}
+			publish();
+		}
+		for (Listener listener : _listeners) {
+			listener.peerRemoved(removed);
+		}
+		return true;
+	}
+
+	/**
+	 * Removes device by its service name, for events which don't carry address
+	 * @return whether device was known
+	 */
+	public boolean removeNamed(String name)
+	{
+		for (HostInfo info : _snapshot) {
+			if (info.getName().equals(name)) {
+				return remove(info.getIp(), info.getPort());
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Makes registry keep given devices only: new ones are added, then missing
+	 * ones are removed, so that readers never see list which is being filled.
+	 */
+	public void retainOnly(Collection<HostInfo> devices)
+	{
+		HashSet<String> keys = new HashSet<String>();
+		for (HostInfo info : devices) {
+			keys.add(keyOf(info.getIp(), info.getPort()));
+			add(info);
+		}
+		for (HostInfo info : _snapshot) {
+			if (!keys.contains(keyOf(info.getIp(), info.getPort()))) {
+				remove(info.getIp(), info.getPort());
+			}
+		}
+	}
+
+	/**
+	 * Replaces snapshot, must be called with registry lock held
+	 */
+	private void publish()
+	{
+		_snapshot = Collections.unmodifiableList(new ArrayList<HostInfo>(_peers.values()));
+	}
+
+	private static String keyOf(String ip, int port)
+	{
+		return ip + ":" + port;
+	}
+}
@@ -0,0 +1,358 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ *  This class sends framed commands (see FrameProtocol) over one connection
+ *  without waiting for replies, so that burst of commands costs one round trip.
+ *  Every command gives Future of its reply, replies are read by reader thread
+ *  and matched to commands by request id. Reader threads are shared by
+ *  pipelines opened one after another (see NetworkOperator).
+ *
+ *  Pipeline is opened by NetworkOperator.openPipeline() and should be closed
+ *  by close(), then connection is given back to the pool. If connection fails,
+ *  replies of all waiting commands are failed results (false or null).
+ *
+ *  Commands could be sent by several threads.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class Pipeline {
+	/**
+	 * Decodes reply payload
+	 */
+	private interface Decoder<T> {
+		T decode(DataInputStream payload) throws IOException;
+	}
+
+	/**
+	 * Reply to one command, it is completed by reader thread
+	 */
+	private static class Reply<T> implements Future<T> {
+		private CountDownLatch 	_done = new CountDownLatch(1);
+		private Decoder<T> 		_decoder;
+		private T 				_failed;
+		private volatile T 		_value;
+
+		Reply(Decoder<T> decoder, T failed) {
+			_decoder = decoder;
+			_failed = failed;
+			_value = failed;
+		}
+
+		void complete(FrameProtocol.Frame frame) {
+			try {
+				if (frame.getOpcode() != FrameProtocol.ERROR) {
+					_value = _decoder.decode(frame.getPayload());
+				} else {
+					System.err.println("Command failed: " + frame.getPayload().readUTF());
+				}
+			} catch (IOException e) {
+				System.err.println("Invalid reply payload");
+			}
+			_done.countDown();
+		}
+
+		void fail() {
+			_value = _failed;
+			_done.countDown();
+		}
+
+		public boolean cancel(boolean interrupt) {
+			return false;
+		}
+
+		public boolean isCancelled() {
+			return false;
+		}
+
+		public boolean isDone() {
+			return _done.getCount() == 0;
+		}
+
+		/**
+		 * @return reply or failed result if command failed
+		 */
+		public T get() throws InterruptedException {
+			_done.await();
+			return _value;
+		}
+
+		public T get(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+			if (!_done.await(timeout, unit)) {
+				throw new TimeoutException();
+			}
+			return _value;
+		}
+	}
+
+	private static final Decoder<Boolean> ACCEPTED = new Decoder<Boolean>() {
+		public Boolean decode(DataInputStream payload) {
+			return true;
+		}
+	};
+
+	private static final Decoder<ArrayList<TimeTableEntry>> TIMETABLE = new Decoder<ArrayList<TimeTableEntry>>() {
+		public ArrayList<TimeTableEntry> decode(DataInputStream payload) throws IOException {
+			return WireCodec.readEntries(payload);
+		}
+	};
+
+	private ConnectionPool 				_pool;
+	private PeerConnection 				_connection;
+	private PeerRegistry.Peer 			_peer;
+	private long 						_started = System.currentTimeMillis();
+
+	/* commands waiting for reply by request id */
+	private HashMap<Integer, Reply<?>> 	_waiting = new HashMap<Integer, Reply<?>>();
+	private int 						_nextId = 1;
+	private int 						_commands = 0;
+
+	/* GOODBYE is sent, no more commands are accepted */
+	private boolean 					_closing = false;
+	private boolean 					_failed = false;
+
+	/* reader thread finished, GOODBYE reply is received if _failed is false */
+	private CountDownLatch 				_finished = new CountDownLatch(1);
+
+	/**
+	 * @param connection connection with "framed" command sent over it
+	 * @param readers replies are read by one of their threads while pipeline is open
+	 */
+	Pipeline(ConnectionPool pool, PeerConnection connection, PeerRegistry.Peer peer, Executor readers)
+	{
+		_pool = pool;
+		_connection = connection;
+		_peer = peer;
+
+		readers.execute(new Runnable() {
+			public void run() {
+				readReplies();
+			}
+		});
+	}
+
+	/**
+	 * Sends booking or canceling record
+	 * @return true when other side took the record
+	 */
+	public Future<Boolean> sendRecord(RequestRecord record)
+	{
+		ArrayList<RequestRecord> records = new ArrayList<RequestRecord>(1);
+		records.add(record);
+		return sendRecords(records);
+	}
+
+	/**
+	 * Sends records in one frame
+	 * @return true when other side took the records
+	 */
+	public Future<Boolean> sendRecords(List<RequestRecord> records)
+	{
+		try {
+			return send(FrameProtocol.TAKE_MY_REQUEST, FrameProtocol.encodeRecords(records, _connection.getCodec()), ACCEPTED, false);
+		} catch (IOException e) {
+			return failedReply(ACCEPTED, false);
+		}
+	}
+
+	/**
+	 * Sends confirmed records to town
+	 * @return true when other side took the records
+	 */
+	public Future<Boolean> sendConfirmation(List<RequestRecord> records)
+	{
+		try {
+			return send(FrameProtocol.CONFIRMATION, FrameProtocol.encodeRecords(records, _connection.getCodec()), ACCEPTED, false);
+		} catch (IOException e) {
+			return failedReply(ACCEPTED, false);
+		}
+	}
+
+	/**
+	 * @return timetable or null if command failed
+	 */
+	public Future<ArrayList<TimeTableEntry>> requestTimetable()
+	{
+		return send(FrameProtocol.GIVE_ME_TIMETABLE, new byte[0], TIMETABLE, null);
+	}
+
+	/**
+	 * @return timetable, it is taken from cache if it is not changed; null if command failed
+	 */
+	public Future<ArrayList<TimeTableEntry>> requestTimetable(final HostInfo info, final TimetableCache cache)
+	{
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			new DataOutputStream(bytes).writeLong(cache.getVersion(info));
+		} catch (IOException e) {
+		}
+		return send(FrameProtocol.GIVE_ME_TIMETABLE_IF_NEWER, bytes.toByteArray(), new Decoder<ArrayList<TimeTableEntry>>() {
+			public ArrayList<TimeTableEntry> decode(DataInputStream payload) throws IOException {
+				long version = payload.readLong();
+				// timetable follows only if it is changed
+				ArrayList<TimeTableEntry> timetable = (payload.available() > 0) ? WireCodec.readEntries(payload) : null;
+				return cache.update(info, version, timetable);
+			}
+		}, null);
+	}
+
+	/**
+	 * @return true when other side replied
+	 */
+	public Future<Boolean> ping()
+	{
+		return send(FrameProtocol.PING, new byte[0], ACCEPTED, false);
+	}
+
+	/**
+	 * Waits for replies to all commands and gives connection back to the pool
+	 * @return whether all commands were replied
+	 */
+	public boolean close()
+	{
+		if (send(FrameProtocol.GOODBYE, new byte[0], ACCEPTED, false).isDone()) {
+			// pipeline failed before
+			_pool.discard(_connection);
+			_peer.failed();
+			return false;
+		}
+		try {
+			if (!_finished.await(ConnectionPool.READ_TIMEOUT, TimeUnit.MILLISECONDS)) {
+				fail();
+			}
+		} catch (InterruptedException e) {
+			fail();
+		}
+
+		synchronized (this) {
+			if (_failed) {
+				_peer.failed();
+				return false;
+			}
+		}
+		try {
+			// framed session is finished as any other command
+			ObjectOutputStream out = _connection.getOutput();
+			out.writeObject("goodbye");
+			out.flush();
+			if (((String)_connection.getInput().readObject()).equals("goodbye")) {
+				_connection.commandFinished();
+				_pool.release(_connection);
+				_peer.exchanged((System.currentTimeMillis() - _started) / Math.max(1, _commands));
+				return true;
+			}
+		} catch (IOException | ClassNotFoundException | ClassCastException e) {
+		}
+		_pool.discard(_connection);
+		_peer.failed();
+		return false;
+	}
+
+	/**
+	 * Writes command frame
+	 * @return reply, failed at once if command isn't sent
+	 */
+	private synchronized <T> Reply<T> send(int opcode, byte[] payload, Decoder<T> decoder, T failed)
+	{
+		if (_closing || _failed) {
+			return failedReply(decoder, failed);
+		}
+		Reply<T> reply = new Reply<T>(decoder, failed);
+		int id = _nextId++;
+		if (opcode == FrameProtocol.GOODBYE) {
+			_closing = true;
+		} else {
+			_waiting.put(id, reply);
+			++_commands;
+		}
+		try {
+			// frame goes in one write, socket stream is not buffered
+			_connection.getSocket().getOutputStream().write(FrameProtocol.encodeFrame(opcode, id, payload));
+		} catch (IOException e) {
+			System.out.println("Exception in pipeline to " + _connection.getKey());
+			fail();
+		}
+		return reply;
+	}
+
+	private static <T> Reply<T> failedReply(Decoder<T> decoder, T failed)
+	{
+		Reply<T> reply = new Reply<T>(decoder, failed);
+		reply.fail();
+		return reply;
+	}
+
+	private void readReplies()
+	{
+		try {
+			DataInputStream in = new DataInputStream(_connection.getSocket().getInputStream());
+			while (true) {
+				FrameProtocol.Frame frame;
+				try {
+					frame = FrameProtocol.readFrame(in);
+				} catch (SocketTimeoutException e) {
+					// nothing was read, pipeline could be kept open without commands
+					if (isIdle()) {
+						continue;
+					}
+					throw e;
+				}
+				if (frame.getOpcode() == FrameProtocol.GOODBYE) {
+					break;
+				}
+				Reply<?> reply;
+				synchronized (this) {
+					reply = _waiting.remove(frame.getId());
+				}
+				if (reply != null) {
+					reply.complete(frame);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Pipeline to " + _connection.getKey() + " is broken");
+			fail();
+		}
+		// other side replies GOODBYE after all commands
+		synchronized (this) {
+			if (!_waiting.isEmpty()) {
+				fail();
+			}
+		}
+		_finished.countDown();
+	}
+
+	private synchronized boolean isIdle()
+	{
+		return _waiting.isEmpty() && !_closing;
+	}
+
+	/**
+	 * Fails waiting commands and closes connection, so that reader thread exits
+	 */
+	private synchronized void fail()
+	{
+		if (!_failed) {
+			_failed = true;
+			_connection.close();
+		}
+		for (Reply<?> reply : _waiting.values()) {
+			reply.fail();
+		}
+		_waiting.clear();
+	}
+}
@@ -0,0 +1,45 @@
+import java.util.ArrayList;
+
+/**
+ * 	This class merges request records received one by one into the database
+ * 	by chunks of WireCodec.CHUNK_SIZE records, so that records received by
+ * 	NetworkOperator.requestRecords() are not collected all in memory.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class RequestMerger implements RequestVisitor {
+	private DatabaseConnector 			_sqlite;
+	private ArrayList<RequestRecord> 	_chunk = new ArrayList<RequestRecord>();
+
+	public RequestMerger(DatabaseConnector sqlite)
+	{
+		_sqlite = sqlite;
+	}
+
+	public void visit(RequestRecord record)
+	{
+		_chunk.add(record);
+		if (_chunk.size() == WireCodec.CHUNK_SIZE) {
+			merge();
+		}
+	}
+
+	/**
+	 * Merges the rest of records
+	 */
+	public void finish()
+	{
+		merge();
+	}
+
+	private void merge()
+	{
+		if (!_chunk.isEmpty()) {
+			_sqlite.mergeRequests(_chunk);
+			_chunk.clear();
+		}
+	}
+}
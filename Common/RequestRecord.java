@@ -1,5 +1,9 @@
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 
 /**
@@ -15,6 +19,13 @@ import java.io.Serializable;
  *  Fields operated by system:
  *  	Ticket
  *  	Confirmed
+ *  	FlightNumber of ON_DEMAND booking - air company places it on the
+ *  	nearest flight with free seat
+ *  
+ *  Serialized form (used with devices which don't support WireCodec) is the
+ *  same as of the first version, where ticket was int. Only tickets which
+ *  fit in int could be sent this way, tickets generated by TicketGenerator
+ *  don't fit, so such devices receive older records only.
  */
 
 /**
@@ -22,6 +33,22 @@ import java.io.Serializable;
  *
  */
 public class RequestRecord implements Serializable {
+	/* computed for the first version of this class */
+	private static final long serialVersionUID = -2973748070467928523L;
+	
+	/* fields of the first version, ticket is int there */
+	private static final ObjectStreamField[] serialPersistentFields = {
+		new ObjectStreamField("_passenger_name", String.class),
+		new ObjectStreamField("_flight_number", int.class),
+		new ObjectStreamField("_flight_date", Date.class),
+		new ObjectStreamField("_direction", int.class),
+		new ObjectStreamField("_request_type", int.class),
+		new ObjectStreamField("_ticket_type", int.class),
+		new ObjectStreamField("_ticket", int.class),
+		new ObjectStreamField("_confirmed", boolean.class),
+		new ObjectStreamField("_checked", boolean.class)
+	};
+	
 	//------ client operated information --------
 	/* Name of the passenger for statistical (or other) purpose */
 	private String _passenger_name;	
@@ -45,8 +72,8 @@ public class RequestRecord implements Serializable {
 	private int _ticket_type;
 	
 	//------ system operated information --------
-	/* Unique request number within booking system */
-	private int _ticket;
+	/* Unique request number within booking system, see TicketGenerator */
+	private long _ticket;
 	
 	/* Keeps confirmation status of request. Can be changed only by air company */
 	/* Initially this request is not confirmed, it requires confirmation from air company */
@@ -66,8 +93,8 @@ public class RequestRecord implements Serializable {
 		_request_type = request_type;
 		_ticket_type = ticket_type;		
 		
-		/* Generating pseudo-unique ticket */
-		_ticket = (int) (System.nanoTime() % java.lang.Integer.MAX_VALUE);		
+		/* Generating unique ticket */
+		_ticket = TicketGenerator.next();		
 	}	
 	
 	/* for canceling requests construction */
@@ -80,8 +107,69 @@ public class RequestRecord implements Serializable {
 		_request_type = request_type;
 		_ticket_type = 0;	
 		
-		/* Generating pseudo-unique ticket */
-		_ticket = (int) (System.nanoTime() % java.lang.Integer.MAX_VALUE);	
+		/* Generating unique ticket */
+		_ticket = TicketGenerator.next();	
+	}
+	
+	/* for records read from the database or received from other device, ticket is given */
+	public RequestRecord(long ticket, String passenger, int flight_number, Date flight_date, 
+			int direction, int request_type, int ticket_type, boolean confirmed, boolean checked)
+	{
+		_passenger_name = passenger;
+		_flight_number = flight_number;
+		_flight_date = flight_date;
+		_direction = direction;
+		_request_type = request_type;
+		_ticket_type = ticket_type;
+		_ticket = ticket;
+		_confirmed = confirmed;
+		_checked = checked;
+	}
+	
+	/* for copying in database code, state of the copy is given */
+	public RequestRecord(RequestRecord record, boolean confirmed, boolean checked)
+	{
+		_passenger_name = record._passenger_name;
+		_flight_number = record._flight_number;
+		_flight_date = (record._flight_date == null) ? null : new Date(record._flight_date.getTime());
+		_direction = record._direction;
+		_request_type = record._request_type;
+		_ticket_type = record._ticket_type;
+		_ticket = record._ticket;
+		_confirmed = confirmed;
+		_checked = checked;
+	}
+	
+	private void writeObject(ObjectOutputStream out) throws IOException
+	{
+		if (_ticket != (int)_ticket) {
+			throw new IOException("Ticket " + _ticket + " can not be sent to device without 64-bit tickets");
+		}
+		ObjectOutputStream.PutField fields = out.putFields();
+		fields.put("_passenger_name", _passenger_name);
+		fields.put("_flight_number", _flight_number);
+		fields.put("_flight_date", _flight_date);
+		fields.put("_direction", _direction);
+		fields.put("_request_type", _request_type);
+		fields.put("_ticket_type", _ticket_type);
+		fields.put("_ticket", (int)_ticket);
+		fields.put("_confirmed", _confirmed);
+		fields.put("_checked", _checked);
+		out.writeFields();
+	}
+	
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
+	{
+		ObjectInputStream.GetField fields = in.readFields();
+		_passenger_name = (String)fields.get("_passenger_name", null);
+		_flight_number = fields.get("_flight_number", 0);
+		_flight_date = (Date)fields.get("_flight_date", null);
+		_direction = fields.get("_direction", 0);
+		_request_type = fields.get("_request_type", 0);
+		_ticket_type = fields.get("_ticket_type", 0);
+		_ticket = fields.get("_ticket", 0);
+		_confirmed = fields.get("_confirmed", false);
+		_checked = fields.get("_checked", false);
 	}
 	
 	public String toString()
@@ -119,7 +207,7 @@ public class RequestRecord implements Serializable {
 	 * requesting data
 	 * @param ticket - ticket number
 	 */
-	public void setTicket(int ticket)
+	public void setTicket(long ticket)
 	{
 		this._ticket = ticket;
 	}
@@ -149,6 +237,10 @@ public class RequestRecord implements Serializable {
 		return _flight_number;
 	}
 
+	public void setFlightNumber(int flight_number) {
+		_flight_number = flight_number;
+	}
+
 	public Date getFlightDate() {
 		return _flight_date;
 	}	
@@ -165,7 +257,7 @@ public class RequestRecord implements Serializable {
 		return _ticket_type;
 	}
 
-	public int getTicket() {
+	public long getTicket() {
 		return _ticket;
 	}
 
@@ -0,0 +1,63 @@
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 	This class makes request records from rows of Requests table.
+ * 	Columns are looked up once per result set and flight date is made
+ * 	from FlightDay number, so no text is parsed for a row.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class RequestRowMapper {
+	private int _ticket;
+	private int _passengerName;
+	private int _flightNumber;
+	private int _flightDay;
+	private int _direction;
+	private int _requestType;
+	private int _ticketType;
+	private int _confirmed;
+	private int _checked;
+
+	/**
+	 * @param table result of query selecting all columns of Requests,
+	 * positioned at a row
+	 */
+	public RequestRowMapper(ResultSet table) throws SQLException
+	{
+		_ticket = table.findColumn("Ticket");
+		_passengerName = table.findColumn("PassengerName");
+		_flightNumber = table.findColumn("FlightNumber");
+		_flightDay = table.findColumn("FlightDay");
+		_direction = table.findColumn("Direction");
+		_requestType = table.findColumn("RequestType");
+		_ticketType = table.findColumn("TicketType");
+		_confirmed = table.findColumn("Confirmed");
+		_checked = table.findColumn("Checked");
+	}
+
+	/**
+	 * @return record from the current row or null if booking has no flight date
+	 */
+	public RequestRecord map(ResultSet table) throws SQLException
+	{
+		long ticket = table.getLong(_ticket);
+		int requestType = table.getInt(_requestType);
+		if (requestType == 0) {
+			int day = table.getInt(_flightDay);
+			if (table.wasNull()) {
+				System.err.println("Booking " + ticket + " has no flight date.");
+				return null;
+			}
+			return new RequestRecord(ticket, table.getString(_passengerName), table.getInt(_flightNumber), 
+					FlightCalendar.fromEpochDay(day), table.getInt(_direction), requestType, table.getInt(_ticketType),
+					table.getBoolean(_confirmed), table.getBoolean(_checked));
+		}
+		// canceling keeps ticket of the booking as passenger name
+		return new RequestRecord(ticket, table.getString(_passengerName), 0, null, 0, requestType, 0,
+				table.getBoolean(_confirmed), table.getBoolean(_checked));
+	}
+}
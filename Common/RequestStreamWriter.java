@@ -0,0 +1,59 @@
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+
+/**
+ * 	This class writes request records given one by one as a stream of chunks
+ * 	(see WireCodec.STREAM_VERSION), so that sender keeps only one chunk in memory.
+ * 	Other side of older codec version needs number of records before them, so
+ * 	for it all records are collected and written as a list by finish().
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class RequestStreamWriter implements RequestVisitor {
+	private ObjectOutputStream 			_out;
+	private int 						_version;
+	private boolean 					_streaming;
+	private ArrayList<RequestRecord> 	_chunk = new ArrayList<RequestRecord>();
+
+	/**
+	 * @param version codec version agreed for the connection
+	 */
+	public RequestStreamWriter(ObjectOutputStream out, int version) throws IOException
+	{
+		_out = out;
+		_version = version;
+		_streaming = (version >= WireCodec.STREAM_VERSION);
+		if (_streaming) {
+			WireCodec.writeStreamStart(out, version);
+		}
+	}
+
+	public void visit(RequestRecord record) throws IOException
+	{
+		_chunk.add(record);
+		if (_streaming && _chunk.size() == WireCodec.CHUNK_SIZE) {
+			WireCodec.writeChunk(_out, _chunk, _version);
+			_chunk.clear();
+		}
+	}
+
+	/**
+	 * Writes the rest of records and end of the stream, caller flushes output
+	 */
+	public void finish() throws IOException
+	{
+		if (!_streaming) {
+			WireCodec.writeRequests(_out, _chunk, _version);
+		} else {
+			if (!_chunk.isEmpty()) {
+				WireCodec.writeChunk(_out, _chunk, _version);
+			}
+			WireCodec.writeStreamEnd(_out);
+		}
+		_chunk.clear();
+	}
+}
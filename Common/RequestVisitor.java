@@ -0,0 +1,19 @@
+import java.io.IOException;
+
+/**
+ * 	This interface receives request records one by one while they are read
+ * 	from the database cursor or from the network stream, so that all of them
+ * 	are never kept in memory at once (see WireCodec.readRequestStream).
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public interface RequestVisitor {
+	/**
+	 * Called for every record in order of the stream
+	 * @throws IOException to stop the stream
+	 */
+	void visit(RequestRecord record) throws IOException;
+}
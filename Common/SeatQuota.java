@@ -0,0 +1,75 @@
+/**
+ * 	This class presents seats of the flight on one date lent by air company
+ * 	operating the flight to other air company, which confirms bookings
+ * 	against them without asking the operating company (see SeatLedger).
+ * 
+ * 	Holder counts seats used for confirmations since it reported them last time.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class SeatQuota {
+	private int 	_flightNumber;
+	private int 	_day;
+	private String 	_holder;
+	private int 	_seats = 0;
+	private int 	_used = 0;
+
+	/**
+	 * @param day flight date as FlightCalendar.toEpochDay() gives
+	 * @param holder air company the seats are lent to
+	 */
+	public SeatQuota(int flightNumber, int day, String holder, int seats, int used)
+	{
+		_flightNumber = flightNumber;
+		_day = day;
+		_holder = holder;
+		_seats = seats;
+		_used = used;
+	}
+
+	public SeatQuota(SeatQuota quota)
+	{
+		this(quota._flightNumber, quota._day, quota._holder, quota._seats, quota._used);
+	}
+
+	public int getFlightNumber() {
+		return _flightNumber;
+	}
+
+	public int getDay() {
+		return _day;
+	}
+
+	public String getHolder() {
+		return _holder;
+	}
+
+	/**
+	 * @return seats which are not used yet
+	 */
+	public int getSeats() {
+		return _seats;
+	}
+
+	public void setSeats(int seats) {
+		_seats = seats;
+	}
+
+	/**
+	 * @return seats used since the last report to operating company
+	 */
+	public int getUsed() {
+		return _used;
+	}
+
+	public void setUsed(int used) {
+		_used = used;
+	}
+
+	public String toString() {
+		return "Flight " + _flightNumber + " day " + _day + " held by " + _holder + ": " + _seats + " seats, " + _used + " used";
+	}
+}
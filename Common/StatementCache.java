@@ -0,0 +1,90 @@
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * 	This class keeps prepared statements of one database connection, so that
+ * 	every query is prepared once. It is not thread safe: connection and its
+ * 	statements are used by one thread at a time (see DatabaseConnector).
+ */
+
+/**
+ * @author ruben
+ *
+ */
+class StatementCache {
+	private Connection 							_connection;
+
+	/* prepared statements by query text */
+	private HashMap<String, PreparedStatement> 	_statements = new HashMap<String, PreparedStatement>();
+
+	/* statements executed by batches, driver can't execute them singly after that */
+	private HashMap<String, PreparedStatement> 	_batches = new HashMap<String, PreparedStatement>();
+
+	public StatementCache(Connection connection)
+	{
+		_connection = connection;
+	}
+
+	public Connection getConnection()
+	{
+		return _connection;
+	}
+
+	/**
+	 * Gives prepared statement for the query, statement is prepared
+	 * on the first call and reused after. Parameters and batch are cleared.
+	 * @param query SQL query with '?' parameters
+	 */
+	public PreparedStatement prepare(String query) throws SQLException
+	{
+		return prepare(_statements, query);
+	}
+
+	/**
+	 * Gives prepared statement for batch execution. It is kept apart from
+	 * statements given by prepare(): driver keeps batch of the statement
+	 * and fails to execute it singly with the same query.
+	 */
+	public PreparedStatement prepareBatch(String query) throws SQLException
+	{
+		return prepare(_batches, query);
+	}
+
+	private PreparedStatement prepare(HashMap<String, PreparedStatement> statements, String query) throws SQLException
+	{
+		PreparedStatement statement = statements.get(query);
+		if (statement == null) {
+			statement = _connection.prepareStatement(query);
+			statements.put(query, statement);
+		} else {
+			statement.clearParameters();
+			statement.clearBatch();
+		}
+		return statement;
+	}
+
+	/**
+	 * Closes prepared statements and the connection
+	 */
+	public void close()
+	{
+		for (HashMap<String, PreparedStatement> statements : Arrays.asList(_statements, _batches)) {
+			for (PreparedStatement statement : statements.values()) {
+				try {
+					statement.close();
+				} catch (SQLException e) {
+				}
+			}
+			statements.clear();
+		}
+
+		try {
+			_connection.close();
+		} catch (SQLException e) {
+			System.out.println("Failed to close connection to SQLite");
+		}
+	}
+}
@@ -0,0 +1,167 @@
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ *  This class gathers booking and canceling records created on terminal and
+ *  sends them in batches, so that burst of bookings costs one round trip
+ *  instead of one per passenger.
+ *
+ *  Batch is sent LINGER milliseconds after its first record is submitted,
+ *  or at once when it has BATCH records. Records submitted while batch is
+ *  being sent go to the next one. Every record gets result of its batch.
+ *
+ *  Batches are sent by Sender on the queue thread one at a time, in order
+ *  records were submitted.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class SubmissionQueue {
+	/**
+	 * Sends batch of records, device decides where to
+	 */
+	public interface Sender {
+		/**
+		 * @return true if all records are delivered
+		 */
+		boolean send(ArrayList<RequestRecord> records);
+	}
+
+	/* milliseconds batch waits for more records after the first one */
+	public static final int 	LINGER = Integer.getInteger("submission.linger", 50);
+
+	/* records in one batch at most */
+	public static final int 	BATCH = Integer.getInteger("submission.batch", 64);
+
+	private Sender 					_sender;
+	private int 					_linger;
+	private int 					_batchSize;
+	private Thread 					_thread;
+
+	/* full batches waiting to be sent */
+	private LinkedList<FutureTask<Boolean>> _full = new LinkedList<FutureTask<Boolean>>();
+
+	/* batch being gathered and its records, null if there are no records */
+	private FutureTask<Boolean> 	_batch = null;
+	private ArrayList<RequestRecord> _records = null;
+	private long 					_deadline = 0;
+
+	private boolean 				_closed = false;
+
+	public SubmissionQueue(String name, Sender sender)
+	{
+		this(name, sender, LINGER, BATCH);
+	}
+
+	/**
+	 * @param name device name for thread name
+	 * @param linger milliseconds batch waits for more records
+	 * @param batchSize records in one batch at most
+	 */
+	public SubmissionQueue(String name, Sender sender, int linger, int batchSize)
+	{
+		_sender = sender;
+		_linger = Math.max(0, linger);
+		_batchSize = Math.max(1, batchSize);
+		_thread = new Thread(new Runnable() {
+			public void run() {
+				sendBatches();
+			}
+		}, "Submissions " + name);
+		_thread.setDaemon(true);
+		_thread.start();
+	}
+
+	/**
+	 * Adds record to the batch being gathered
+	 * @return true when record is delivered, false if sending failed or queue is closed
+	 */
+	public synchronized Future<Boolean> submit(RequestRecord record)
+	{
+		if (_closed) {
+			FutureTask<Boolean> rejected = new FutureTask<Boolean>(new Callable<Boolean>() {
+				public Boolean call() {
+					return false;
+				}
+			});
+			rejected.run();
+			return rejected;
+		}
+
+		if (_batch == null) {
+			final ArrayList<RequestRecord> records = new ArrayList<RequestRecord>();
+			_batch = new FutureTask<Boolean>(new Callable<Boolean>() {
+				public Boolean call() {
+					return _sender.send(records);
+				}
+			});
+			_records = records;
+			_deadline = System.currentTimeMillis() + _linger;
+			notifyAll();
+		}
+		_records.add(record);
+		Future<Boolean> result = _batch;
+		if (_records.size() >= _batchSize) {
+			// the next record starts new batch
+			_full.add(_batch);
+			_batch = null;
+			_records = null;
+			notifyAll();
+		}
+		return result;
+	}
+
+	/**
+	 * Sends records submitted before and waits until they are sent,
+	 * no records are taken after it
+	 */
+	public void close()
+	{
+		synchronized (this) {
+			_closed = true;
+			notifyAll();
+		}
+		try {
+			_thread.join();
+		} catch (InterruptedException e) {
+			System.out.println("join() interrupted");
+		}
+	}
+
+	private void sendBatches()
+	{
+		while (true) {
+			FutureTask<Boolean> batch;
+			synchronized (this) {
+				try {
+					while (_full.isEmpty() && _batch == null && !_closed) {
+						wait();
+					}
+					// closed queue sends the last batch at once
+					long wait;
+					while (_full.isEmpty() && _batch != null && !_closed
+							&& (wait = _deadline - System.currentTimeMillis()) > 0) {
+						wait(wait);
+					}
+				} catch (InterruptedException e) {
+					_closed = true;
+				}
+				if (!_full.isEmpty()) {
+					batch = _full.removeFirst();
+				} else if (_batch != null) {
+					batch = _batch;
+					_batch = null;
+					_records = null;
+				} else {
+					return;
+				}
+			}
+			batch.run();
+		}
+	}
+}
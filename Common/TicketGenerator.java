@@ -0,0 +1,129 @@
+/**
+ * 	This class generates unique 64-bit tickets for request records.
+ * 	Ticket consists of (from high bits to low):
+ * 		41 bits		milliseconds since EPOCH
+ * 		10 bits		node number of the device
+ * 		12 bits		sequence number within millisecond
+ * 
+ * 	Tickets of one device always grow, even if system clock goes back
+ * 	or more than 4096 tickets are requested within millisecond (then
+ * 	following milliseconds are borrowed). So new request records are
+ * 	appended to the end of Ticket primary key index.
+ * 
+ * 	Node number must be different for every device creating request records,
+ * 	otherwise tickets of two devices could be equal. It is taken from system
+ * 	property "ticket.node" (0 - 1023) or operator is asked for it when device
+ * 	starts (see configure()). Tickets are not generated until it is set.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class TicketGenerator {
+	/* 01/01/2014 00:00:00 GMT */
+	public static final long 	EPOCH = 1388534400000L;
+
+	public static final int 	NODE_BITS = 10;
+	public static final int 	SEQUENCE_BITS = 12;
+
+	private static final int 	MAX_NODE = (1 << NODE_BITS) - 1;
+	private static final int 	MAX_SEQUENCE = (1 << SEQUENCE_BITS) - 1;
+
+	private static int 			_node = -1;
+	private static long 		_lastTime = 0;
+	private static int 			_sequence = 0;
+
+	/**
+	 * @return new ticket, greater than all tickets generated before by this device
+	 */
+	public static long next()
+	{
+		return next(System.currentTimeMillis());
+	}
+
+	/**
+	 * @param millis current time as System.currentTimeMillis() gives
+	 */
+	static synchronized long next(long millis)
+	{
+		if (_node < 0) {
+			throw new IllegalStateException("Ticket node number is not set, see TicketGenerator.configure()");
+		}
+		long now = millis - EPOCH;
+		if (now > _lastTime) {
+			_lastTime = now;
+			_sequence = 0;
+		} else if (_sequence < MAX_SEQUENCE) {
+			++_sequence;
+		} else {
+			// sequence is exhausted or clock went back - continue from the last time
+			++_lastTime;
+			_sequence = 0;
+		}
+		return (_lastTime << (NODE_BITS + SEQUENCE_BITS)) | ((long)_node << SEQUENCE_BITS) | _sequence;
+	}
+
+	public static synchronized int getNode() {
+		return _node;
+	}
+
+	/**
+	 * Sets node number of the device
+	 * @return false if number is out of range
+	 */
+	public static synchronized boolean setNode(int node)
+	{
+		if (node < 0 || node > MAX_NODE) {
+			return false;
+		}
+		_node = node;
+		return true;
+	}
+
+	/**
+	 * Sets node number from system property "ticket.node", operator is asked
+	 * for it if property is not set. Must be called by device creating request
+	 * records before it creates the first one.
+	 */
+	public static void configure()
+	{
+		Integer node = Integer.getInteger("ticket.node");
+		if (node != null && setNode(node)) {
+			return;
+		}
+		if (node != null) {
+			System.err.println("Invalid ticket.node " + node);
+		}
+		while (true) {
+			System.out.println("Input ticket node number (0 - " + MAX_NODE + "), different for every Camp and Town device: ");
+			String line = NetworkOperator.readLine();
+			if (line == null) {
+				throw new IllegalStateException("Ticket node number is not set");
+			}
+			try {
+				if (setNode(Integer.parseInt(line.trim()))) {
+					return;
+				}
+			} catch (NumberFormatException e) {
+			}
+			System.out.println("Invalid node number.");
+		}
+	}
+
+	/**
+	 * @return node number of the device which generated the ticket
+	 */
+	public static int nodeOf(long ticket)
+	{
+		return (int)(ticket >>> SEQUENCE_BITS) & MAX_NODE;
+	}
+
+	/**
+	 * @return milliseconds since 01/01/1970 when ticket was generated
+	 */
+	public static long timeOf(long ticket)
+	{
+		return (ticket >>> (NODE_BITS + SEQUENCE_BITS)) + EPOCH;
+	}
+}
@@ -5,6 +5,9 @@ import java.io.Serializable;
  * 	It has 2 data members:
  * 		Flight Time
  *		Flight Direction
+ *
+ * 	Number of seats is 0 in entries of devices which don't send it,
+ * 	serialVersionUID is kept as it was before the field was added.
  */
 
 /**
@@ -12,6 +15,8 @@ import java.io.Serializable;
  *
  */
 public class TimeTableEntry implements Serializable{
+	private static final long serialVersionUID = 1183777724190668012L;
+	
 	/* Flight number */
 	int _flight_number;
 	
@@ -23,12 +28,21 @@ public class TimeTableEntry implements Serializable{
 	
 	String _air_company;
 	
+	/* Number of seats, 0 if it is not known */
+	private int _capacity;
+	
 	public TimeTableEntry(int flight_number, String flight_time, int direction, String air_company)
+	{
+		this(flight_number, flight_time, direction, air_company, 0);
+	}
+	
+	public TimeTableEntry(int flight_number, String flight_time, int direction, String air_company, int capacity)
 	{
 		_flight_number = flight_number;
 		_flight_time = flight_time;
 		_direction = direction;
 		_air_company = air_company;
+		_capacity = capacity;
 	}
 	
 	public String toString() 
@@ -63,4 +77,8 @@ public class TimeTableEntry implements Serializable{
 	public String getAirCompany() {
 		return _air_company;
 	}
+	
+	public int getCapacity() {
+		return _capacity;
+	}
 }
@@ -0,0 +1,53 @@
+import java.util.ArrayList;
+
+/**
+ * 	This class keeps copy of timetable received from other device together
+ * 	with its version, so that timetable is transferred again only after it is
+ * 	changed (see NetworkOperator.requestTimetable). Versions of different
+ * 	devices are not related, copy is kept for the last device only.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class TimetableCache {
+	/* version of timetable received from device not supporting versions */
+	public static final long 				NO_VERSION = -1;
+
+	/* device the copy is received from */
+	private String 							_host = null;
+	private long 							_version = NO_VERSION;
+	private ArrayList<TimeTableEntry> 		_timetable = null;
+
+	/**
+	 * @return version of kept timetable if it is received from the device, NO_VERSION otherwise
+	 */
+	public synchronized long getVersion(HostInfo info)
+	{
+		return (info.toString().equals(_host)) ? _version : NO_VERSION;
+	}
+
+	/**
+	 * Keeps timetable received from the device
+	 * @param timetable received timetable or null if kept one is not changed
+	 * @return copy of the current timetable
+	 */
+	public synchronized ArrayList<TimeTableEntry> update(HostInfo info, long version, ArrayList<TimeTableEntry> timetable)
+	{
+		if (timetable != null) {
+			_host = info.toString();
+			_version = version;
+			_timetable = timetable;
+		}
+		return getTimetable();
+	}
+
+	/**
+	 * @return copy of kept timetable or null if nothing is received yet
+	 */
+	public synchronized ArrayList<TimeTableEntry> getTimetable()
+	{
+		return (_timetable == null) ? null : new ArrayList<TimeTableEntry>(_timetable);
+	}
+}
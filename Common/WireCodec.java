@@ -0,0 +1,503 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 	This class implements compact binary format for transferring request records
+ * 	and timetable entries. It is used instead of default java serialization
+ * 	when both sides of connection support it.
+ *
+ * 	List format:
+ * 		byte		codec version
+ * 		int			number of items
+ * 		items:		short item length, then item fields
+ *
+ * 	Request record fields (version 1):
+ * 		int ticket, int flight number, int flight date (days since 01/01/1970),
+ * 		byte direction, byte request type, byte ticket type, byte flags {confirmed, checked},
+ * 		passenger name (short length and UTF-8 bytes)
+ *
+ * 	Timetable entry fields (version 1):
+ * 		int flight number, byte direction, short flight time (minutes since midnight),
+ * 		air company (short length and UTF-8 bytes),
+ * 		flight time as text - only if it is not in "HH:mm" format
+ *
+ * 	Since version 3 tickets are 64-bit (see TicketGenerator): request record
+ * 	starts with long ticket and change set has long removed tickets.
+ * 	Byte before the list is version the list is written in.
+ *
+ * 	Items are length-prefixed, so reader skips fields added by newer versions.
+ *
+ * 	Since version 4 reply to "giveMeRequests" is a stream of chunks, so that
+ * 	neither side keeps all records in memory (see RequestStreamWriter):
+ * 		byte		codec version
+ * 		chunks:		int number of records (CHUNK_SIZE at most), then records
+ * 		int 0		end of the stream
+ *
+ * 	Change set (version 2, see ChangeSet):
+ * 		origin (short length and UTF-8 bytes), int sequence,
+ * 		list of request records, int number of removed tickets, removed tickets
+ *
+ * 	Since version 8 timetable entry ends with short number of seats (0 if it is
+ * 	not known). Byte before the list tells reader whether entries have it.
+ *
+ * 	Codec is negotiated once per connection: client sends command
+ * 	"negotiateCodec:<version>" followed by "goodbye", accepting side replies with
+ * 	agreed version and "goodbye". Device which doesn't know this command replies
+ * 	just "goodbye" and legacy object stream (LEGACY) is used with it.
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class WireCodec {
+	/* count and objects written by ObjectOutputStream */
+	public static final int 	LEGACY = 0;
+
+	/* latest version supported by this device */
+	public static final int 	VERSION = 8;
+
+	/* first version supporting change sets exchange */
+	public static final int 	CHANGES_VERSION = 2;
+
+	/* first version with 64-bit tickets */
+	public static final int 	LONG_TICKETS_VERSION = 3;
+
+	/* first version streaming all request records by chunks */
+	public static final int 	STREAM_VERSION = 4;
+
+	/* first version lending seats between air companies ("giveMeSeats"), format is not changed */
+	public static final int 	SEATS_VERSION = 5;
+
+	/* first version replying timetable only if it is changed ("giveMeTimetableIfNewer"), format is not changed */
+	public static final int 	TIMETABLE_VERSION = 6;
+
+	/* first version supporting framed pipelined commands ("framed", see FrameProtocol) */
+	public static final int 	FRAMED_VERSION = 7;
+
+	/* first version sending number of seats in timetable entries */
+	public static final int 	CAPACITY_VERSION = 8;
+
+	/* records in one chunk of the stream */
+	public static final int 	CHUNK_SIZE = 256;
+
+	public static final String 	NEGOTIATE_COMMAND = "negotiateCodec:";
+
+	private static final int 	FLAG_CONFIRMED = 1;
+	private static final int 	FLAG_CHECKED = 2;
+
+	/* fixed part of request record: 3 ints and 4 bytes, ticket is long since version 3 */
+	private static final int 	RECORD_FIXED_SIZE = 16;
+
+	/* fixed part of timetable entry: int, byte and short */
+	private static final int 	ENTRY_FIXED_SIZE = 7;
+
+//-------------------------------   NEGOTIATION   ----------------------------------
+
+	/**
+	 * Client side of negotiation.
+	 * @return version agreed with other side or LEGACY
+	 */
+	public static int negotiate(ObjectInputStream in, ObjectOutputStream out) throws IOException,
+		ClassNotFoundException
+	{
+		out.writeObject(NEGOTIATE_COMMAND + VERSION);
+		out.writeObject("goodbye");
+		out.flush();
+
+		Object reply = in.readObject();
+		if (reply instanceof Integer) {
+			int version = (Integer)reply;
+			in.readObject(); // "goodbye"
+			return Math.min(version, VERSION);
+		}
+		// old device replied "goodbye" to unknown command
+		return LEGACY;
+	}
+
+	public static boolean isNegotiation(String command)
+	{
+		return command.startsWith(NEGOTIATE_COMMAND);
+	}
+
+	/**
+	 * Accepting side of negotiation, "goodbye" is exchanged by caller after this.
+	 * @param command negotiation command with version of other side
+	 * @return version agreed with other side
+	 */
+	public static int acceptNegotiation(String command, ObjectOutputStream out) throws IOException
+	{
+		int version = LEGACY;
+		try {
+			version = Math.min(Integer.parseInt(command.substring(NEGOTIATE_COMMAND.length())), VERSION);
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid codec negotiation: " + command);
+		}
+		out.writeObject(Integer.valueOf(version));
+		return version;
+	}
+
+//-------------------------------   REQUESTS   ----------------------------------
+
+	/**
+	 * Writes requests in agreed format
+	 * @param requests list to send, null is sent as empty list
+	 * @param version codec version agreed for the connection
+	 */
+	public static void writeRequests(ObjectOutputStream out, List<RequestRecord> requests, int version) throws IOException
+	{
+		int number = (requests == null) ? 0 : requests.size();
+		if (version == LEGACY) {
+			out.writeObject(number);
+			for (int i = 0; i < number; ++i) {
+				out.writeObject(requests.get(i));
+			}
+			return;
+		}
+
+		writeRecords(out, requests, version);
+	}
+
+	/**
+	 * Writes requests as binary list, version should not be LEGACY
+	 */
+	public static void writeRecords(DataOutput out, List<RequestRecord> requests, int version) throws IOException
+	{
+		int number = (requests == null) ? 0 : requests.size();
+		out.writeByte(version);
+		out.writeInt(number);
+		for (int i = 0; i < number; ++i) {
+			writeRecord(out, requests.get(i), version);
+		}
+	}
+
+	/**
+	 * Reads requests written in agreed format
+	 * @param version codec version agreed for the connection
+	 */
+	public static ArrayList<RequestRecord> readRequests(ObjectInputStream in, int version) throws IOException,
+		ClassNotFoundException
+	{
+		if (version == LEGACY) {
+			int number = (int)in.readObject();
+			ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>(number);
+			for (int i = 0; i < number; ++i) {
+				requests.add((RequestRecord)in.readObject());
+			}
+			return requests;
+		}
+
+		return readRecords(in, version);
+	}
+
+	/**
+	 * Reads requests written by writeRecords()
+	 */
+	public static ArrayList<RequestRecord> readRecords(DataInput in, int version) throws IOException
+	{
+		// format the list is written in
+		int writer = Math.min(in.readByte(), version);
+		int number = in.readInt();
+		ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>(number);
+		for (int i = 0; i < number; ++i) {
+			requests.add(readRecord(in, writer));
+		}
+		return requests;
+	}
+
+	/**
+	 * Starts stream of request records, supported since STREAM_VERSION only
+	 */
+	public static void writeStreamStart(ObjectOutputStream out, int version) throws IOException
+	{
+		if (version < STREAM_VERSION) {
+			throw new IOException("Streams are not supported by codec version " + version);
+		}
+		out.writeByte(version);
+	}
+
+	/**
+	 * Writes one chunk of the stream, empty chunk would end the stream
+	 */
+	public static void writeChunk(ObjectOutputStream out, List<RequestRecord> chunk, int version) throws IOException
+	{
+		out.writeInt(chunk.size());
+		for (int i = 0; i < chunk.size(); ++i) {
+			writeRecord(out, chunk.get(i), version);
+		}
+	}
+
+	public static void writeStreamEnd(ObjectOutputStream out) throws IOException
+	{
+		out.writeInt(0);
+	}
+
+	/**
+	 * Reads requests written by RequestStreamWriter and gives them to visitor
+	 * as they are read. Before STREAM_VERSION it is a list, which is read at once.
+	 * @param version codec version agreed for the connection
+	 */
+	public static void readRequestStream(ObjectInputStream in, int version, RequestVisitor visitor) throws IOException,
+		ClassNotFoundException
+	{
+		if (version < STREAM_VERSION) {
+			for (RequestRecord record : readRequests(in, version)) {
+				visitor.visit(record);
+			}
+			return;
+		}
+
+		// format the stream is written in
+		int writer = Math.min(in.readByte(), version);
+		for (int number = in.readInt(); number > 0; number = in.readInt()) {
+			for (int i = 0; i < number; ++i) {
+				visitor.visit(readRecord(in, writer));
+			}
+		}
+	}
+
+	public static void writeRecord(DataOutput out, RequestRecord record, int version) throws IOException
+	{
+		byte[] name = encodeString(record.getPassengerName());
+		int flags = (record.isConfirmed() ? FLAG_CONFIRMED : 0) | (record.isChecked() ? FLAG_CHECKED : 0);
+
+		out.writeShort(recordFixedSize(version) + 2 + name.length);
+		writeTicket(out, record.getTicket(), version);
+		out.writeInt(record.getFlightNumber());
+		out.writeInt(FlightCalendar.toEpochDay(record.getFlightDate()));
+		out.writeByte(record.getDirection());
+		out.writeByte(record.getRequestType());
+		out.writeByte(record.getTicketType());
+		out.writeByte(flags);
+		writeString(out, name);
+	}
+
+	public static RequestRecord readRecord(DataInput in, int version) throws IOException
+	{
+		int length = in.readUnsignedShort();
+		long ticket = readTicket(in, version);
+		int flightNumber = in.readInt();
+		int day = in.readInt();
+		int direction = in.readByte();
+		int requestType = in.readByte();
+		int ticketType = in.readByte();
+		int flags = in.readByte();
+		byte[] name = readBytes(in);
+		in.skipBytes(length - recordFixedSize(version) - 2 - name.length);
+
+		return new RequestRecord(ticket, decodeString(name), flightNumber, FlightCalendar.fromEpochDay(day),
+				direction, requestType, ticketType, (flags & FLAG_CONFIRMED) != 0, (flags & FLAG_CHECKED) != 0);
+	}
+
+	private static int recordFixedSize(int version)
+	{
+		return (version >= LONG_TICKETS_VERSION) ? RECORD_FIXED_SIZE + 4 : RECORD_FIXED_SIZE;
+	}
+
+	private static void writeTicket(DataOutput out, long ticket, int version) throws IOException
+	{
+		if (version >= LONG_TICKETS_VERSION) {
+			out.writeLong(ticket);
+			return;
+		}
+		if (ticket != (int)ticket) {
+			throw new IOException("Ticket " + ticket + " can not be sent with codec version " + version);
+		}
+		out.writeInt((int)ticket);
+	}
+
+	private static long readTicket(DataInput in, int version) throws IOException
+	{
+		return (version >= LONG_TICKETS_VERSION) ? in.readLong() : in.readInt();
+	}
+
+//-------------------------------   CHANGES   ----------------------------------
+
+	/**
+	 * Writes change set, supported since CHANGES_VERSION only
+	 */
+	public static void writeChanges(ObjectOutputStream out, ChangeSet changes, int version) throws IOException
+	{
+		if (version < CHANGES_VERSION) {
+			throw new IOException("Change sets are not supported by codec version " + version);
+		}
+
+		writeString(out, encodeString(changes.getOrigin()));
+		out.writeInt(changes.getSequence());
+		writeRequests(out, changes.getRecords(), version);
+
+		ArrayList<Long> removed = changes.getRemoved();
+		out.writeInt(removed.size());
+		for (int i = 0; i < removed.size(); ++i) {
+			writeTicket(out, removed.get(i), version);
+		}
+	}
+
+	/**
+	 * Reads change set, supported since CHANGES_VERSION only
+	 */
+	public static ChangeSet readChanges(ObjectInputStream in, int version) throws IOException,
+		ClassNotFoundException
+	{
+		if (version < CHANGES_VERSION) {
+			throw new IOException("Change sets are not supported by codec version " + version);
+		}
+
+		String origin = decodeString(readBytes(in));
+		ChangeSet changes = new ChangeSet(in.readInt());
+		changes.setOrigin(origin);
+		changes.getRecords().addAll(readRequests(in, version));
+
+		int number = in.readInt();
+		for (int i = 0; i < number; ++i) {
+			changes.getRemoved().add(readTicket(in, version));
+		}
+		return changes;
+	}
+
+//-------------------------------   TIMETABLE   ----------------------------------
+
+	/**
+	 * Writes timetable entries in agreed format
+	 * @param timetable list to send, null is sent as empty list
+	 * @param version codec version agreed for the connection
+	 */
+	public static void writeTimetable(ObjectOutputStream out, List<TimeTableEntry> timetable, int version) throws IOException
+	{
+		int number = (timetable == null) ? 0 : timetable.size();
+		if (version == LEGACY) {
+			out.writeObject(number);
+			for (int i = 0; i < number; ++i) {
+				out.writeObject(timetable.get(i));
+			}
+			return;
+		}
+
+		writeEntries(out, timetable);
+	}
+
+	/**
+	 * Writes timetable entries as binary list
+	 */
+	public static void writeEntries(DataOutput out, List<TimeTableEntry> timetable) throws IOException
+	{
+		int number = (timetable == null) ? 0 : timetable.size();
+		out.writeByte(VERSION);
+		out.writeInt(number);
+		for (int i = 0; i < number; ++i) {
+			writeEntry(out, timetable.get(i));
+		}
+	}
+
+	/**
+	 * Reads timetable entries written in agreed format
+	 * @param version codec version agreed for the connection
+	 */
+	public static ArrayList<TimeTableEntry> readTimetable(ObjectInputStream in, int version) throws IOException,
+		ClassNotFoundException
+	{
+		if (version == LEGACY) {
+			int number = (int)in.readObject();
+			ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>(number);
+			for (int i = 0; i < number; ++i) {
+				timetable.add((TimeTableEntry)in.readObject());
+			}
+			return timetable;
+		}
+
+		return readEntries(in);
+	}
+
+	/**
+	 * Reads timetable entries written by writeEntries()
+	 */
+	public static ArrayList<TimeTableEntry> readEntries(DataInput in) throws IOException
+	{
+		int version = in.readByte(); // version of writer, items are length-prefixed
+		int number = in.readInt();
+		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>(number);
+		for (int i = 0; i < number; ++i) {
+			timetable.add(readEntry(in, version));
+		}
+		return timetable;
+	}
+
+	public static void writeEntry(DataOutput out, TimeTableEntry entry) throws IOException
+	{
+		byte[] company = encodeString(entry.getAirCompany());
+		int minute = FlightCalendar.toMinuteOfDay(entry.getTime());
+		byte[] time = (minute == FlightCalendar.NO_TIME) ? encodeString(entry.getTime()) : null;
+
+		out.writeShort(ENTRY_FIXED_SIZE + 2 + company.length + ((time == null) ? 0 : 2 + time.length) + 2);
+		out.writeInt(entry.getFlightNumber());
+		out.writeByte(entry.getDirection());
+		out.writeShort(minute);
+		writeString(out, company);
+		if (time != null) {
+			writeString(out, time);
+		}
+		out.writeShort(entry.getCapacity());
+	}
+
+	/**
+	 * @param version codec version entry is written in
+	 */
+	public static TimeTableEntry readEntry(DataInput in, int version) throws IOException
+	{
+		int length = in.readUnsignedShort();
+		int flightNumber = in.readInt();
+		int direction = in.readByte();
+		int minute = in.readShort();
+		byte[] company = readBytes(in);
+		int consumed = ENTRY_FIXED_SIZE + 2 + company.length;
+
+		String time = null;
+		if (minute == FlightCalendar.NO_TIME) {
+			byte[] text = readBytes(in);
+			consumed += 2 + text.length;
+			time = decodeString(text);
+		} else {
+			time = FlightCalendar.formatMinuteOfDay(minute);
+		}
+		int capacity = 0;
+		if (version >= CAPACITY_VERSION) {
+			capacity = in.readUnsignedShort();
+			consumed += 2;
+		}
+		in.skipBytes(length - consumed);
+
+		return new TimeTableEntry(flightNumber, time, direction, decodeString(company), capacity);
+	}
+
+//-------------------------------   STRINGS   ----------------------------------
+
+	/* null string is sent as empty one */
+	private static byte[] encodeString(String value)
+	{
+		return (value == null) ? new byte[0] : value.getBytes(StandardCharsets.UTF_8);
+	}
+
+	private static void writeString(DataOutput out, byte[] value) throws IOException
+	{
+		out.writeShort(value.length);
+		out.write(value);
+	}
+
+	private static byte[] readBytes(DataInput in) throws IOException
+	{
+		byte[] value = new byte[in.readUnsignedShort()];
+		in.readFully(value);
+		return value;
+	}
+
+	private static String decodeString(byte[] value)
+	{
+		return new String(value, StandardCharsets.UTF_8);
+	}
+}
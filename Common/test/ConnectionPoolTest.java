@@ -0,0 +1,78 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Tests of record format agreed by connections of ConnectionPool
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class ConnectionPoolTest {
+	private DeviceServer 	_server;
+	private HostInfo 		_host;
+	private ConnectionPool 	_pool;
+
+	@Before
+	public void setup() {
+		_server = new DeviceServer("Test", NetworkOperator.getAvailablePort());
+		// replies codec version server keeps for the connection
+		_server.register("giveMeCodec", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				out.writeObject(codec);
+			}
+		});
+		new Thread() {
+			public void run() {
+				_server.run();
+			}
+		}.start();
+		_host = new HostInfo("Test", "127.0.0.1", _server.getPort());
+		_pool = new ConnectionPool();
+	}
+
+	@After
+	public void cleanup() {
+		_pool.closeAll();
+		_server.stop();
+		_server.awaitStopped(5000);
+	}
+
+	private static int serverCodec(PeerConnection connection) throws Exception {
+		connection.getOutput().writeObject("giveMeCodec");
+		connection.getOutput().writeObject("goodbye");
+		connection.getOutput().flush();
+		int codec = (Integer)connection.getInput().readObject();
+		assertEquals("Wrong goodbye.", "goodbye", connection.getInput().readObject());
+		connection.commandFinished();
+		return codec;
+	}
+
+	@Test
+	public void testEveryConnectionAgreesCodec() throws Exception {
+		// connections used at the same time by different threads
+		PeerConnection first = _pool.borrow(_host);
+		PeerConnection second = _pool.borrow(_host);
+		assertTrue("Connection is shared.", first != second);
+
+		assertEquals("Wrong codec of the first connection.", WireCodec.VERSION, first.getCodec());
+		assertEquals("Wrong codec of the second connection.", WireCodec.VERSION, second.getCodec());
+		assertEquals("Server does not know codec of the first connection.", WireCodec.VERSION, serverCodec(first));
+		assertEquals("Server does not know codec of the second connection.", WireCodec.VERSION, serverCodec(second));
+
+		_pool.release(first);
+		assertTrue("Idle connection is not given again.", first == _pool.borrow(_host));
+		assertEquals("Server does not keep codec of the connection.", WireCodec.VERSION, serverCodec(first));
+		_pool.release(first);
+		_pool.release(second);
+	}
+}
@@ -0,0 +1,225 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Tests of request and timetable merge, conversion of database created by the first
+ *  version and compaction of DatabaseConnector
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class DatabaseConnectorTest {
+	private static final int 	TODAY = FlightCalendar.toEpochDay(new Date());
+
+	private File 				_file;
+	private DatabaseConnector 	_sqlite = null;
+
+	@Before
+	public void setup() throws IOException {
+		_file = File.createTempFile("connector", ".sqlite");
+	}
+
+	@After
+	public void cleanup() {
+		if (_sqlite != null) {
+			_sqlite.closeConnection();
+		}
+		_file.delete();
+	}
+
+	/**
+	 * @return ticket as TicketGenerator gives at the time
+	 */
+	private static long ticketAt(long millis, int sequence) {
+		return ((millis - TicketGenerator.EPOCH) << (TicketGenerator.NODE_BITS + TicketGenerator.SEQUENCE_BITS)) | sequence;
+	}
+
+	private static RequestRecord booking(long ticket, int day, boolean confirmed) {
+		return new RequestRecord(ticket, "Passenger", 1, FlightCalendar.fromEpochDay(day), 0, 0, 0, confirmed, confirmed);
+	}
+
+	private static RequestRecord canceling(long ticket, long booked) {
+		return new RequestRecord(ticket, String.valueOf(booked), 0, null, 0, 1, 0, false, false);
+	}
+
+	@Test
+	public void testMergeIsIdempotent() {
+		_sqlite = new DatabaseConnector(_file.getPath());
+		long now = System.currentTimeMillis();
+		ArrayList<RequestRecord> records = new ArrayList<RequestRecord>();
+		records.add(booking(ticketAt(now, 1), TODAY + 3, false));
+		records.add(canceling(ticketAt(now, 2), ticketAt(now, 1)));
+
+		MergeResult first = _sqlite.mergeRequests(records);
+		assertEquals("Records are not inserted.", 2, first.getInserted());
+
+		MergeResult second = _sqlite.mergeRequests(records);
+		assertTrue("Merge of the same records changes database.", !second.hasChanges());
+		assertEquals("Change log has record twice.", 2, _sqlite.getChangesSince(0, null).getRecords().size());
+
+		ArrayList<RequestRecord> decided = new ArrayList<RequestRecord>();
+		decided.add(booking(ticketAt(now, 1), TODAY + 3, true));
+		MergeResult third = _sqlite.mergeRequests(decided);
+		assertEquals("Changed record is not updated.", 1, third.getUpdated());
+		assertTrue("Record is not updated.", _sqlite.getRequest(ticketAt(now, 1)).isConfirmed());
+		assertTrue("Merge of the same records changes database.", !_sqlite.mergeRequests(decided).hasChanges());
+		assertEquals("Change log has record twice.", 2, _sqlite.getChangesSince(0, null).getRecords().size());
+	}
+
+	@Test
+	public void testUpdatedCancelingHasNoFlight() throws Exception {
+		_sqlite = new DatabaseConnector(_file.getPath());
+		long now = System.currentTimeMillis();
+		ArrayList<RequestRecord> records = new ArrayList<RequestRecord>();
+		records.add(canceling(ticketAt(now, 2), ticketAt(now, 1)));
+		_sqlite.mergeRequests(records);
+		records.set(0, new RequestRecord(ticketAt(now, 2), String.valueOf(ticketAt(now, 1)), 0, null, 0, 1, 0, true, true));
+		assertEquals("Canceling is not updated.", 1, _sqlite.mergeRequests(records).getUpdated());
+		_sqlite.closeConnection();
+		_sqlite = null;
+
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + _file.getPath());
+		Statement statement = connection.createStatement();
+		ResultSet row = statement.executeQuery("SELECT FlightNumber,Confirmed FROM Requests WHERE Ticket = " + ticketAt(now, 2));
+		assertTrue("Canceling is lost.", row.next());
+		assertNull("Flight number is written to canceling.", row.getObject(1));
+		assertTrue("Canceling is not confirmed.", row.getBoolean(2));
+		row.close();
+		statement.close();
+		connection.close();
+	}
+
+	@Test
+	public void testSentSequenceGoesForward() {
+		_sqlite = new DatabaseConnector(_file.getPath());
+		_sqlite.setSentSequence("Company", 5);
+		// push of older changes finished after the later one
+		_sqlite.setSentSequence("Company", 3);
+		assertEquals("Sent sequence goes back.", 5, _sqlite.getSentSequence("Company"));
+		_sqlite.setSentSequence("Company", 7);
+		assertEquals("Sent sequence is not remembered.", 7, _sqlite.getSentSequence("Company"));
+	}
+
+	@Test
+	public void testMergedTimetableKeepsCapacity() {
+		_sqlite = new DatabaseConnector(_file.getPath());
+		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();
+		timetable.add(new TimeTableEntry(1, "09:30", 0, "Company", 20));
+		timetable.add(new TimeTableEntry(2, "10:30", 1, "Company"));
+		assertEquals("Entries are not inserted.", 2, _sqlite.mergeTimetable(timetable).getInserted());
+		assertEquals("Number of seats is not taken.", 20, _sqlite.getFlightCapacity(1));
+		assertEquals("Unknown number of seats is not default.", DatabaseConnector.DEFAULT_CAPACITY, _sqlite.getFlightCapacity(2));
+		assertEquals("Number of seats is not given with timetable.", 20, _sqlite.getTimeTableEntry(1).getCapacity());
+
+		// entry of device which doesn't send number of seats
+		timetable.clear();
+		timetable.add(new TimeTableEntry(1, "09:30", 0, "Company"));
+		assertTrue("Entry without number of seats changes timetable.", !_sqlite.mergeTimetable(timetable).hasChanges());
+		assertEquals("Number of seats is lost.", 20, _sqlite.getFlightCapacity(1));
+
+		timetable.set(0, new TimeTableEntry(1, "09:30", 0, "Company", 30));
+		assertEquals("Number of seats is not updated.", 1, _sqlite.mergeTimetable(timetable).getUpdated());
+		assertEquals("Number of seats is not updated.", 30, _sqlite.getFlightCapacity(1));
+	}
+
+	@Test
+	public void testFirstVersionDatabaseIsConverted() throws Exception {
+		// tables as the first version created them
+		Class.forName("org.sqlite.JDBC");
+		Connection connection = DriverManager.getConnection("jdbc:sqlite:" + _file.getPath());
+		Statement statement = connection.createStatement();
+		statement.execute("CREATE TABLE Timetable (FlightNumber integer NOT NULL PRIMARY KEY UNIQUE,FlightTime time NOT NULL,"
+				+ "Direction integer NOT NULL,AirCompany text NOT NULL);");
+		statement.execute("CREATE TABLE Requests (Ticket integer NOT NULL PRIMARY KEY UNIQUE,PassengerName text NOT NULL,"
+				+ "FlightNumber integer,FlightDate text,Direction integer,RequestType integer NOT NULL,"
+				+ "TicketType integer,Confirmed boolean NOT NULL, Checked boolean NOT NULL);");
+		statement.execute("INSERT INTO Timetable VALUES (3,\"09:30\",1,\"Company\")");
+		statement.execute("INSERT INTO Requests VALUES (100,\"Passenger\",3,\"15/05/2030\",1,0,0,1,1)");
+		statement.execute("INSERT INTO Requests VALUES (101,\"100\",NULL,NULL,NULL,1,NULL,0,0)");
+		statement.close();
+		connection.close();
+
+		_sqlite = new DatabaseConnector(_file.getPath());
+		RequestRecord booking = _sqlite.getRequest(100);
+		assertNotNull("Booking is lost.", booking);
+		assertEquals("Wrong flight date.", "15/05/2030", new SimpleDateFormat("dd/MM/yyyy").format(booking.getFlightDate()));
+		assertEquals("Wrong flight.", 3, booking.getFlightNumber());
+		assertTrue("Wrong confirmation.", booking.isConfirmed());
+		RequestRecord canceling = _sqlite.getRequest(101);
+		assertNotNull("Canceling is lost.", canceling);
+		assertNull("Canceling has flight date.", canceling.getFlightDate());
+		assertEquals("Canceling is not found by booking.", 101, _sqlite.getCancelRequestForTicket(100).getTicket());
+		assertEquals("Confirmed seat is not counted.", DatabaseConnector.DEFAULT_CAPACITY - 1,
+				_sqlite.getFreeSeats(3, booking.getFlightDate()));
+		assertEquals("Wrong flight time.", "09:30", _sqlite.getTimeTableEntry(3).getTime());
+		_sqlite.closeConnection();
+
+		connection = DriverManager.getConnection("jdbc:sqlite:" + _file.getPath());
+		statement = connection.createStatement();
+		ResultSet version = statement.executeQuery("PRAGMA user_version");
+		assertTrue("Schema version is not set.", version.next() && version.getInt(1) > 0);
+		version.close();
+		ResultSet minute = statement.executeQuery("SELECT FlightMinute FROM Timetable WHERE FlightNumber = 3");
+		assertTrue("Flight minute is not set.", minute.next() && minute.getInt(1) == 9 * 60 + 30);
+		minute.close();
+		statement.close();
+		connection.close();
+
+		// converted database is opened as it is
+		_sqlite = new DatabaseConnector(_file.getPath());
+		assertEquals("Records are changed by second opening.", 2, _sqlite.getAllRequests().size());
+	}
+
+	@Test
+	public void testCompactKeepsUnresolvedCancelings() {
+		_sqlite = new DatabaseConnector(_file.getPath());
+		long now = System.currentTimeMillis();
+		long old = now - (DatabaseConnector.RETENTION_DAYS + 10) * FlightCalendar.DAY_MILLIS;
+		long pastBooking = ticketAt(old, 1);
+		long booking = ticketAt(now, 1);
+		long pastCanceling = ticketAt(now, 2);
+		long canceling = ticketAt(now, 3);
+		long early = ticketAt(now, 4);
+		long orphan = ticketAt(old, 2);
+
+		ArrayList<RequestRecord> records = new ArrayList<RequestRecord>();
+		records.add(booking(pastBooking, TODAY - DatabaseConnector.RETENTION_DAYS - 5, true));
+		records.add(booking(booking, TODAY + 3, true));
+		records.add(canceling(pastCanceling, pastBooking));
+		records.add(canceling(canceling, booking));
+		// booking of this canceling is not received yet
+		records.add(canceling(early, ticketAt(now, 5)));
+		// booking of this canceling was never received
+		records.add(canceling(orphan, ticketAt(old, 3)));
+		_sqlite.mergeRequests(records);
+
+		MergeResult result = _sqlite.compact();
+		assertEquals("Wrong number of removed records.", 3, result.getRemoved());
+		assertNull("Booking of past flight is not archived.", _sqlite.getRequest(pastBooking));
+		assertNull("Canceling of archived booking is kept.", _sqlite.getRequest(pastCanceling));
+		assertNull("Old canceling without booking is kept.", _sqlite.getRequest(orphan));
+		assertNotNull("Booking is removed.", _sqlite.getRequest(booking));
+		assertNotNull("Canceling of kept booking is removed.", _sqlite.getRequest(canceling));
+		assertNotNull("Canceling which came before its booking is removed.", _sqlite.getRequest(early));
+
+		assertTrue("Compacted database is compacted again.", !_sqlite.compact().hasChanges());
+	}
+}
@@ -0,0 +1,211 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ *  Tests of framed session: order of replies on accepting side, frames
+ *  taken from received bytes and matching of replies to commands by Pipeline
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class FrameProtocolTest {
+	private static final int 	CODEC = WireCodec.VERSION;
+
+	/**
+	 * Takes records and answers timetable requests by empty timetable
+	 */
+	private static class RecordingHandler implements FrameProtocol.Handler {
+		ArrayList<ArrayList<RequestRecord>> 	_batches = new ArrayList<ArrayList<RequestRecord>>();
+
+		public synchronized boolean reply(int opcode, DataInputStream payload, DataOutputStream reply, int codec) throws IOException {
+			if (opcode != FrameProtocol.GIVE_ME_TIMETABLE) {
+				return false;
+			}
+			WireCodec.writeEntries(reply, new ArrayList<TimeTableEntry>());
+			return true;
+		}
+
+		public synchronized boolean receive(int opcode, ArrayList<RequestRecord> records) {
+			if (opcode != FrameProtocol.TAKE_MY_REQUEST) {
+				return false;
+			}
+			_batches.add(records);
+			return true;
+		}
+	}
+
+	private static byte[] booking(long ticket) throws IOException {
+		ArrayList<RequestRecord> records = new ArrayList<RequestRecord>();
+		records.add(new RequestRecord(ticket, "Passenger", 1, FlightCalendar.fromEpochDay(16500), 0, 0, 1, false, false));
+		return FrameProtocol.encodeRecords(records, CODEC);
+	}
+
+	private static List<FrameProtocol.Frame> frames(int[] opcodes, byte[][] payloads) {
+		ArrayList<FrameProtocol.Frame> frames = new ArrayList<FrameProtocol.Frame>();
+		for (int i = 0; i < opcodes.length; ++i) {
+			frames.add(new FrameProtocol.Frame(opcodes[i], i + 1, payloads[i]));
+		}
+		return frames;
+	}
+
+	/**
+	 * @return {opcode, id} of every reply
+	 */
+	private static List<int[]> replies(ByteArrayOutputStream bytes) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		ArrayList<int[]> replies = new ArrayList<int[]>();
+		while (in.available() > 0) {
+			FrameProtocol.Frame frame = FrameProtocol.readFrame(in);
+			replies.add(new int[] { frame.getOpcode(), frame.getId() });
+		}
+		return replies;
+	}
+
+	private static int readerThreads() {
+		int readers = 0;
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.getName().equals("Pipeline reader")) {
+				++readers;
+			}
+		}
+		return readers;
+	}
+
+	private static void assertReply(int opcode, int id, int[] reply) {
+		assertEquals("Wrong reply opcode.", opcode, reply[0]);
+		assertEquals("Reply is given to wrong command.", id, reply[1]);
+	}
+
+	@Test
+	public void testRecordRepliesFollowOtherCommands() throws Exception {
+		byte[] empty = new byte[0];
+		List<FrameProtocol.Frame> frames = frames(
+				new int[] { FrameProtocol.TAKE_MY_REQUEST, FrameProtocol.TAKE_MY_REQUEST, FrameProtocol.PING, 42, FrameProtocol.GOODBYE },
+				new byte[][] { booking(1), booking(2), empty, empty, empty });
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RecordingHandler handler = new RecordingHandler();
+
+		assertTrue("Session is not finished by GOODBYE.", FrameProtocol.serve(frames, new DataOutputStream(bytes), CODEC, handler));
+
+		assertEquals("Records of consecutive frames are not given together.", 1, handler._batches.size());
+		assertEquals("Wrong number of records.", 2, handler._batches.get(0).size());
+		List<int[]> replies = replies(bytes);
+		assertEquals("Wrong number of replies.", 5, replies.size());
+		assertReply(FrameProtocol.PING, 3, replies.get(0));
+		assertReply(FrameProtocol.ERROR, 4, replies.get(1));
+		assertReply(FrameProtocol.TAKE_MY_REQUEST, 1, replies.get(2));
+		assertReply(FrameProtocol.TAKE_MY_REQUEST, 2, replies.get(3));
+		assertReply(FrameProtocol.GOODBYE, 5, replies.get(4));
+	}
+
+	@Test
+	public void testReceivedFramesAreAnswered() throws Exception {
+		List<FrameProtocol.Frame> frames = frames(new int[] { FrameProtocol.TAKE_MY_REQUEST }, new byte[][] { booking(1) });
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		RecordingHandler handler = new RecordingHandler();
+
+		assertFalse("Session is finished without GOODBYE.", FrameProtocol.serve(frames, new DataOutputStream(bytes), CODEC, handler));
+
+		assertEquals("Records are kept until the next frames.", 1, handler._batches.size());
+		List<int[]> replies = replies(bytes);
+		assertEquals("Received frame is not answered.", 1, replies.size());
+		assertReply(FrameProtocol.TAKE_MY_REQUEST, 1, replies.get(0));
+	}
+
+	@Test
+	public void testFrameIsTakenWhenReceivedCompletely() throws Exception {
+		byte[] first = FrameProtocol.encodeFrame(FrameProtocol.TAKE_MY_REQUEST, 1, booking(1));
+		byte[] second = FrameProtocol.encodeFrame(FrameProtocol.PING, 2, new byte[0]);
+		ByteBuffer buffer = ByteBuffer.allocateDirect(first.length + second.length);
+
+		// header is received partly
+		buffer.put(first, 0, 3);
+		buffer.flip();
+		assertNull("Frame is taken before its header.", FrameProtocol.nextFrame(buffer));
+		buffer.compact();
+		// payload is received partly
+		buffer.put(first, 3, first.length - 4);
+		buffer.flip();
+		assertNull("Frame is taken before its payload.", FrameProtocol.nextFrame(buffer));
+		buffer.compact();
+
+		buffer.put(first, first.length - 1, 1);
+		buffer.put(second);
+		buffer.flip();
+		FrameProtocol.Frame frame = FrameProtocol.nextFrame(buffer);
+		assertEquals("Wrong opcode.", FrameProtocol.TAKE_MY_REQUEST, frame.getOpcode());
+		assertEquals("Wrong request id.", 1, frame.getId());
+		assertEquals("Wrong records.", 1, WireCodec.readRecords(frame.getPayload(), CODEC).size());
+		assertEquals("Next frame is not taken.", 2, FrameProtocol.nextFrame(buffer).getId());
+		assertFalse("Bytes are left after frames.", buffer.hasRemaining());
+	}
+
+	@Test
+	public void testPipelineMatchesRepliesById() throws Exception {
+		final DeviceServer server = new DeviceServer("Test", NetworkOperator.getAvailablePort());
+		RecordingHandler handler = new RecordingHandler();
+		server.register(handler);
+		Thread selector = new Thread() {
+			public void run() {
+				server.run();
+			}
+		};
+		selector.start();
+		try {
+			Pipeline pipeline = NetworkOperator.openPipeline(new HostInfo("Test", "127.0.0.1", server.getPort()));
+			ArrayList<Future<Boolean>> bookings = new ArrayList<Future<Boolean>>();
+			for (int i = 0; i < 3; ++i) {
+				bookings.add(pipeline.sendRecord(new RequestRecord(i + 1, "Passenger", 1,
+						FlightCalendar.fromEpochDay(16500), 0, 0, 1, false, false)));
+			}
+			Future<ArrayList<TimeTableEntry>> timetable = pipeline.requestTimetable();
+			Future<Boolean> ping = pipeline.ping();
+			Future<Boolean> confirmation = pipeline.sendConfirmation(new ArrayList<RequestRecord>());
+
+			assertTrue("Ping is not answered.", ping.get());
+			assertTrue("Timetable is not answered.", timetable.get().isEmpty());
+			assertFalse("Unsupported command is answered as done.", confirmation.get());
+			for (Future<Boolean> booking : bookings) {
+				assertTrue("Booking is not answered.", booking.get());
+			}
+			assertTrue("Session is not finished.", pipeline.close());
+
+			int records = 0;
+			for (ArrayList<RequestRecord> batch : handler._batches) {
+				records += batch.size();
+			}
+			assertEquals("Wrong number of records received.", 3, records);
+
+			// pipelines opened one after another share reader thread
+			int readers = readerThreads();
+			for (int i = 0; i < 5; ++i) {
+				Pipeline next = NetworkOperator.openPipeline(new HostInfo("Test", "127.0.0.1", server.getPort()));
+				assertTrue("Ping is not answered.", next.ping().get());
+				assertTrue("Session is not finished.", next.close());
+				// reader thread goes back to the pool after GOODBYE reply
+				Thread.sleep(50);
+			}
+			assertTrue("Reader thread is not reused.", readerThreads() <= Math.max(readers, 1));
+		} finally {
+			NetworkOperator.closeConnections();
+			server.stop();
+			server.awaitStopped(5000);
+		}
+	}
+}
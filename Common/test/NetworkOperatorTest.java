@@ -0,0 +1,85 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Tests of command exchanges repeated by NetworkOperator over new connection
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class NetworkOperatorTest {
+	private DeviceServer 	_server;
+	private HostInfo 		_host;
+
+	/* giveMeRequests commands served, the second one breaks connection after the first record */
+	private AtomicInteger 	_served = new AtomicInteger();
+
+	@Before
+	public void setup() {
+		_server = new DeviceServer("Test", NetworkOperator.getAvailablePort());
+		_server.register("giveMeRequests", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				ArrayList<RequestRecord> records = new ArrayList<RequestRecord>();
+				records.add(record(1));
+				records.add(record(2));
+				WireCodec.writeStreamStart(out, codec);
+				WireCodec.writeChunk(out, records.subList(0, 1), codec);
+				if (_served.incrementAndGet() == 2) {
+					out.flush();
+					throw new IOException("Connection is broken");
+				}
+				WireCodec.writeChunk(out, records.subList(1, 2), codec);
+				WireCodec.writeStreamEnd(out);
+				out.flush();
+			}
+		});
+		new Thread() {
+			public void run() {
+				_server.run();
+			}
+		}.start();
+		_host = new HostInfo("Test", "127.0.0.1", _server.getPort());
+	}
+
+	@After
+	public void cleanup() {
+		NetworkOperator.closeConnections();
+		_server.stop();
+		_server.awaitStopped(5000);
+	}
+
+	private static RequestRecord record(long ticket) {
+		return new RequestRecord(ticket, "Passenger", 1, FlightCalendar.fromEpochDay(16500), 0, 0, 1, false, false);
+	}
+
+	@Test
+	public void testVisitedStreamIsNotRepeated() throws Exception {
+		assertEquals("Wrong number of records.", 2, NetworkOperator.requestRecords(_host).size());
+
+		// kept connection is reused, stream breaks after the first record
+		final ArrayList<Long> visited = new ArrayList<Long>();
+		boolean received = NetworkOperator.requestRecords(_host, new RequestVisitor() {
+			public void visit(RequestRecord record) {
+				visited.add(record.getTicket());
+			}
+		});
+		assertFalse("Broken stream is received.", received);
+		assertEquals("Record is given to visitor twice.", 1, visited.size());
+		assertEquals("Exchange is repeated after records were visited.", 2, _served.get());
+
+		assertTrue("Records are not received over new connection.", NetworkOperator.requestRecords(_host) != null);
+	}
+}
@@ -0,0 +1,118 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ *  Tests of batches gathered by SubmissionQueue
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class SubmissionQueueTest {
+	/* linger long enough to never pass in a test */
+	private static final int 	LONG_LINGER = 60 * 1000;
+
+	/**
+	 * Remembers sizes of sent batches and when they were sent
+	 */
+	private static class RecordingSender implements SubmissionQueue.Sender {
+		ArrayList<Integer> 	_sizes = new ArrayList<Integer>();
+		ArrayList<Long> 	_times = new ArrayList<Long>();
+		boolean 			_delivered = true;
+
+		public synchronized boolean send(ArrayList<RequestRecord> records) {
+			_sizes.add(records.size());
+			_times.add(System.currentTimeMillis());
+			return _delivered;
+		}
+
+		synchronized ArrayList<Integer> sizes() {
+			return new ArrayList<Integer>(_sizes);
+		}
+	}
+
+	private static RequestRecord record(int ticket) {
+		return new RequestRecord(ticket, "Passenger", 1, FlightCalendar.fromEpochDay(16500), 0, 0, 1, false, false);
+	}
+
+	@Test
+	public void testRecordsWithinLingerGoTogether() throws Exception {
+		int linger = 200;
+		RecordingSender sender = new RecordingSender();
+		SubmissionQueue queue = new SubmissionQueue("Test", sender, linger, 100);
+		long started = System.currentTimeMillis();
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 3; ++i) {
+			results.add(queue.submit(record(i)));
+		}
+		for (Future<Boolean> result : results) {
+			assertTrue("Record is not delivered.", result.get(5, TimeUnit.SECONDS));
+		}
+		queue.close();
+
+		assertEquals("Records are not sent in one batch.", 1, sender.sizes().size());
+		assertEquals("Wrong batch size.", 3, (int)sender.sizes().get(0));
+		assertTrue("Batch is sent before linger passed.", sender._times.get(0) - started >= linger);
+	}
+
+	@Test
+	public void testFullBatchIsSentAtOnce() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		SubmissionQueue queue = new SubmissionQueue("Test", sender, LONG_LINGER, 2);
+		ArrayList<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < 5; ++i) {
+			results.add(queue.submit(record(i)));
+		}
+		// full batches don't wait for linger
+		assertTrue("Full batch is not sent.", results.get(3).get(5, TimeUnit.SECONDS));
+		assertFalse("Last batch is sent before linger passed.", results.get(4).isDone());
+		queue.close();
+
+		ArrayList<Integer> sizes = sender.sizes();
+		assertEquals("Wrong number of batches.", 3, sizes.size());
+		assertEquals("Batch exceeds size cap.", 2, (int)sizes.get(0));
+		assertEquals("Batch exceeds size cap.", 2, (int)sizes.get(1));
+		assertEquals("Wrong size of the last batch.", 1, (int)sizes.get(2));
+	}
+
+	@Test
+	public void testCloseSendsPendingRecords() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		SubmissionQueue queue = new SubmissionQueue("Test", sender, LONG_LINGER, 100);
+		Future<Boolean> first = queue.submit(record(1));
+		Future<Boolean> second = queue.submit(record(2));
+		queue.close();
+
+		assertTrue("Pending record is not sent by close().", first.isDone() && first.get());
+		assertTrue("Pending record is not sent by close().", second.isDone() && second.get());
+		assertEquals("Pending records are not sent together.", 1, sender.sizes().size());
+	}
+
+	@Test
+	public void testClosedQueueRejectsRecords() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		SubmissionQueue queue = new SubmissionQueue("Test", sender, LONG_LINGER, 100);
+		queue.close();
+
+		assertFalse("Record is taken by closed queue.", queue.submit(record(1)).get());
+		assertTrue("Record of closed queue is sent.", sender.sizes().isEmpty());
+	}
+
+	@Test
+	public void testFailedBatchFailsItsRecords() throws Exception {
+		RecordingSender sender = new RecordingSender();
+		sender._delivered = false;
+		SubmissionQueue queue = new SubmissionQueue("Test", sender, 0, 100);
+
+		assertFalse("Record of failed batch is delivered.", queue.submit(record(1)).get(5, TimeUnit.SECONDS));
+		queue.close();
+	}
+}
@@ -0,0 +1,86 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
+
+import java.util.HashSet;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *  Tests of ticket layout, uniqueness and order of TicketGenerator
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class TicketGeneratorTest {
+	private static final int 	NODE = 5;
+
+	@Before
+	public void setup() {
+		TicketGenerator.setNode(NODE);
+	}
+
+	@Test
+	public void testTicketLayout() {
+		long before = System.currentTimeMillis();
+		long ticket = TicketGenerator.next();
+		assertEquals("Wrong node of the ticket.", NODE, TicketGenerator.nodeOf(ticket));
+		assertTrue("Ticket time is too early.", TicketGenerator.timeOf(ticket) >= before);
+		assertTrue("Ticket does not fit in 63 bits.", ticket > 0);
+	}
+
+	@Test
+	public void testInvalidNodeIsRefused() {
+		assertTrue("Node out of range is taken.", !TicketGenerator.setNode(1 << TicketGenerator.NODE_BITS));
+		assertTrue("Negative node is taken.", !TicketGenerator.setNode(-1));
+		assertEquals("Node is changed by invalid number.", NODE, TicketGenerator.getNode());
+	}
+
+	@Test
+	public void testTicketsGrowWithinMillisecond() {
+		// more tickets than sequence numbers of one millisecond
+		long now = System.currentTimeMillis();
+		int count = 3 * (1 << TicketGenerator.SEQUENCE_BITS);
+		HashSet<Long> tickets = new HashSet<Long>();
+		long last = TicketGenerator.next(now);
+		tickets.add(last);
+		for (int i = 1; i < count; ++i) {
+			long ticket = TicketGenerator.next(now);
+			assertTrue("Tickets do not grow.", ticket > last);
+			tickets.add(ticket);
+			last = ticket;
+		}
+		assertEquals("Tickets are not unique.", count, tickets.size());
+		assertTrue("Too many milliseconds are borrowed.", TicketGenerator.timeOf(last) <= now + 3);
+	}
+
+	@Test
+	public void testTicketsGrowWhenClockGoesBack() {
+		long now = System.currentTimeMillis();
+		long last = TicketGenerator.next(now);
+		for (int i = 0; i < 100; ++i) {
+			// clock is set one minute back
+			long ticket = TicketGenerator.next(now - 60 * 1000);
+			assertTrue("Ticket is less than the previous one after clock went back.", ticket > last);
+			assertEquals("Wrong node of the ticket.", NODE, TicketGenerator.nodeOf(ticket));
+			last = ticket;
+		}
+		assertTrue("Ticket goes back with clock.", TicketGenerator.timeOf(last) >= now);
+
+		// clock is back to normal
+		long ticket = TicketGenerator.next(now + 1);
+		assertTrue("Tickets do not grow after clock is restored.", ticket > last);
+	}
+
+	@Test
+	public void testNodesGiveDifferentTickets() {
+		long now = System.currentTimeMillis();
+		long first = TicketGenerator.next(now);
+		TicketGenerator.setNode(NODE + 1);
+		long second = TicketGenerator.next(now);
+		assertEquals("Wrong node of the ticket.", NODE + 1, TicketGenerator.nodeOf(second));
+		assertTrue("Tickets of different nodes are equal.", first != second);
+	}
+}
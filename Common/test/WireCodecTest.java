@@ -0,0 +1,194 @@
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ *  Tests of request records and timetable transfer by every WireCodec version
+ */
+
+/**
+ * @author ruben
+ *
+ */
+public class WireCodecTest {
+	/* ticket which fits in int, as first version generated */
+	private static final long 	SHORT_TICKET = 123456789L;
+
+	/* ticket generated by TicketGenerator */
+	private static final long 	LONG_TICKET = (1L << 40) + 17;
+
+	private static final Date 	FLIGHT_DATE = FlightCalendar.fromEpochDay(16500);
+
+	private static ArrayList<RequestRecord> records(long ticket) {
+		ArrayList<RequestRecord> records = new ArrayList<RequestRecord>();
+		records.add(new RequestRecord(ticket, "Passenger \u00e5", 12, FLIGHT_DATE, 1, 0, 1, true, false));
+		records.add(new RequestRecord(ticket + 1, String.valueOf(ticket), 0, null, 0, 1, 0, false, true));
+		return records;
+	}
+
+	private static void assertSameRecords(List<RequestRecord> expected, List<RequestRecord> actual) {
+		assertEquals("Wrong number of records.", expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); ++i) {
+			RequestRecord first = expected.get(i);
+			RequestRecord second = actual.get(i);
+			assertEquals("Wrong ticket.", first.getTicket(), second.getTicket());
+			assertEquals("Wrong passenger.", first.getPassengerName(), second.getPassengerName());
+			assertEquals("Wrong flight.", first.getFlightNumber(), second.getFlightNumber());
+			assertEquals("Wrong flight date.", first.getFlightDate(), second.getFlightDate());
+			assertEquals("Wrong direction.", first.getDirection(), second.getDirection());
+			assertEquals("Wrong request type.", first.getRequestType(), second.getRequestType());
+			assertEquals("Wrong ticket type.", first.getTicketType(), second.getTicketType());
+			assertEquals("Wrong confirmation.", first.isConfirmed(), second.isConfirmed());
+			assertEquals("Wrong check.", first.isChecked(), second.isChecked());
+		}
+	}
+
+	/**
+	 * Writes records by writeRequests() and reads them back
+	 */
+	private static ArrayList<RequestRecord> transfer(List<RequestRecord> records, int version) throws Exception {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ObjectOutputStream out = new ObjectOutputStream(bytes);
+		WireCodec.writeRequests(out, records, version);
+		out.close();
+		ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		return WireCodec.readRequests(in, version);
+	}
+
+	@Test
+	public void testRecordsOfEveryVersion() throws Exception {
+		for (int version = WireCodec.LEGACY; version <= WireCodec.VERSION; ++version) {
+			ArrayList<RequestRecord> records = records(SHORT_TICKET);
+			assertSameRecords(records, transfer(records, version));
+		}
+	}
+
+	@Test
+	public void testLongTickets() throws Exception {
+		for (int version = WireCodec.LEGACY; version <= WireCodec.VERSION; ++version) {
+			ArrayList<RequestRecord> records = records(LONG_TICKET);
+			if (version >= WireCodec.LONG_TICKETS_VERSION) {
+				assertSameRecords(records, transfer(records, version));
+				continue;
+			}
+			try {
+				transfer(records, version);
+				fail("Long ticket is sent with codec version " + version);
+			} catch (IOException e) {
+				// int tickets only
+			}
+		}
+	}
+
+	@Test
+	public void testLegacySerializedForm() {
+		// computed for the first version of RequestRecord
+		ObjectStreamClass form = ObjectStreamClass.lookup(RequestRecord.class);
+		assertEquals("Serialized form of the first version is changed.", -2973748070467928523L, form.getSerialVersionUID());
+		assertEquals("Ticket is not int in serialized form.", int.class, form.getField("_ticket").getType());
+	}
+
+	@Test
+	public void testNewerWriterIsReadByOlderVersion() throws Exception {
+		// list written by newer device is read in format of agreed version
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ArrayList<RequestRecord> records = records(LONG_TICKET);
+		WireCodec.writeRecords(new DataOutputStream(bytes), records, WireCodec.VERSION);
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+		assertSameRecords(records, WireCodec.readRecords(in, WireCodec.LONG_TICKETS_VERSION));
+	}
+
+	@Test
+	public void testChanges() throws Exception {
+		for (int version = WireCodec.CHANGES_VERSION; version <= WireCodec.VERSION; ++version) {
+			long ticket = (version >= WireCodec.LONG_TICKETS_VERSION) ? LONG_TICKET : SHORT_TICKET;
+			ChangeSet changes = new ChangeSet(42);
+			changes.setOrigin("Company");
+			changes.getRecords().addAll(records(ticket));
+			changes.getRemoved().add(ticket + 5);
+
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			WireCodec.writeChanges(out, changes, version);
+			out.close();
+			ChangeSet read = WireCodec.readChanges(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())), version);
+
+			assertEquals("Wrong origin.", "Company", read.getOrigin());
+			assertEquals("Wrong sequence.", 42, read.getSequence());
+			assertSameRecords(changes.getRecords(), read.getRecords());
+			assertEquals("Wrong removed tickets.", changes.getRemoved(), read.getRemoved());
+		}
+	}
+
+	@Test
+	public void testRequestStream() throws Exception {
+		for (int version = WireCodec.LEGACY; version <= WireCodec.VERSION; ++version) {
+			final ArrayList<RequestRecord> records = records(SHORT_TICKET);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			if (version >= WireCodec.STREAM_VERSION) {
+				WireCodec.writeStreamStart(out, version);
+				WireCodec.writeChunk(out, records.subList(0, 1), version);
+				WireCodec.writeChunk(out, records.subList(1, 2), version);
+				WireCodec.writeStreamEnd(out);
+			} else {
+				WireCodec.writeRequests(out, records, version);
+			}
+			out.close();
+
+			final ArrayList<RequestRecord> visited = new ArrayList<RequestRecord>();
+			WireCodec.readRequestStream(new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray())), version,
+					new RequestVisitor() {
+				public void visit(RequestRecord record) {
+					visited.add(record);
+				}
+			});
+			assertSameRecords(records, visited);
+		}
+	}
+
+	@Test
+	public void testTimetableOfEveryVersion() throws Exception {
+		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();
+		timetable.add(new TimeTableEntry(1, "09:30", 0, "Company", 20));
+		timetable.add(new TimeTableEntry(2, "not scheduled", 1, "Other"));
+		for (int version = WireCodec.LEGACY; version <= WireCodec.VERSION; ++version) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			WireCodec.writeTimetable(out, timetable, version);
+			out.close();
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+			ArrayList<TimeTableEntry> read = WireCodec.readTimetable(in, version);
+
+			assertEquals("Wrong number of entries.", timetable.size(), read.size());
+			for (int i = 0; i < timetable.size(); ++i) {
+				assertEquals("Wrong flight.", timetable.get(i).getFlightNumber(), read.get(i).getFlightNumber());
+				assertEquals("Wrong time.", timetable.get(i).getTime(), read.get(i).getTime());
+				assertEquals("Wrong direction.", timetable.get(i).getDirection(), read.get(i).getDirection());
+				assertEquals("Wrong company.", timetable.get(i).getAirCompany(), read.get(i).getAirCompany());
+				assertEquals("Wrong number of seats.", timetable.get(i).getCapacity(), read.get(i).getCapacity());
+			}
+		}
+	}
+
+	@Test
+	public void testNullListIsEmpty() throws Exception {
+		assertTrue("Null list is not sent as empty.", transfer(null, WireCodec.VERSION).isEmpty());
+		assertNull("Canceling has flight date.", transfer(records(SHORT_TICKET), WireCodec.VERSION).get(1).getFlightDate());
+	}
+}
@@ -4,7 +4,7 @@ import java.io.InputStreamReader;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.Timer;
 
 /**
@@ -32,6 +32,8 @@ public class HelicopterDevice extends Thread {
 	private ActiveDeviceFinder			_finder = null;	
 	private ArrayList<RequestRecord> 	_requests = null;
 	private ArrayList<TimeTableEntry> 	_timetable = null;
+	private TimetableCache 				_timetables = new TimetableCache();
+	private long 						_timetableVersion = System.currentTimeMillis();
 	private ArrayList<String>			_passengers = null;
 	private String						_owner = null;
 	private String 						_state = null;
@@ -72,6 +74,23 @@ public class HelicopterDevice extends Thread {
 		_requests = requests;
 	}
 	
+	/**
+	 * Adds records to carried ones, carried record with the same ticket is replaced.
+	 * List given by getRequests() is not changed.
+	 */
+	public synchronized void addRequests(ArrayList<RequestRecord> requests)  {
+		LinkedHashMap<Long, RequestRecord> carried = new LinkedHashMap<Long, RequestRecord>();
+		if (_requests != null) {
+			for (RequestRecord record : _requests) {
+				carried.put(record.getTicket(), record);
+			}
+		}
+		for (RequestRecord record : requests) {
+			carried.put(record.getTicket(), record);
+		}
+		_requests = new ArrayList<RequestRecord>(carried.values());
+	}
+	
 	public synchronized ArrayList<RequestRecord> getRequests()	{
 		return _requests;
 	}
@@ -79,12 +98,33 @@ public class HelicopterDevice extends Thread {
 	public synchronized void setTimetable(ArrayList<TimeTableEntry> timetable)  {
 		_timetable.clear();
 		_timetable = timetable;
+		++_timetableVersion;
 	}
 	
 	public synchronized ArrayList<TimeTableEntry> getTimetable()  {
 		return _timetable;
 	}	
 	
+	/**
+	 * @return version of carried timetable, it is increased when timetable is changed
+	 */
+	public synchronized long getTimetableVersion()  {
+		return _timetableVersion;
+	}
+	
+	/**
+	 * Takes timetable from the device. Timetable kept from the previous 
+	 * takeoff is not transferred again if it is not changed.
+	 */
+	private void requestTimetable(HostInfo info)
+	{
+		long known = _timetables.getVersion(info);
+		_timetable = NetworkOperator.requestTimetable(info, _timetables);
+		if (known == TimetableCache.NO_VERSION || _timetables.getVersion(info) != known) {
+			++_timetableVersion;
+		}
+	}
+	
 	/**
 	 * This function is used just to save previous state 
 	 * of helicopter along with current state.
@@ -108,7 +148,7 @@ public class HelicopterDevice extends Thread {
 			System.out.println("IN CAMP: Takeoff command received");
 			HostInfo campDevice = getCampDevice();
 			_requests = NetworkOperator.requestRecords(campDevice);
-			_timetable = NetworkOperator.requestTimetable(campDevice);
+			requestTimetable(campDevice);
 			System.out.println("Data received. Go to flight mode.");
 			setState("IN_FLIGHT");
 			startLandingCountdown(_flight_duration);
@@ -117,7 +157,7 @@ public class HelicopterDevice extends Thread {
 			System.out.println("IN TOWN: Takeoff command received");
 			HostInfo airCompany = getAirCompanyDevice();
 			_requests = NetworkOperator.requestRecords(airCompany);
-			_timetable = NetworkOperator.requestTimetable(airCompany);
+			requestTimetable(airCompany);
 			System.out.println("Data received. Go to flight mode.");
 			setState("IN_FLIGHT");
 			startLandingCountdown(_flight_duration);
@@ -176,21 +216,11 @@ public class HelicopterDevice extends Thread {
 
 	/* Requesting air company and camp device host info */
 	private HostInfo getAirCompanyDevice() {
-		LinkedList<HostInfo> airCompanies = _finder.jmdnsRequestDevices("_aircompany._tcp.local.");
-		if (!airCompanies.isEmpty()) {
-			return airCompanies.getFirst();			
-		} else {
-			return null;
-		}		
+		return _finder.findBestDevice("_aircompany._tcp.local.");
 	}
 
 	private HostInfo getCampDevice() {
-		LinkedList<HostInfo> campDevices = _finder.jmdnsRequestDevices("_camp._tcp.local.");
-		if (!campDevices.isEmpty()) {
-			return campDevices.getFirst();			
-		} else {
-			return null;
-		}
+		return _finder.findBestDevice("_camp._tcp.local.");
 	}
 	
 	/* Additional functions for operations with helicopter state */	
@@ -258,6 +288,7 @@ public class HelicopterDevice extends Thread {
 		 
 		_finder.closeJmDNS();
 		_operator.stopAccepting();	
+		NetworkOperator.closeConnections();
 				
 		try {		
 			_operator.join();		
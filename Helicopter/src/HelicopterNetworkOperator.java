@@ -1,14 +1,13 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
 import java.util.ArrayList;
 
 /**
  * 	This class contains acceptor thread for processing incoming connections
- * 	and uses ServerSocket class to communicate.
+ * 	and uses DeviceServer class to communicate.
  * 
  * 	The main aim of this class is to communicate with camp devices and 
  *  air company servers
@@ -27,6 +26,9 @@ import java.util.ArrayList;
  * 				helicopter says "goodbye"
  * 
  *  If command is "takeOff" there is no objects transferred.
+ *  Connection is kept open after "goodbye" and the next command could follow.
+ *  Command "framed" starts framed session (see FrameProtocol), records taken
+ *  in it are added to carried ones.
  */
 
 /**
@@ -36,99 +38,86 @@ import java.util.ArrayList;
 
 public class HelicopterNetworkOperator extends Thread {
 	private int 				_port;
-	private ServerSocket 		_acceptSocket;
 	private HelicopterDevice 	_helicopterDevice = null;
 	
+	/* accepts connections and processes commands coming over them */
+	private DeviceServer		_server = null;
+	
+	/* commands of framed sessions */
+	private FrameProtocol.Handler _frames = new FrameProtocol.Handler() {
+		public boolean reply(int opcode, DataInputStream payload, DataOutputStream reply, int codec) throws IOException {
+			switch (opcode) {
+			case FrameProtocol.GIVE_ME_TIMETABLE:
+				WireCodec.writeEntries(reply, _helicopterDevice.getTimetable());
+				return true;
+			case FrameProtocol.GIVE_ME_TIMETABLE_IF_NEWER:
+				long known = payload.readLong();
+				long version;
+				ArrayList<TimeTableEntry> timetable;
+				// timetable and its version are changed together
+				synchronized (_helicopterDevice) {
+					version = _helicopterDevice.getTimetableVersion();
+					timetable = _helicopterDevice.getTimetable();
+				}
+				reply.writeLong(version);
+				if (version != known) {
+					WireCodec.writeEntries(reply, timetable);
+				}
+				return true;
+			}
+			return false;
+		}
+		public boolean receive(int opcode, ArrayList<RequestRecord> records) {
+			if (opcode != FrameProtocol.TAKE_MY_REQUEST) {
+				return false;
+			}
+			_helicopterDevice.addRequests(records);
+			return true;
+		}
+	};
+	
 	HelicopterNetworkOperator()
 	{				
 		_port = NetworkOperator.getAvailablePort();
+		_server = new DeviceServer("Helicopter", _port);
 		
-		try {
-			// create server socket with queue of 10 possible incoming connections 
-			_acceptSocket = new ServerSocket(_port, 10);
-			// set up blocking mode for accepting socket (wait INFINITE)
-			_acceptSocket.setSoTimeout(0);
-		} 
-		catch(SocketException e){
-			System.err.println("Socket exception occured: " + e.toString());			
-		}
-		catch (IOException e) {
-			System.err.println("Unable to bind server to port " + _port);
-		}
+		_server.register("giveMeRequests", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushRequests(in, out, codec);
+			}
+		});
+		_server.register("giveMeTimetable", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushTimetable(in, out, codec);
+			}
+		});
+		_server.register("giveMeTimetableIfNewer", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException {
+				flushTimetableIfNewer(in, out, codec);
+			}
+		});
+		_server.register("takeMyRequests", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				receiveRequests(in, out, codec);
+			}
+		});
+		_server.register("takeMyTimeTable", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				receiveTimetable(in, out, codec);
+			}
+		});
+		_server.register("takeOff", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) {
+				takeOff();
+			}
+		});
+		_server.register(_frames);
 	}
 	
 	public void run()
 	{
-		while ( !_acceptSocket.isClosed() )
-		{
-			accept();
-		}		
+		_server.run();
 	}	
-
-	private void accept()
-	{
-		try
-		{				
-			// acknowledge incoming connection
-			Socket connection = null;
-			try {
-				connection = _acceptSocket.accept();
-			} catch (IOException ex) {
-				// maybe stopAccepting() was called
-				return;
-			}
-			
-			System.out.println("Helicopter got connection from: " + connection.getInetAddress().getHostAddress());
-			
-			ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-			
-			try
-			{
-				String command = (String)in.readObject();				
-				switch (command) {
-				case "giveMeRequests":
-					flushRequests(in, out);
-					break;
-				case "giveMeTimetable":
-					flushTimetable(in, out);
-					break;
-				case "takeMyRequests":
-					receiveRequests(in, out);
-					break;
-				case "takeMyTimeTable":
-					receiveTimetable(in, out);	
-					break;
-				case "takeOff":					
-					takeOff();
-					break;
-				default:
-					System.err.println("Unknown socket command.");												
-				}
-				
-				String goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye"))
-				{
-					out.writeObject(new String("goodbye"));
-					out.flush();
-					System.out.println("Communication finished successfully");
-				}	
-				
-				connection.close();
-				in.close();
-				out.close();
-			}
-			catch(ClassNotFoundException e)
-			{
-				System.err.println("Data received in unknown format");
-			}			
-		}
-		catch(IOException e)
-		{
-			System.err.println("Some IO error in accept()");
-		}				
-	}
 	
 	/**
 	 * This function sets the pointer to the helicopter device object 
@@ -139,17 +128,9 @@ public class HelicopterNetworkOperator extends Thread {
 		_helicopterDevice = devicePtr;
 	}
 	
-	public synchronized void stopAccepting()
+	public void stopAccepting()
 	{
-		if (_acceptSocket != null && !_acceptSocket.isClosed())
-		{
-			try {
-				_acceptSocket.close();
-			} catch (IOException e) {
-				System.out.println("Problems with accept socket");
-				e.printStackTrace();
-			}
-		}
+		_server.stop();
 	}
 	
 	public synchronized int getPort()
@@ -157,70 +138,63 @@ public class HelicopterNetworkOperator extends Thread {
 		return _port;
 	}
 		
-	private void flushRequests(ObjectInputStream in, ObjectOutputStream out) throws IOException 
+	private void flushRequests(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
 	{
 		System.out.println("Helicopter was asked to give booking and cancelling records");		
 		ArrayList<RequestRecord> requests = _helicopterDevice.getRequests();
-		// send number of requests
-		int number = requests.size();
-		out.writeInt(number);
-		out.flush();		
-		// send requests list
-		for (int i = 0; i < number; ++i)
-		{
-			RequestRecord record = requests.get(i);
-			out.writeObject(record);
+		// helicopter keeps records in memory anyway, they are sent by chunks as database does
+		RequestStreamWriter writer = new RequestStreamWriter(out, codec);
+		if (requests != null) {
+			for (RequestRecord record : requests) {
+				writer.visit(record);
+			}
 		}
+		writer.finish();
 		out.flush();
 	}
 	
-	private void flushTimetable(ObjectInputStream in, ObjectOutputStream out) throws IOException 
+	private void flushTimetable(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
 	{
 		System.out.println("Helicopter was asked to give timetable");	
 		ArrayList<TimeTableEntry> timetable = _helicopterDevice.getTimetable();
-		// send number of entries
-		int number = timetable.size();
-		out.writeInt(number);
+		// send number of entries and timetable entries
+		WireCodec.writeTimetable(out, timetable, codec);
 		out.flush();
-		// send timetable entries
-		for (int i = 0; i < number; ++i)
-		{
-			TimeTableEntry entry = timetable.get(i);
-			out.writeObject(entry);
+	}
+
+	private void flushTimetableIfNewer(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException 
+	{
+		long known = in.readLong();
+		long version;
+		ArrayList<TimeTableEntry> timetable;
+		// timetable and its version are changed together
+		synchronized (_helicopterDevice) {
+			version = _helicopterDevice.getTimetableVersion();
+			timetable = _helicopterDevice.getTimetable();
+		}
+		out.writeLong(version);
+		if (version != known) {
+			WireCodec.writeTimetable(out, timetable, codec);
 		}
 		out.flush();
 	}
 
-	private void receiveRequests(ObjectInputStream in, ObjectOutputStream out) throws IOException,
+	private void receiveRequests(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException,
 		ClassNotFoundException 
 	{
 		System.out.println("Helicopter was asked to take incoming requests");	
-		// receive number of entries
-		int number = (int)in.readObject();					
-		ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();				
-		// receive timetable
-		for (int i = 0; i < number; ++i)
-		{
-			RequestRecord record = (RequestRecord)in.readObject();
-			requests.add(record);
-		}
+		// receive number of entries and requests
+		ArrayList<RequestRecord> requests = WireCodec.readRequests(in, codec);
 		
 		_helicopterDevice.setRequests(requests);
 	}
 	
-	private void receiveTimetable(ObjectInputStream in, ObjectOutputStream out) throws IOException,
+	private void receiveTimetable(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException,
 		ClassNotFoundException 
 	{
 		System.out.println("Helicopter was asked to take incoming timetable");
-		// receive number of entries
-		int number = (int)in.readObject();					
-		ArrayList<TimeTableEntry> timetable = new ArrayList<TimeTableEntry>();				
-		// receive timetable
-		for (int i = 0; i < number; ++i)
-		{
-			TimeTableEntry entry = (TimeTableEntry)in.readObject();
-			timetable.add(entry);
-		}
+		// receive number of entries and timetable
+		ArrayList<TimeTableEntry> timetable = WireCodec.readTimetable(in, codec);
 		
 		_helicopterDevice.setTimetable(timetable);
 	}	
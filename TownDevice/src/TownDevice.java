@@ -7,6 +7,7 @@ import java.util.ArrayList;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.ListIterator;
+import java.util.concurrent.Future;
 
 /** 
  *  This class contains main code for town device application behavior
@@ -22,6 +23,10 @@ public class TownDevice extends Thread {
 	private ActiveDeviceFinder 	_finder = null;
 	private TownNetworkOperator _operator = null;	
 	private ArrayList<TimeTableEntry> _timetable = null;
+	/* timetable is transferred again only if air company changed it */
+	private TimetableCache _timetables = new TimetableCache();
+	/* bookings and cancelings are sent to air company in batches */
+	private SubmissionQueue 	_submissions = null;
 
 	public void confirm(RequestRecord record)
 	{
@@ -56,6 +61,9 @@ public class TownDevice extends Thread {
 	private void initialize() 
 	{				
 		System.out.println("Town device application initialization...");
+		
+		/* tickets of new records must differ from tickets of other devices */
+		TicketGenerator.configure();
 			
 		_operator = new TownNetworkOperator();
 		_operator.setListener(this);
@@ -65,10 +73,16 @@ public class TownDevice extends Thread {
 		
 		/* find all air companies */		
 		_finder = new ActiveDeviceFinder("_town._tcp.local.", NetworkOperator.getDeviceName(), _port);			
-		LinkedList<HostInfo> list = _finder.jmdnsRequestDevices("_aircompany._tcp.local.");
+		LinkedList<HostInfo> list = _finder.findDevices("_aircompany._tcp.local.");
 		for (int i = 0; i < list.size(); ++i) {
 			System.out.println("Found air company: " + list.get(i).toString());
 		}	
+		
+		_submissions = new SubmissionQueue("Town", new SubmissionQueue.Sender() {
+			public boolean send(ArrayList<RequestRecord> records) {
+				return NetworkOperator.sendBatch(getAirCompany(), records);
+			}
+		});
 				
 		System.out.println("Initialization finished.");
 	}
@@ -77,12 +91,18 @@ public class TownDevice extends Thread {
 	{		
 		System.out.println("Closing application...");
 		
+		/* send records waiting in submission queue */
+		_submissions.close();
+		
 		/* stop jmdns service */ 
 		_finder.closeJmDNS();
 				
 		/* stop acceptor thread */
 		_operator.stopAccepting();
 		
+		/* close connections kept to other devices */
+		NetworkOperator.closeConnections();
+		
 		try {		
 			_operator.join();
 		} catch (InterruptedException e) {
@@ -144,7 +164,7 @@ public class TownDevice extends Thread {
 			direction = readInt();
 		} while (direction != 0 && direction != 1);
 		
-		ArrayList<TimeTableEntry> timetable = NetworkOperator.requestTimetable(info);
+		ArrayList<TimeTableEntry> timetable = NetworkOperator.requestTimetable(info, _timetables);
 		if (timetable == null || timetable.isEmpty()) {
 			System.out.println("Unable to get a timetable.");
 			return;
@@ -257,7 +277,7 @@ public class TownDevice extends Thread {
 	 *  Show air companies by requesting devices list
 	 */
 	private void showAirCompanies() {
-		LinkedList<HostInfo> devices = _finder.jmdnsRequestDevices("_aircompany._tcp.local.");
+		LinkedList<HostInfo> devices = _finder.findDevices("_aircompany._tcp.local.");
 		if (devices == null || devices.size() == 0) {
 			System.out.println("Air companies not found");
 		}
@@ -295,11 +315,15 @@ public class TownDevice extends Thread {
 		HostInfo info = getAirCompany();
 		if (info != null) {
 			System.out.println("ALL REQUESTS LIST:");
-			ArrayList<RequestRecord> reqs = NetworkOperator.requestRecords(info);
-			for (int i = 0; i < reqs.size(); ++i)
-			{
-				System.out.println(i + ". " + reqs.get(i).toString());
-			}			
+			// records are shown while they are received
+			NetworkOperator.requestRecords(info, new RequestVisitor() {
+				private int _number = 0;
+				
+				public void visit(RequestRecord record)
+				{
+					System.out.println(_number++ + ". " + record.toString());
+				}
+			});
 		} 
 		else {
 			System.out.println("Cannot find any air company in the network");
@@ -360,7 +384,7 @@ public class TownDevice extends Thread {
 	}
 
 
-	private RequestRecord getCancelRequestForTicket(ArrayList<RequestRecord> cancellings, int ticket) 
+	private RequestRecord getCancelRequestForTicket(ArrayList<RequestRecord> cancellings, long ticket) 
 	{
 		String name = String.valueOf(ticket);
 		for (int i = 0; i < cancellings.size(); ++i) 
@@ -375,24 +399,20 @@ public class TownDevice extends Thread {
 	
 	private HostInfo getAirCompany()
 	{
-		LinkedList<HostInfo> devices = _finder.jmdnsRequestDevices("_aircompany._tcp.local.");
-		if (devices != null && !devices.isEmpty()) {
-			HostInfo info = devices.getFirst();
-			return info;
-		}
-		
-		return null;
+		// the healthiest air company, all of them have the same records
+		return _finder.findBestDevice("_aircompany._tcp.local.");
 	}
 
 	/**
 	 * This function notifies first air company considering that replication of
 	 * request between companies will be performed by themselves.
+	 * Records created close in time are sent together (see SubmissionQueue).
 	 * @param record freshly created record
+	 * @return true when record is delivered
 	 */
-	private boolean notifyAirCompany(RequestRecord record) 
+	private Future<Boolean> notifyAirCompany(RequestRecord record) 
 	{
-		HostInfo info = getAirCompany();
-		return NetworkOperator.sendRecord(info, record);
+		return _submissions.submit(record);
 	}
 	
 	/**
@@ -446,7 +466,7 @@ public class TownDevice extends Thread {
 	{
 		HostInfo info = getAirCompany();
 		if (info != null) {
-			_timetable = NetworkOperator.requestTimetable(info);
+			_timetable = NetworkOperator.requestTimetable(info, _timetables);
 			if (_timetable != null) {
 				return true;				
 			}
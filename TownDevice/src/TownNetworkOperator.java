@@ -1,14 +1,13 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
 import java.util.ArrayList;
 
 /**
  * 	This class contains acceptor thread for processing incoming connections
- * 	and uses ServerSocket class to communicate.
+ * 	and uses DeviceServer class to communicate.
  * 
  * 	The main aim of this class is to process requests from clients 
  * 	about booking and timetable.
@@ -21,6 +20,9 @@ import java.util.ArrayList;
  *  after:		 objects (type depend on command)
  *  last: 		 air company says "goodbye"
  * 				 town says "goodbye"
+ *  Connection is kept open after "goodbye" and the next command could follow.
+ *  Command "framed" starts framed session (see FrameProtocol), only
+ *  CONFIRMATION frames are taken in it.
  */
 
 /**
@@ -29,99 +31,46 @@ import java.util.ArrayList;
  */
 public class TownNetworkOperator extends Thread{
 	private int 			_port;
-	private ServerSocket 	_acceptSocket;
 	private TownDevice 		_townDevice = null;
 	
+	/* accepts connections and processes commands coming over them */
+	private DeviceServer	_server = null;
+	
+	/* commands of framed sessions */
+	private FrameProtocol.Handler _frames = new FrameProtocol.Handler() {
+		public boolean reply(int opcode, DataInputStream payload, DataOutputStream reply, int codec) {
+			return false;
+		}
+		public boolean receive(int opcode, ArrayList<RequestRecord> records) {
+			if (opcode != FrameProtocol.CONFIRMATION) {
+				return false;
+			}
+			confirm(records);
+			return true;
+		}
+	};
+	
 	TownNetworkOperator()
 	{				
 		_port = NetworkOperator.getAvailablePort();		
+		_server = new DeviceServer("Town", _port);
 		
-		try {
-			// create server socket with queue of 10 possible incoming connections 
-			_acceptSocket = new ServerSocket(_port, 10);
-			// set up blocking mode for accepting socket (wait INFINITE)
-			_acceptSocket.setSoTimeout(0);
-		} 
-		catch(SocketException e){
-			System.err.println("Socket exception occured: " + e.toString());			
-		}
-		catch (IOException e) {
-			System.err.println("Unable to bind server to port " + _port);
-		}
+		_server.register("confirmation", new DeviceServer.Command() {
+			public void process(ObjectInputStream in, ObjectOutputStream out, int codec) throws IOException, ClassNotFoundException {
+				processConfirmation(in, codec);
+			}
+		});
+		_server.register(_frames);
 	}
 	
 	public void run()
 	{
-		while ( !_acceptSocket.isClosed() )
-		{
-			accept();
-		}		
+		_server.run();
 	}
 	
-	private void accept()	
+	public void stopAccepting()
 	{
-		try
-		{				
-			// acknowledge incoming connection
-			Socket connection = null;
-			try {
-				connection = _acceptSocket.accept();
-			} catch (IOException ex) {
-				// maybe stopAccepting() was called
-				return;
-			}
-			System.out.println("Connection from: " + connection.getInetAddress().getHostAddress());
-			
-			ObjectOutputStream out = new ObjectOutputStream(connection.getOutputStream());
-			out.flush();
-			ObjectInputStream in = new ObjectInputStream(connection.getInputStream());
-			
-			try
-			{
-				String command = (String)in.readObject();				
-				switch (command) {
-				case "confirmation":
-					processConfirmation(in);
-					break;				
-				default:
-					System.err.println("Unknown socket command.");
-					break;
-				}
-				
-				String goodbye = (String)in.readObject();
-				if (goodbye.equals("goodbye"))
-				{					
-					out.writeObject("goodbye");
-					out.flush();
-					System.out.println("Communication finished successfully. Reply \"goodbye\".");
-				}				
-				
-				connection.close();
-				in.close();
-				out.close();
-			}
-			catch(ClassNotFoundException e)
-			{
-				System.err.println("Data received in unknown format");
-			}			
-		}
-		catch(IOException e)
-		{
-			System.err.println("Some IO error in accept()");
-		}				
-	}
-
-	public synchronized void stopAccepting()
-	{
-		if (_acceptSocket != null && !_acceptSocket.isClosed())
-		{
-			try {
-				_acceptSocket.close();
-			} catch (IOException e) {
-				System.out.println("Problems with accept socket");
-				e.printStackTrace();
-			}
-		}
+		_server.stop();
 	}
 	
 	public void setListener(TownDevice townDevice)
@@ -134,20 +83,20 @@ public class TownNetworkOperator extends Thread{
 		return _port;
 	}
 	
-	private void processConfirmation(ObjectInputStream in) throws IOException, ClassNotFoundException 
+	private void processConfirmation(ObjectInputStream in, int codec) throws IOException, ClassNotFoundException 
+	{
+		// receive number of entries and objects
+		ArrayList<RequestRecord> requests = WireCodec.readRequests(in, codec);
+		confirm(requests);
+	}	
+	
+	private void confirm(ArrayList<RequestRecord> requests)
 	{
 		if (_townDevice != null) {
 			System.out.println("Receiving confirmation from air company:");
-			// receive number of entries
-			int number = (int)in.readObject();					
-			// receive objects
-			ArrayList<RequestRecord> requests = new ArrayList<RequestRecord>();				
-			for (int i = 0; i < number; ++i)
-			{
-				RequestRecord record = (RequestRecord)in.readObject();
-				requests.add(record);			
+			for (RequestRecord record : requests) {
 				_townDevice.confirm(record);
 			}
 		}
-	}	
+	}
 }
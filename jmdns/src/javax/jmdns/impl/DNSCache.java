@@ -5,14 +5,16 @@
 package javax.jmdns.impl;
 
 import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import javax.jmdns.impl.constants.DNSRecordClass;
 import javax.jmdns.impl.constants.DNSRecordType;
@@ -20,7 +22,11 @@ import javax.jmdns.impl.constants.DNSRecordType;
 /**
  * A table of DNS entries. This is a map table which can handle multiple entries with the same name.
  * <p/>
- * Storing multiple entries with the same name is implemented using a linked list. This is hidden from the user and can change in later implementation.
+ * Storing multiple entries with the same name is implemented using a hash index keyed on the normalized name, each name holding an immutable list of entries.
+ * This is hidden from the user and can change in later implementation.
+ * <p/>
+ * The cache is safe for concurrent use. The index is a concurrent map and the per name lists are copy-on-write, so readers never block. Writers only lock the name they
+ * update, so updates of different names do not contend.
  * <p/>
  * Here's how to iterate over all entries:
  *
@@ -46,6 +52,11 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
 
     // private static Logger logger = Logger.getLogger(DNSCache.class.getName());
 
+    /**
+     * Index of the cache entries keyed by the normalized (trimmed, lower case) name.
+     */
+    private final ConcurrentMap<String, _CacheEntry>                   _entries;
+
     private transient Set<Map.Entry<String, List<? extends DNSEntry>>> _entrySet  = null;
 
     /**
@@ -150,7 +161,7 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      */
     protected static class _CacheEntry extends Object implements Map.Entry<String, List<? extends DNSEntry>> {
 
-        private List<? extends DNSEntry> _value;
+        private volatile List<? extends DNSEntry> _value;
 
         private String                   _key;
 
@@ -161,7 +172,7 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
         protected _CacheEntry(String key, List<? extends DNSEntry> value) {
             super();
             _key = (key != null ? key.trim().toLowerCase() : null);
-            _value = value;
+            _value = immutableCopy(value);
         }
 
         /**
@@ -197,10 +208,23 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
         @Override
         public List<? extends DNSEntry> setValue(List<? extends DNSEntry> value) {
             List<? extends DNSEntry> oldValue = _value;
-            _value = value;
+            _value = immutableCopy(value);
             return oldValue;
         }
 
+        /**
+         * The entry lists are never modified in place, writers replace the whole list. This way a list handed out to a reader stays valid without copying it.
+         *
+         * @param value
+         * @return unmodifiable copy of the list
+         */
+        private static List<? extends DNSEntry> immutableCopy(List<? extends DNSEntry> value) {
+            if (value == null || value.isEmpty()) {
+                return Collections.emptyList();
+            }
+            return Collections.unmodifiableList(new ArrayList<DNSEntry>(value));
+        }
+
         /**
          * Returns <tt>true</tt> if this list contains no elements.
          *
@@ -274,7 +298,7 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      */
     public DNSCache(int initialCapacity) {
         super();
-        _entrySet = new HashSet<Map.Entry<String, List<? extends DNSEntry>>>(initialCapacity);
+        _entries = new ConcurrentHashMap<String, _CacheEntry>(initialCapacity);
     }
 
     // ====================================================================
@@ -287,29 +311,65 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
     @Override
     public Set<Map.Entry<String, List<? extends DNSEntry>>> entrySet() {
         if (_entrySet == null) {
-            _entrySet = new HashSet<Map.Entry<String, List<? extends DNSEntry>>>();
+            _entrySet = new _EntrySet();
         }
         return _entrySet;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size() {
+        return _entries.size();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean containsKey(Object key) {
+        return (key == null || key instanceof String) && _entries.containsKey(normalizeKey((String) key));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<? extends DNSEntry> get(Object key) {
+        if ((key != null) && !(key instanceof String)) {
+            return null;
+        }
+        _CacheEntry entry = _entries.get(normalizeKey((String) key));
+        return (entry != null ? entry.getValue() : null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public List<? extends DNSEntry> remove(Object key) {
+        if ((key != null) && !(key instanceof String)) {
+            return null;
+        }
+        _CacheEntry entry = _entries.remove(normalizeKey((String) key));
+        return (entry != null ? entry.getValue() : null);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear() {
+        _entries.clear();
+    }
+
     /**
      * @param key
      * @return map entry for the key
      */
     protected Map.Entry<String, List<? extends DNSEntry>> getEntry(String key) {
-        String stringKey = (key != null ? key.trim().toLowerCase() : null);
-        for (Map.Entry<String, List<? extends DNSEntry>> entry : this.entrySet()) {
-            if (stringKey != null) {
-                if (stringKey.equals(entry.getKey())) {
-                    return entry;
-                }
-            } else {
-                if (entry.getKey() == null) {
-                    return entry;
-                }
-            }
-        }
-        return null;
+        return _entries.get(normalizeKey(key));
     }
 
     /**
@@ -317,15 +377,20 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      */
     @Override
     public List<? extends DNSEntry> put(String key, List<? extends DNSEntry> value) {
-        synchronized (this) {
-            List<? extends DNSEntry> oldValue = null;
-            Map.Entry<String, List<? extends DNSEntry>> oldEntry = this.getEntry(key);
-            if (oldEntry != null) {
-                oldValue = oldEntry.setValue(value);
-            } else {
-                this.entrySet().add(new _CacheEntry(key, value));
+        String stringKey = normalizeKey(key);
+        while (true) {
+            _CacheEntry oldEntry = _entries.get(stringKey);
+            if (oldEntry == null) {
+                if (_entries.putIfAbsent(stringKey, new _CacheEntry(key, value)) == null) {
+                    return null;
+                }
+                continue;
+            }
+            synchronized (oldEntry) {
+                if (_entries.get(stringKey) == oldEntry) {
+                    return oldEntry.setValue(value);
+                }
             }
-            return oldValue;
         }
     }
 
@@ -344,12 +409,10 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      *
      * @return all entries in the cache
      */
-    public synchronized Collection<DNSEntry> allValues() {
+    public Collection<DNSEntry> allValues() {
         List<DNSEntry> allValues = new ArrayList<DNSEntry>();
-        for (List<? extends DNSEntry> entry : this.values()) {
-            if (entry != null) {
-                allValues.addAll(entry);
-            }
+        for (_CacheEntry entry : _entries.values()) {
+            allValues.addAll(entry.getValue());
         }
         return allValues;
     }
@@ -360,18 +423,18 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      * @param name
      * @return list of DNSEntries
      */
-    public synchronized Collection<? extends DNSEntry> getDNSEntryList(String name) {
+    public Collection<? extends DNSEntry> getDNSEntryList(String name) {
         Collection<? extends DNSEntry> entryList = this._getDNSEntryList(name);
-        if (entryList != null) {
-            entryList = new ArrayList<DNSEntry>(entryList);
-        } else {
+        if (entryList == null) {
             entryList = Collections.emptyList();
         }
+        // The per name lists are immutable so there is no need to copy them.
         return entryList;
     }
 
     private Collection<? extends DNSEntry> _getDNSEntryList(String name) {
-        return this.get(name != null ? name.toLowerCase() : null);
+        _CacheEntry entry = _entries.get(normalizeKey(name));
+        return (entry != null ? entry.getValue() : null);
     }
 
     /**
@@ -380,7 +443,7 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      * @param dnsEntry
      * @return DNSEntry
      */
-    public synchronized DNSEntry getDNSEntry(DNSEntry dnsEntry) {
+    public DNSEntry getDNSEntry(DNSEntry dnsEntry) {
         DNSEntry result = null;
         if (dnsEntry != null) {
             Collection<? extends DNSEntry> entryList = this._getDNSEntryList(dnsEntry.getKey());
@@ -404,7 +467,7 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      * @param recordClass
      * @return DNSEntry
      */
-    public synchronized DNSEntry getDNSEntry(String name, DNSRecordType type, DNSRecordClass recordClass) {
+    public DNSEntry getDNSEntry(String name, DNSRecordType type, DNSRecordClass recordClass) {
         DNSEntry result = null;
         Collection<? extends DNSEntry> entryList = this._getDNSEntryList(name);
         if (entryList != null) {
@@ -426,16 +489,16 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      * @param recordClass
      * @return list of entries
      */
-    public synchronized Collection<? extends DNSEntry> getDNSEntryList(String name, DNSRecordType type, DNSRecordClass recordClass) {
+    public Collection<? extends DNSEntry> getDNSEntryList(String name, DNSRecordType type, DNSRecordClass recordClass) {
         Collection<? extends DNSEntry> entryList = this._getDNSEntryList(name);
         if (entryList != null) {
-            entryList = new ArrayList<DNSEntry>(entryList);
-            for (Iterator<? extends DNSEntry> i = entryList.iterator(); i.hasNext();) {
-                DNSEntry testDNSEntry = i.next();
-                if (!testDNSEntry.getRecordType().equals(type) || ((DNSRecordClass.CLASS_ANY != recordClass) && !testDNSEntry.getRecordClass().equals(recordClass))) {
-                    i.remove();
+            List<DNSEntry> matchingList = new ArrayList<DNSEntry>(entryList.size());
+            for (DNSEntry testDNSEntry : entryList) {
+                if (testDNSEntry.getRecordType().equals(type) && ((DNSRecordClass.CLASS_ANY == recordClass) || testDNSEntry.getRecordClass().equals(recordClass))) {
+                    matchingList.add(testDNSEntry);
                 }
             }
+            entryList = matchingList;
         } else {
             entryList = Collections.emptyList();
         }
@@ -448,26 +511,28 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      * @param dnsEntry
      * @return true if the entry was added
      */
-    public synchronized boolean addDNSEntry(final DNSEntry dnsEntry) {
+    public boolean addDNSEntry(final DNSEntry dnsEntry) {
         boolean result = false;
         if (dnsEntry != null) {
-            Map.Entry<String, List<? extends DNSEntry>> oldEntry = this.getEntry(dnsEntry.getKey());
-
-            List<DNSEntry> aNewValue = null;
-            if (oldEntry != null) {
-                aNewValue = new ArrayList<DNSEntry>(oldEntry.getValue());
-            } else {
-                aNewValue = new ArrayList<DNSEntry>();
-            }
-            aNewValue.add(dnsEntry);
-
-            if (oldEntry != null) {
-                oldEntry.setValue(aNewValue);
-            } else {
-                this.entrySet().add(new _CacheEntry(dnsEntry.getKey(), aNewValue));
+            String stringKey = normalizeKey(dnsEntry.getKey());
+            while (!result) {
+                _CacheEntry oldEntry = _entries.get(stringKey);
+                if (oldEntry == null) {
+                    result = (_entries.putIfAbsent(stringKey, new _CacheEntry(dnsEntry.getKey(), Collections.singletonList(dnsEntry))) == null);
+                    continue;
+                }
+                synchronized (oldEntry) {
+                    // The entry may have been dropped while we were waiting for it
+                    if (_entries.get(stringKey) == oldEntry) {
+                        List<DNSEntry> aNewValue = new ArrayList<DNSEntry>(oldEntry.getValue().size() + 1);
+                        aNewValue.addAll(oldEntry.getValue());
+                        aNewValue.add(dnsEntry);
+                        oldEntry.setValue(aNewValue);
+                        // This is probably not very informative
+                        result = true;
+                    }
+                }
             }
-            // This is probably not very informative
-            result = true;
         }
         return result;
     }
@@ -478,16 +543,27 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      * @param dnsEntry
      * @return true if the entry was removed
      */
-    public synchronized boolean removeDNSEntry(DNSEntry dnsEntry) {
+    public boolean removeDNSEntry(DNSEntry dnsEntry) {
         boolean result = false;
         if (dnsEntry != null) {
-            Map.Entry<String, List<? extends DNSEntry>> existingEntry = this.getEntry(dnsEntry.getKey());
-            if (existingEntry != null) {
-                result = existingEntry.getValue().remove(dnsEntry);
-                // If we just removed the last one we need to get rid of the entry
-                if (existingEntry.getValue().isEmpty()) {
-                    this.entrySet().remove(existingEntry);
+            String stringKey = normalizeKey(dnsEntry.getKey());
+            _CacheEntry existingEntry = _entries.get(stringKey);
+            while (existingEntry != null) {
+                synchronized (existingEntry) {
+                    // The entry may have been dropped while we were waiting for it
+                    if (_entries.get(stringKey) == existingEntry) {
+                        List<DNSEntry> aNewValue = new ArrayList<DNSEntry>(existingEntry.getValue());
+                        result = aNewValue.remove(dnsEntry);
+                        // If we just removed the last one we need to get rid of the entry
+                        if (aNewValue.isEmpty()) {
+                            _entries.remove(stringKey, existingEntry);
+                        } else if (result) {
+                            existingEntry.setValue(aNewValue);
+                        }
+                        break;
+                    }
                 }
+                existingEntry = _entries.get(stringKey);
             }
         }
         return result;
@@ -501,36 +577,134 @@ public class DNSCache extends AbstractMap<String, List<? extends DNSEntry>> {
      * @param existingDNSEntry
      * @return <code>true</code> if the entry has been replace, <code>false</code> otherwise.
      */
-    public synchronized boolean replaceDNSEntry(DNSEntry newDNSEntry, DNSEntry existingDNSEntry) {
+    public boolean replaceDNSEntry(DNSEntry newDNSEntry, DNSEntry existingDNSEntry) {
         boolean result = false;
         if ((newDNSEntry != null) && (existingDNSEntry != null) && (newDNSEntry.getKey().equals(existingDNSEntry.getKey()))) {
-            Map.Entry<String, List<? extends DNSEntry>> oldEntry = this.getEntry(newDNSEntry.getKey());
+            String stringKey = normalizeKey(newDNSEntry.getKey());
+            while (!result) {
+                _CacheEntry oldEntry = _entries.get(stringKey);
+                if (oldEntry == null) {
+                    result = (_entries.putIfAbsent(stringKey, new _CacheEntry(newDNSEntry.getKey(), Collections.singletonList(newDNSEntry))) == null);
+                    continue;
+                }
+                synchronized (oldEntry) {
+                    // The entry may have been dropped while we were waiting for it
+                    if (_entries.get(stringKey) == oldEntry) {
+                        List<DNSEntry> aNewValue = new ArrayList<DNSEntry>(oldEntry.getValue());
+                        aNewValue.remove(existingDNSEntry);
+                        aNewValue.add(newDNSEntry);
+                        oldEntry.setValue(aNewValue);
+                        // This is probably not very informative
+                        result = true;
+                    }
+                }
+            }
+        }
+        return result;
+    }
 
-            List<DNSEntry> aNewValue = null;
-            if (oldEntry != null) {
-                aNewValue = new ArrayList<DNSEntry>(oldEntry.getValue());
-            } else {
-                aNewValue = new ArrayList<DNSEntry>();
+    /**
+     * Normalizes a name the same way the cache entries do, so that it can be used as an index key.
+     *
+     * @param key
+     * @return normalized key
+     */
+    static String normalizeKey(String key) {
+        return (key != null ? key.trim().toLowerCase() : "");
+    }
+
+    /**
+     * Live view of the index as a set of map entries.
+     */
+    private final class _EntrySet extends AbstractSet<Map.Entry<String, List<? extends DNSEntry>>> {
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public Iterator<Map.Entry<String, List<? extends DNSEntry>>> iterator() {
+            final Iterator<_CacheEntry> entries = _entries.values().iterator();
+            return new Iterator<Map.Entry<String, List<? extends DNSEntry>>>() {
+
+                @Override
+                public boolean hasNext() {
+                    return entries.hasNext();
+                }
+
+                @Override
+                public Map.Entry<String, List<? extends DNSEntry>> next() {
+                    return entries.next();
+                }
+
+                @Override
+                public void remove() {
+                    entries.remove();
+                }
+            };
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int size() {
+            return DNSCache.this.size();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean add(Map.Entry<String, List<? extends DNSEntry>> entry) {
+            _CacheEntry newEntry = new _CacheEntry(entry.getKey(), entry.getValue());
+            _CacheEntry oldEntry = _entries.put(newEntry.getKey(), newEntry);
+            return !newEntry.equals(oldEntry);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean contains(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
             }
-            aNewValue.remove(existingDNSEntry);
-            aNewValue.add(newDNSEntry);
+            Object key = ((Map.Entry<?, ?>) o).getKey();
+            Map.Entry<String, List<? extends DNSEntry>> entry = ((key == null) || (key instanceof String) ? DNSCache.this.getEntry((String) key) : null);
+            return (entry != null) && entry.equals(o);
+        }
 
-            if (oldEntry != null) {
-                oldEntry.setValue(aNewValue);
-            } else {
-                this.entrySet().add(new _CacheEntry(newDNSEntry.getKey(), aNewValue));
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean remove(Object o) {
+            if (!(o instanceof Map.Entry)) {
+                return false;
+            }
+            Object key = ((Map.Entry<?, ?>) o).getKey();
+            if ((key != null) && !(key instanceof String)) {
+                return false;
             }
-            // This is probably not very informative
-            result = true;
+            String stringKey = normalizeKey((String) key);
+            _CacheEntry entry = _entries.get(stringKey);
+            return (entry != null) && entry.equals(o) && _entries.remove(stringKey, entry);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void clear() {
+            DNSCache.this.clear();
         }
-        return result;
     }
 
     /**
      * {@inheritDoc}
      */
     @Override
-    public synchronized String toString() {
+    public String toString() {
         StringBuffer aLog = new StringBuffer(2000);
         aLog.append("\t---- cache ----");
         for (Map.Entry<String, List<? extends DNSEntry>> entry : this.entrySet()) {
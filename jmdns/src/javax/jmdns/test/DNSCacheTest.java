@@ -3,9 +3,24 @@
  */
 package javax.jmdns.test;
 
+import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertNotNull;
+import static junit.framework.Assert.assertNull;
+import static junit.framework.Assert.assertSame;
+import static junit.framework.Assert.assertTrue;
+import static junit.framework.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
 
 import javax.jmdns.impl.DNSCache;
+import javax.jmdns.impl.DNSEntry;
+import javax.jmdns.impl.DNSRecord;
+import javax.jmdns.impl.constants.DNSRecordClass;
+import javax.jmdns.impl.constants.DNSRecordType;
 
 import org.junit.Before;
 import org.junit.Test;
@@ -26,4 +41,111 @@ public class DNSCacheTest {
         assertNotNull("Could not create a new DNS cache.", cache);
     }
 
+    @Test
+    public void testCacheLookupIgnoresCase() {
+        DNSCache cache = new DNSCache();
+        DNSRecord pointer = new DNSRecord.Pointer("_camp._tcp.local.", DNSRecordClass.CLASS_IN, false, 3600, "Camp._camp._tcp.local.");
+        cache.addDNSEntry(pointer);
+        assertEquals("Wrong number of names in the cache.", 1, cache.size());
+        assertSame("Could not find the entry by name.", pointer, cache.getDNSEntry("_Camp._TCP.local.", DNSRecordType.TYPE_PTR, DNSRecordClass.CLASS_ANY));
+        assertSame("Could not find the entry.", pointer, cache.getDNSEntry(pointer));
+        assertTrue("Could not find the name.", cache.containsKey("_CAMP._tcp.local."));
+        assertEquals("Wrong number of entries for the name.", 1, cache.getDNSEntryList("_camp._tcp.local.").size());
+    }
+
+    @Test
+    public void testCacheMultipleEntriesPerName() {
+        DNSCache cache = new DNSCache();
+        DNSRecord first = new DNSRecord.Pointer("_aircompany._tcp.local.", DNSRecordClass.CLASS_IN, false, 3600, "First._aircompany._tcp.local.");
+        DNSRecord second = new DNSRecord.Pointer("_aircompany._tcp.local.", DNSRecordClass.CLASS_IN, false, 3600, "Second._aircompany._tcp.local.");
+        DNSRecord text = new DNSRecord.Text("First._aircompany._tcp.local.", DNSRecordClass.CLASS_IN, true, 3600, new byte[0]);
+        cache.addDNSEntry(first);
+        cache.addDNSEntry(second);
+        cache.addDNSEntry(text);
+        assertEquals("Wrong number of names in the cache.", 2, cache.size());
+        assertEquals("Wrong number of entries in the cache.", 3, cache.allValues().size());
+        assertEquals("Wrong number of entries for the name.", 2, cache.getDNSEntryList("_aircompany._tcp.local.").size());
+        assertEquals("Wrong number of matching entries.", 1, cache.getDNSEntryList("first._aircompany._tcp.local.", DNSRecordType.TYPE_TXT, DNSRecordClass.CLASS_IN).size());
+
+        assertTrue("Could not remove the entry.", cache.removeDNSEntry(text));
+        assertFalse("The name should be gone once its last entry is removed.", cache.containsKey("First._aircompany._tcp.local."));
+        assertNull("The name should be gone once its last entry is removed.", cache.get("first._aircompany._tcp.local."));
+        assertFalse("The entry was already removed.", cache.removeDNSEntry(text));
+        assertEquals("Wrong number of names in the cache.", 1, cache.size());
+    }
+
+    @Test
+    public void testCacheEntryListsAreImmutable() {
+        DNSCache cache = new DNSCache();
+        DNSRecord first = new DNSRecord.Pointer("_helicopter._tcp.local.", DNSRecordClass.CLASS_IN, false, 3600, "First._helicopter._tcp.local.");
+        DNSRecord second = new DNSRecord.Pointer("_helicopter._tcp.local.", DNSRecordClass.CLASS_IN, false, 3600, "Second._helicopter._tcp.local.");
+        cache.addDNSEntry(first);
+        Collection<? extends DNSEntry> snapshot = cache.getDNSEntryList("_helicopter._tcp.local.");
+        cache.addDNSEntry(second);
+        assertEquals("A list handed out before the update should not change.", 1, snapshot.size());
+        assertEquals("Wrong number of entries for the name.", 2, cache.getDNSEntryList("_helicopter._tcp.local.").size());
+        try {
+            snapshot.clear();
+            fail("The entry list should not be modifiable.");
+        } catch (UnsupportedOperationException exception) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testCacheConcurrentUpdates() throws InterruptedException {
+        final DNSCache cache = new DNSCache();
+        final int threadCount = 8;
+        final int recordCount = 200;
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < threadCount; i++) {
+            final int thread = i;
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException exception) {
+                        return;
+                    }
+                    for (int j = 0; j < recordCount; j++) {
+                        // every thread writes the shared name and one of its own
+                        DNSRecord shared = new DNSRecord.Pointer("_shared._tcp.local.", DNSRecordClass.CLASS_IN, false, 3600, "Device" + thread + "-" + j + "._shared._tcp.local.");
+                        DNSRecord own = new DNSRecord.Pointer("_device" + thread + "._tcp.local.", DNSRecordClass.CLASS_IN, false, 3600, "Record" + j + "._device" + thread + "._tcp.local.");
+                        cache.addDNSEntry(shared);
+                        cache.addDNSEntry(own);
+                        cache.getDNSEntryList("_shared._tcp.local.");
+                        cache.allValues();
+                        if (j % 2 == 0) {
+                            cache.removeDNSEntry(own);
+                        }
+                    }
+                }
+            };
+            threads.add(writer);
+            writer.start();
+        }
+        start.countDown();
+        for (Thread writer : threads) {
+            writer.join();
+        }
+        assertEquals("Lost updates on the shared name.", threadCount * recordCount, cache.getDNSEntryList("_shared._tcp.local.").size());
+        assertEquals("Wrong number of names in the cache.", threadCount + 1, cache.size());
+        assertEquals("Wrong number of entries in the cache.", threadCount * recordCount + threadCount * recordCount / 2, cache.allValues().size());
+    }
+
+    @Test
+    public void testCacheMapContract() {
+        DNSCache cache = new DNSCache();
+        DNSRecord pointer = new DNSRecord.Pointer("_town._tcp.local.", DNSRecordClass.CLASS_IN, false, 3600, "Town._town._tcp.local.");
+        cache.addDNSEntry(pointer);
+        DNSCache copy = new DNSCache(cache);
+        assertEquals("The copy should be equal to the original.", cache, copy);
+        assertEquals("Wrong number of entries in the entry set.", 1, copy.entrySet().size());
+        copy.clear();
+        assertTrue("The copy should be empty.", copy.isEmpty());
+        assertEquals("Clearing the copy should not change the original.", 1, cache.size());
+    }
+
 }